@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber;
+
+import android.app.Application;
+
+import java.io.IOException;
+
+import com.privateco.clumber.crypto.EncryptionManager;
+import com.privateco.clumber.util.ApplicationSocket;
+import com.privateco.clumber.util.StartupScheduler;
+
+public class ClumberApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        StartupScheduler scheduler = StartupScheduler.getInstance();
+        // the socket is up, or on its way, by the time the user has typed a nickname
+        scheduler.runInBackground("warm-up socket", new Runnable() {
+            @Override
+            public void run() {
+                ApplicationSocket applicationSocket = ApplicationSocket.getInstance();
+                try {
+                    applicationSocket.openOutbox(getFilesDir());
+                } catch (IOException e) {
+                    // The app cannot continue without the outbox; crash
+                    throw new RuntimeException(e);
+                }
+                applicationSocket.getSocket().connect();
+            }
+        });
+        scheduler.runInBackground("warm-up crypto", new Runnable() {
+            @Override
+            public void run() {
+                // registers the hybrid primitives and starts filling the key pair pool
+                EncryptionManager.getInstance();
+            }
+        });
+    }
+}
@@ -27,6 +27,8 @@ import android.support.design.widget.TextInputLayout;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.view.Menu;
@@ -36,9 +38,7 @@ import android.view.inputmethod.InputMethodManager;
 import android.widget.Button;
 import android.widget.EditText;
 
-import org.greenrobot.eventbus.EventBus;
-import org.greenrobot.eventbus.Subscribe;
-import org.greenrobot.eventbus.ThreadMode;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -46,15 +46,20 @@ import java.io.IOException;
 import java.util.regex.Pattern;
 
 import com.privateco.clumber.constants.ApplicationConstants;
+import com.privateco.clumber.crypto.CipherSuite;
 import com.privateco.clumber.crypto.EncryptionManager;
-import com.privateco.clumber.model.MessageEvent;
+import com.privateco.clumber.model.EntrySuccess;
 import com.privateco.clumber.model.Version;
+import com.privateco.clumber.util.ApiClient;
+import com.privateco.clumber.util.AppEvents;
+import com.privateco.clumber.util.AppSettings;
 import com.privateco.clumber.util.AppUtil;
 import com.privateco.clumber.util.ApplicationSocket;
+import com.privateco.clumber.util.EventChannel;
+import com.privateco.clumber.util.OutboundQueue;
+import com.privateco.clumber.util.SessionStateMachine;
+import com.privateco.clumber.util.StartupScheduler;
 import io.socket.client.Socket;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -65,24 +70,11 @@ public class MainActivity extends AppCompatActivity {
     private Button connectButton;
     private Menu menu;
 
-    private final Socket socket = ApplicationSocket.getInstance().getSocket();
-    private boolean isSocketInitialized = false;
 
     private boolean isInFront;
 
-    // states, should be cleared when exit from MessageActivity
-    private boolean isAwaitingFriends = false;
-    private boolean isSelfPublicKeyShared = false;
-    private String chattingWith = "";
     private boolean shouldOpenMessageActivity = false; // used when app is in background
 
-    private void resetStates() {
-        isAwaitingFriends = false;
-        isSelfPublicKeyShared = false;
-        chattingWith = "";
-        shouldOpenMessageActivity = false;
-    }
-
     // dialog shown when awaiting friends to join in the room, related which "socket_entry_await" and "socket_entry_success" events
     private AlertDialog awaitingFriendsAlertDialog;
 
@@ -95,14 +87,14 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
 
         initialize();
-        EventBus.getDefault().register(this);
+        subscribeEvents();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
         disconnectSocket();
-        EventBus.getDefault().unregister(this);
+        unsubscribeEvents();
     }
     @Override
     public void onResume() {
@@ -111,7 +103,8 @@ public class MainActivity extends AppCompatActivity {
 
         if (shouldOpenMessageActivity) {
             shouldOpenMessageActivity = false;
-            MessageActivity.open(MainActivity.this, nicknameEditText.getText().toString(), chattingWith);
+            MessageActivity.open(MainActivity.this, nicknameEditText.getText().toString(),
+                    getSession().getPeerNickname());
         }
     }
 
@@ -121,91 +114,164 @@ public class MainActivity extends AppCompatActivity {
         isInFront = false;
     }
 
-    @Subscribe(threadMode = ThreadMode.MAIN)
-    public void onMessageEvent(MessageEvent event) {
-        switch (event.getEvent()) {
-            case "socket_connected":
-                menu.findItem(R.id.connection_ok).setVisible(true);
-                break;
-            case "socket_connect_error":
-                socket.disconnect();
-                new AlertDialog.Builder(MainActivity.this)
-                        .setTitle(getString(R.string.error_hint_title_socket_connection))
-                        .setMessage(getString(R.string.error_hint_description_socket_connection))
-                        .setNegativeButton(R.string.action_retry, new DialogInterface.OnClickListener() {
-                            @Override
-                            public void onClick(DialogInterface dialogInterface, int i) {
-                                socket.connect();
-                            }
-                        })
-                        .setPositiveButton(R.string.action_exit, new DialogInterface.OnClickListener() {
-                            @Override
-                            public void onClick(DialogInterface dialogInterface, int i) {
-                                MainActivity.this.finish();
-                            }
-                        })
-                        .setCancelable(false)
-                        .show();
-                break;
-            case "socket_entry_name_occupied":
-                // re-enable connect button
-                connectButton.setEnabled(true);
+    private final EventChannel.Subscriber<Void> onSocketConnected = new EventChannel.Subscriber<Void>() {
+        @Override
+        public void onEvent(Void event) {
+            showConnected();
+            // a connect tap that came before the socket did; the entry request went out with the connection
+            if (getSession().getState() == SessionStateMachine.State.CONNECTING) {
+                getSession().moveTo(SessionStateMachine.State.ENTERING, SystemClock.elapsedRealtime());
+            }
+        }
+    };
 
-                // show name occupied hint
-                new AlertDialog.Builder(MainActivity.this)
-                        .setTitle(getString(R.string.error_hint_title_entry_name_occupied))
-                        .setMessage(getString(R.string.error_hint_description_entry_name_occupied))
-                        .setPositiveButton(getString(R.string.action_ok), new DialogInterface.OnClickListener() {
-                            @Override
-                            public void onClick(DialogInterface dialogInterface, int i) {}
-                        })
-                        .show();
-                break;
-            case "socket_entry_code_occupied":
-                // re-enable connect button
-                connectButton.setEnabled(true);
+    private final EventChannel.Subscriber<Void> onSocketConnectError = new EventChannel.Subscriber<Void>() {
+        @Override
+        public void onEvent(Void event) {
+            getSocket().disconnect();
+            new AlertDialog.Builder(MainActivity.this)
+                    .setTitle(getString(R.string.error_hint_title_socket_connection))
+                    .setMessage(getString(R.string.error_hint_description_socket_connection))
+                    .setNegativeButton(R.string.action_retry, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialogInterface, int i) {
+                            getSocket().connect();
+                        }
+                    })
+                    .setPositiveButton(R.string.action_exit, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialogInterface, int i) {
+                            MainActivity.this.finish();
+                        }
+                    })
+                    .setCancelable(false)
+                    .show();
+        }
+    };
 
-                // show code occupied hint
-                new AlertDialog.Builder(MainActivity.this)
-                        .setTitle(getString(R.string.error_hint_title_entry_code_occupied))
-                        .setMessage(getString(R.string.error_hint_description_entry_code_occupied))
-                        .setPositiveButton(getString(R.string.action_ok), new DialogInterface.OnClickListener() {
-                            @Override
-                            public void onClick(DialogInterface dialogInterface, int i) {}
-                        })
-                        .show();
-                break;
-            case "socket_entry_await":
-                hideKeyboard();
-                awaitingFriendsAlertDialog.show();
-                break;
-            case "socket_entry_success":
-                // re-enable connect button
-                connectButton.setEnabled(true);
+    private final EventChannel.Subscriber<Void> onEntryNameOccupied = new EventChannel.Subscriber<Void>() {
+        @Override
+        public void onEvent(Void event) {
+            getSession().moveTo(SessionStateMachine.State.EXITED, SystemClock.elapsedRealtime());
+
+            // re-enable connect button
+            connectButton.setEnabled(true);
+
+            // show name occupied hint
+            new AlertDialog.Builder(MainActivity.this)
+                    .setTitle(getString(R.string.error_hint_title_entry_name_occupied))
+                    .setMessage(getString(R.string.error_hint_description_entry_name_occupied))
+                    .setPositiveButton(getString(R.string.action_ok), new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialogInterface, int i) {}
+                    })
+                    .show();
+        }
+    };
+
+    private final EventChannel.Subscriber<Void> onEntryCodeOccupied = new EventChannel.Subscriber<Void>() {
+        @Override
+        public void onEvent(Void event) {
+            getSession().moveTo(SessionStateMachine.State.EXITED, SystemClock.elapsedRealtime());
+
+            // re-enable connect button
+            connectButton.setEnabled(true);
+
+            // show code occupied hint
+            new AlertDialog.Builder(MainActivity.this)
+                    .setTitle(getString(R.string.error_hint_title_entry_code_occupied))
+                    .setMessage(getString(R.string.error_hint_description_entry_code_occupied))
+                    .setPositiveButton(getString(R.string.action_ok), new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialogInterface, int i) {}
+                    })
+                    .show();
+        }
+    };
+
+    private final EventChannel.Subscriber<Void> onEntryAwait = new EventChannel.Subscriber<Void>() {
+        @Override
+        public void onEvent(Void event) {
+            getSession().moveTo(SessionStateMachine.State.AWAITING, SystemClock.elapsedRealtime());
+            hideKeyboard();
+            awaitingFriendsAlertDialog.show();
+        }
+    };
+
+    private final EventChannel.Subscriber<EntrySuccess> onEntrySuccess = new EventChannel.Subscriber<EntrySuccess>() {
+        @Override
+        public void onEvent(EntrySuccess entry) {
+            long now = SystemClock.elapsedRealtime();
+            getSession().setPeerNickname(entry.peerNickname);
+            getSession().moveTo(SessionStateMachine.State.KEY_EXCHANGE, now);
 
-                // clear secure code edit text
-                secureCodeEditText.setText("");
+            // re-enable connect button
+            connectButton.setEnabled(true);
 
-                awaitingFriendsAlertDialog.dismiss();
+            // clear secure code edit text
+            secureCodeEditText.setText("");
 
-                // share public key
+            awaitingFriendsAlertDialog.dismiss();
+
+            if (entry.peerKeyIncluded) {
+                getSession().onPeerKeyReceived(now);
+            }
+            if (entry.peerKeyIncluded && getSession().isSelfKeySentWithEntry()) {
+                // pipelined: the server forwarded our key to the peer along with theirs
+                if (getSession().onSelfKeyShared(now)) {
+                    openMessageActivity();
+                }
+            } else {
+                // share public key; the peer waits for it unless it got it with the pairing
                 new SharePublicKeyTask().execute();
+            }
+        }
+    };
 
-                chattingWith = (String) event.getAttachment();
-                break;
-            case "socket_entry_key_received":
-                onSentOrReceivedPublicKey();
-                break;
-            case "message_activity_destroyed":
-                resetStates();
-                break;
+    private final EventChannel.Subscriber<Void> onKeyReceived = new EventChannel.Subscriber<Void>() {
+        @Override
+        public void onEvent(Void event) {
+            if (getSession().onPeerKeyReceived(SystemClock.elapsedRealtime())) {
+                openMessageActivity();
+            }
         }
+    };
+
+    private final EventChannel.Subscriber<Void> onMessageActivityDestroyed = new EventChannel.Subscriber<Void>() {
+        @Override
+        public void onEvent(Void event) {
+            getSession().moveTo(SessionStateMachine.State.EXITED, SystemClock.elapsedRealtime());
+            shouldOpenMessageActivity = false;
+        }
+    };
+
+    private void subscribeEvents() {
+        AppEvents.SOCKET_CONNECTED.subscribeOnMainThread(onSocketConnected);
+        AppEvents.SOCKET_CONNECT_ERROR.subscribeOnMainThread(onSocketConnectError);
+        AppEvents.ENTRY_NAME_OCCUPIED.subscribeOnMainThread(onEntryNameOccupied);
+        AppEvents.ENTRY_CODE_OCCUPIED.subscribeOnMainThread(onEntryCodeOccupied);
+        AppEvents.ENTRY_AWAIT.subscribeOnMainThread(onEntryAwait);
+        AppEvents.ENTRY_SUCCESS.subscribeOnMainThread(onEntrySuccess);
+        AppEvents.KEY_RECEIVED.subscribeOnMainThread(onKeyReceived);
+        AppEvents.MESSAGE_ACTIVITY_DESTROYED.subscribeOnMainThread(onMessageActivityDestroyed);
+    }
+
+    private void unsubscribeEvents() {
+        AppEvents.SOCKET_CONNECTED.unsubscribe(onSocketConnected);
+        AppEvents.SOCKET_CONNECT_ERROR.unsubscribe(onSocketConnectError);
+        AppEvents.ENTRY_NAME_OCCUPIED.unsubscribe(onEntryNameOccupied);
+        AppEvents.ENTRY_CODE_OCCUPIED.unsubscribe(onEntryCodeOccupied);
+        AppEvents.ENTRY_AWAIT.unsubscribe(onEntryAwait);
+        AppEvents.ENTRY_SUCCESS.unsubscribe(onEntrySuccess);
+        AppEvents.KEY_RECEIVED.unsubscribe(onKeyReceived);
+        AppEvents.MESSAGE_ACTIVITY_DESTROYED.unsubscribe(onMessageActivityDestroyed);
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         this.menu = menu;
         getMenuInflater().inflate(R.menu.main_actions_menu, menu);
+        menu.findItem(R.id.action_keep_transcript).setChecked(AppSettings.isKeepTranscript(this));
         return true;
     }
 
@@ -222,6 +288,11 @@ public class MainActivity extends AppCompatActivity {
                         })
                         .show();
                 break;
+            case R.id.action_keep_transcript:
+                // takes effect with the next chat
+                item.setChecked(!item.isChecked());
+                AppSettings.setKeepTranscript(this, item.isChecked());
+                break;
             case R.id.connection_ok:
                 new AlertDialog.Builder(MainActivity.this)
                         .setTitle(R.string.hint_connection_status)
@@ -237,15 +308,26 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void initialize() {
+        // the first frame only needs the form; the socket and crypto warm up in ClumberApplication
         bindViews();
-        setUpSocketIO();
-        connectSocket();
         setUpOnClickListeners();
         setUpTextInputLayouts();
-        setUpAwaitingFriendsAlertDialog();
-        setUpAwaitingKeyExchangeAlertDialog();
-        new CheckForUpdatesTask().execute();
-        new ShowNoticeTask().execute();
+        StartupScheduler.getInstance().runAfterFirstDraw(getWindow().getDecorView(), "deferred start",
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        connectSocket();  // again, if an earlier MainActivity disconnected it
+                        if (getSocket().connected()) {
+                            showConnected();  // the warm-up connected before this activity subscribed
+                        }
+                        setUpAwaitingFriendsAlertDialog();
+                        setUpAwaitingKeyExchangeAlertDialog();
+                        // side by side rather than on the serial executor
+                        new CheckForUpdatesTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                        new ShowNoticeTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                        reportFullyDrawn();
+                    }
+                });
     }
 
     private void bindViews() {
@@ -256,19 +338,34 @@ public class MainActivity extends AppCompatActivity {
         connectButton = findViewById(R.id.connectButton);
     }
 
-    private void setUpSocketIO() {
-        isSocketInitialized = true;
+    private void showConnected() {
+        if (menu != null) {
+            menu.findItem(R.id.connection_ok).setVisible(true);
+        }
+    }
+
+    // looked up on use rather than on construction, so the first frame does not wait for the warm-up
+    private Socket getSocket() {
+        return ApplicationSocket.getInstance().getSocket();
+    }
+
+    private OutboundQueue getOutboundQueue() {
+        return ApplicationSocket.getInstance().getOutboundQueue();
+    }
+
+    private SessionStateMachine getSession() {
+        return ApplicationSocket.getInstance().getSession();
     }
 
     private void connectSocket() {
-        if (isSocketInitialized && !socket.connected()) {
-            socket.connect();
+        if (!getSocket().connected()) {
+            getSocket().connect();
         }
     }
 
     private void disconnectSocket() {
-        if (isSocketInitialized && socket.connected()) {
-            socket.disconnect();
+        if (getSocket().connected()) {
+            getSocket().disconnect();
         }
     }
 
@@ -298,15 +395,14 @@ public class MainActivity extends AppCompatActivity {
                 // disable connect button to prevent multiple requests
                 connectButton.setEnabled(false);
 
-                // transform nickname to lower case and post
-                JSONObject obj = new JSONObject();
-                try {
-                    obj.put("name", nickname.toLowerCase());
-                    obj.put("code", secureCode);
-                } catch (JSONException e) {
-                    throw new RuntimeException(e);
+                long now = SystemClock.elapsedRealtime();
+                getSession().moveTo(SessionStateMachine.State.CONNECTING, now);
+                if (getSocket().connected()) {
+                    getSession().moveTo(SessionStateMachine.State.ENTERING, now);
                 }
-                socket.emit("entry", obj);
+
+                // transform nickname to lower case and post
+                new EnterRoomTask(nickname.toLowerCase(), secureCode).execute();
             }
         });
     }
@@ -319,31 +415,17 @@ public class MainActivity extends AppCompatActivity {
                 .setNegativeButton(getString(R.string.action_cancel), new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialogInterface, int i) {
+                        getSession().moveTo(SessionStateMachine.State.EXITED, SystemClock.elapsedRealtime());
+
                         // re-enable connect button
                         connectButton.setEnabled(true);
 
                         // emit exit event
-                        socket.emit("exit");
+                        getOutboundQueue().sendControl("exit");
                     }
                 })
                 .setCancelable(false)
                 .create();
-
-        awaitingFriendsAlertDialog.setOnShowListener(new DialogInterface.OnShowListener() {
-            @Override
-            public void onShow(DialogInterface dialogInterface) {
-                // update awaiting friends status
-                isAwaitingFriends = true;
-            }
-        });
-
-        awaitingFriendsAlertDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
-            @Override
-            public void onDismiss(DialogInterface dialogInterface) {
-                // // update awaiting friends status
-                isAwaitingFriends = false;
-            }
-        });
     }
 
     private void setUpAwaitingKeyExchangeAlertDialog() {
@@ -422,20 +504,29 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private class CheckForUpdatesTask extends AsyncTask<Void, Void, String> {
+    /**
+     * Shows the cached response of a web API at once, then the server's if it changed since. The server's replaces
+     * the dialog the cached one showed rather than opening a second one on top of it.
+     */
+    private abstract class CachedApiTask extends AsyncTask<Void, String, String> {
+        private final String url;
+        private AlertDialog shownDialog;  // the latest one from show(), main thread only
+
+        CachedApiTask(String url) {
+            this.url = url;
+        }
 
         @Override
         protected String doInBackground(Void... voids) {
-            OkHttpClient client = new OkHttpClient();
-            Request request = new Request.Builder()
-                    .url(ApplicationConstants.API_CHECK_UPDATE + "/" + AppUtil.getCurrentVersion().getCode())
-                    .build();
+            ApiClient apiClient = ApiClient.getInstance(getApplicationContext());
+            String cached = apiClient.getCached(url);
+            if (cached != null) {
+                publishProgress(cached);
+            }
             try {
-                Response response = client.newCall(request).execute();
-                if (response.body() == null) {
-                    throw new RuntimeException("response body is null");
-                }
-                return response.body().string();
+                String fresh = apiClient.get(url);
+                // usually a 304, which leaves the cached body
+                return fresh != null && !fresh.equals(cached) ? fresh : null;
             } catch (IOException e) {
                 // could be a connection error
                 // ignore it
@@ -443,181 +534,254 @@ public class MainActivity extends AppCompatActivity {
             return null;
         }
 
+        @Override
+        protected void onProgressUpdate(String... cached) {
+            showResult(cached[0]);
+        }
+
         @Override
         protected void onPostExecute(String result) {
             if (result != null) {
-                try {
-                    JSONObject resultObject = new JSONObject(result);
-                    boolean isLatest = resultObject.getBoolean("isLatest");
-                    if (!isLatest) {
-                        JSONObject versionObject = resultObject.getJSONObject("latestVersion");
-                        int code = versionObject.getInt("code");
-                        String name = versionObject.getString("name");
-                        String whatsNewEn = versionObject.getJSONObject("whatsNew").getString("en");
-                        String whatsNewZh = versionObject.getJSONObject("whatsNew").getString("zh");
-
-                        Version latestVersion = new Version(code, name, new Version.WhatsNewInfo(whatsNewEn, whatsNewZh));
-                        String message = AppUtil.buildNewVersionInformation(getApplicationContext(), latestVersion);
-                        new AlertDialog.Builder(MainActivity.this)
-                                .setTitle(getString(R.string.hint_title_new_version))
-                                .setMessage(message)
-                                .setPositiveButton(R.string.action_update, new DialogInterface.OnClickListener() {
-                                    @Override
-                                    public void onClick(DialogInterface dialogInterface, int i) {
-                                        // open browser to get new version
-                                        Intent browserIntent = new Intent(Intent.ACTION_VIEW,
-                                                Uri.parse(ApplicationConstants.ANDROID_UPDATE_DOWNLOAD_URL));
-                                        startActivity(browserIntent);
-                                    }
-                                })
-                                .setNegativeButton(R.string.action_cancel, new DialogInterface.OnClickListener() {
-                                    @Override
-                                    public void onClick(DialogInterface dialogInterface, int i) {}
-                                })
-                                .setCancelable(false)
-                                .show();
-                    }
-                } catch (JSONException e) {
-                    // got a malformed json
-                    throw new RuntimeException(e);
-                }
+                // the cached dialog is stale even if the fresh result shows none
+                dismissShownDialog();
+                showResult(result);
             }
         }
+
+        /**
+         * Shows a dialog for a result. Subclasses show their dialogs through here so a newer result can replace it.
+         */
+        void show(@NonNull AlertDialog.Builder builder) {
+            dismissShownDialog();
+            shownDialog = builder.show();
+        }
+
+        private void dismissShownDialog() {
+            if (shownDialog != null) {
+                shownDialog.dismiss();
+                shownDialog = null;
+            }
+        }
+
+        abstract void showResult(@NonNull String result);
     }
 
-    private class ShowNoticeTask extends AsyncTask<Void, Void, String> {
+    private class CheckForUpdatesTask extends CachedApiTask {
+
+        CheckForUpdatesTask() {
+            super(ApplicationConstants.API_CHECK_UPDATE + "/" + AppUtil.getCurrentVersion().getCode());
+        }
 
         @Override
-        protected String doInBackground(Void... voids) {
-            OkHttpClient client = new OkHttpClient();
-            Request request = new Request.Builder()
-                    .url(ApplicationConstants.API_NOTICE)
-                    .build();
+        void showResult(@NonNull String result) {
             try {
-                Response response = client.newCall(request).execute();
-                if (response.body() == null) {
-                    throw new RuntimeException("response body is null");
+                JSONObject resultObject = new JSONObject(result);
+                boolean isLatest = resultObject.getBoolean("isLatest");
+                if (!isLatest) {
+                    JSONObject versionObject = resultObject.getJSONObject("latestVersion");
+                    int code = versionObject.getInt("code");
+                    String name = versionObject.getString("name");
+                    String whatsNewEn = versionObject.getJSONObject("whatsNew").getString("en");
+                    String whatsNewZh = versionObject.getJSONObject("whatsNew").getString("zh");
+
+                    Version latestVersion = new Version(code, name, new Version.WhatsNewInfo(whatsNewEn, whatsNewZh));
+                    String message = AppUtil.buildNewVersionInformation(getApplicationContext(), latestVersion);
+                    show(new AlertDialog.Builder(MainActivity.this)
+                            .setTitle(getString(R.string.hint_title_new_version))
+                            .setMessage(message)
+                            .setPositiveButton(R.string.action_update, new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialogInterface, int i) {
+                                    // open browser to get new version
+                                    Intent browserIntent = new Intent(Intent.ACTION_VIEW,
+                                            Uri.parse(ApplicationConstants.ANDROID_UPDATE_DOWNLOAD_URL));
+                                    startActivity(browserIntent);
+                                }
+                            })
+                            .setNegativeButton(R.string.action_cancel, new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialogInterface, int i) {}
+                            })
+                            .setCancelable(false));
                 }
-                return response.body().string();
-            } catch (IOException e) {
-                // could be a connection error
-                // ignore it
+            } catch (JSONException e) {
+                // got a malformed json
+                throw new RuntimeException(e);
             }
-            return null;
+        }
+    }
+
+    private class ShowNoticeTask extends CachedApiTask {
+
+        ShowNoticeTask() {
+            super(ApplicationConstants.API_NOTICE);
         }
 
         @Override
-        protected void onPostExecute(String result) {
-            if (result != null) {
-                try {
-                    JSONObject resultObject = new JSONObject(result);
-                    boolean hasNotice = resultObject.getBoolean("hasNotice");
-                    if (hasNotice) {
-                        JSONObject noticeObject = resultObject.getJSONObject("notice");
-                        String title = noticeObject.getString("title");
-                        String content = noticeObject.getString("content");
-                        String buttonType = noticeObject.getString("buttonType");
-                        AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this)
-                                .setTitle(title)
-                                .setMessage(content);
-                        switch (buttonType) {
-                            case "positive": {
-                                String positiveButtonText = noticeObject.getString("positiveButtonText");
-                                final String positiveButtonUrl = noticeObject.has("positiveButtonUrl")
-                                        ? noticeObject.getString("positiveButtonUrl")
-                                        : null;
-                                builder.setPositiveButton(positiveButtonText, new DialogInterface.OnClickListener() {
-                                    @Override
-                                    public void onClick(DialogInterface dialogInterface, int i) {
-                                        if (positiveButtonUrl != null) {
-                                            // open browser to the specified url
-                                            Intent browserIntent = new Intent(Intent.ACTION_VIEW,
-                                                    Uri.parse(positiveButtonUrl));
-                                            startActivity(browserIntent);
-                                        }
+        void showResult(@NonNull String result) {
+            try {
+                JSONObject resultObject = new JSONObject(result);
+                boolean hasNotice = resultObject.getBoolean("hasNotice");
+                if (hasNotice) {
+                    JSONObject noticeObject = resultObject.getJSONObject("notice");
+                    String title = noticeObject.getString("title");
+                    String content = noticeObject.getString("content");
+                    String buttonType = noticeObject.getString("buttonType");
+                    AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this)
+                            .setTitle(title)
+                            .setMessage(content);
+                    switch (buttonType) {
+                        case "positive": {
+                            String positiveButtonText = noticeObject.getString("positiveButtonText");
+                            final String positiveButtonUrl = noticeObject.has("positiveButtonUrl")
+                                    ? noticeObject.getString("positiveButtonUrl")
+                                    : null;
+                            builder.setPositiveButton(positiveButtonText, new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialogInterface, int i) {
+                                    if (positiveButtonUrl != null) {
+                                        // open browser to the specified url
+                                        Intent browserIntent = new Intent(Intent.ACTION_VIEW,
+                                                Uri.parse(positiveButtonUrl));
+                                        startActivity(browserIntent);
                                     }
-                                }).show();
-                                break;
-                            }
-                            case "positive|negative": {
-                                String positiveButtonText = noticeObject.getString("positiveButtonText");
-                                final String positiveButtonUrl = noticeObject.has("positiveButtonUrl")
-                                        ? noticeObject.getString("positiveButtonUrl")
-                                        : null;
-                                String negativeButtonText = noticeObject.getString("negativeButtonText");
-                                final String negativeButtonUrl = noticeObject.has("negativeButtonUrl")
-                                        ? noticeObject.getString("negativeButtonUrl")
-                                        : null;
-                                builder.setPositiveButton(positiveButtonText, new DialogInterface.OnClickListener() {
-                                    @Override
-                                    public void onClick(DialogInterface dialogInterface, int i) {
-                                        if (positiveButtonUrl != null) {
-                                            // open browser to the specified url
-                                            Intent browserIntent = new Intent(Intent.ACTION_VIEW,
-                                                    Uri.parse(positiveButtonUrl));
-                                            startActivity(browserIntent);
-                                        }
+                                }
+                            });
+                            show(builder);
+                            break;
+                        }
+                        case "positive|negative": {
+                            String positiveButtonText = noticeObject.getString("positiveButtonText");
+                            final String positiveButtonUrl = noticeObject.has("positiveButtonUrl")
+                                    ? noticeObject.getString("positiveButtonUrl")
+                                    : null;
+                            String negativeButtonText = noticeObject.getString("negativeButtonText");
+                            final String negativeButtonUrl = noticeObject.has("negativeButtonUrl")
+                                    ? noticeObject.getString("negativeButtonUrl")
+                                    : null;
+                            builder.setPositiveButton(positiveButtonText, new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialogInterface, int i) {
+                                    if (positiveButtonUrl != null) {
+                                        // open browser to the specified url
+                                        Intent browserIntent = new Intent(Intent.ACTION_VIEW,
+                                                Uri.parse(positiveButtonUrl));
+                                        startActivity(browserIntent);
                                     }
-                                }).setNegativeButton(negativeButtonText, new DialogInterface.OnClickListener() {
-                                    @Override
-                                    public void onClick(DialogInterface dialogInterface, int i) {
-                                        if (negativeButtonUrl != null) {
-                                            // open browser to the specified url
-                                            Intent browserIntent = new Intent(Intent.ACTION_VIEW,
-                                                    Uri.parse(negativeButtonUrl));
-                                            startActivity(browserIntent);
-                                        }
+                                }
+                            }).setNegativeButton(negativeButtonText, new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialogInterface, int i) {
+                                    if (negativeButtonUrl != null) {
+                                        // open browser to the specified url
+                                        Intent browserIntent = new Intent(Intent.ACTION_VIEW,
+                                                Uri.parse(negativeButtonUrl));
+                                        startActivity(browserIntent);
                                     }
-                                }).show();
-                                break;
-                            }
+                                }
+                            });
+                            show(builder);
+                            break;
                         }
                     }
-                } catch (JSONException e) {
-                    // got a malformed json
-                    e.printStackTrace();
                 }
+            } catch (JSONException e) {
+                // got a malformed json
+                e.printStackTrace();
             }
         }
     }
 
-    private class SharePublicKeyTask extends AsyncTask<Void, Void, Void> {
-        @Override
-        protected void onPreExecute() {
-            awaitingKeyExchangeAlertDialog.show();
+    private class EnterRoomTask extends AsyncTask<Void, Void, Void> {
+        private final String name;
+        private final String code;
+
+        EnterRoomTask(String name, String code) {
+            this.name = name;
+            this.code = code;
         }
 
         @Override
         protected Void doInBackground(Void... voids) {
-            // share public key with the peer
-            byte[] selfPublicKeyJson = EncryptionManager.getInstance().getSelfPublicKeyJson();
-            JSONObject keyObject = new JSONObject();
+            JSONObject obj = new JSONObject();
             try {
-                keyObject.put("publicKey", selfPublicKeyJson);
+                obj.put("name", name);
+                obj.put("code", code);
+                if (EncryptionManager.getInstance().isCompactKeyExchangeEnabled()) {
+                    // forwarded to the peer with "entry: success", before either side sends "send key"
+                    obj.put("keyFormats", new JSONArray().put(EncryptionManager.KEY_FORMAT_COMPACT));
+                }
+                if (ApplicationSocket.getInstance().isPipelinedHandshake()) {
+                    // older servers ignore the key; the pairing then falls back to "send key"
+                    obj.put("key", getSelfPublicKeyPayload());
+                    getSession().onSelfKeySentWithEntry();
+                }
             } catch (JSONException e) {
                 throw new RuntimeException(e);
             }
-            socket.emit("send key", keyObject);
+            getOutboundQueue().sendControl("entry", obj);
+            return null;
+        }
+    }
+
+    private class SharePublicKeyTask extends AsyncTask<Void, Void, Void> {
+        @Override
+        protected void onPreExecute() {
+            awaitingKeyExchangeAlertDialog.show();
+        }
+
+        @Override
+        protected Void doInBackground(Void... voids) {
+            // share public key with the peer; a byte[] argument goes out as a raw binary attachment
+            getOutboundQueue().sendControl("send key", getSelfPublicKeyPayload());
             return null;
         }
 
         @Override
         protected void onPostExecute(Void result) {
-            isSelfPublicKeyShared = true;
-            onSentOrReceivedPublicKey();
+            if (getSession().onSelfKeyShared(SystemClock.elapsedRealtime())) {
+                openMessageActivity();
+            }
         }
     }
 
-    private void onSentOrReceivedPublicKey() {
-        if (isSelfPublicKeyShared && EncryptionManager.getInstance().hasPeerPublicKey()) {
-            if (awaitingKeyExchangeAlertDialog.isShowing()) {
-                awaitingKeyExchangeAlertDialog.dismiss();
+    /**
+     * Our public key as a JSON keyset, or as compact bytes once the peer advertised them. Call off the main thread.
+     */
+    private static Object getSelfPublicKeyPayload() {
+        EncryptionManager encryptionManager = EncryptionManager.getInstance();
+        if (encryptionManager.getKeyExchangeFormat() == EncryptionManager.KeyExchangeFormat.COMPACT) {
+            return encryptionManager.getSelfPublicKeyCompact();
+        }
+        JSONObject keyObject = new JSONObject();
+        try {
+            keyObject.put("publicKey", encryptionManager.getSelfPublicKeyJson());
+            // advertise session ratchet suites, fastest first; older clients ignore these fields
+            JSONArray cipherSuites = new JSONArray();
+            for (CipherSuite suite : encryptionManager.getAdvertisedCipherSuites()) {
+                cipherSuites.put(suite.getId());
             }
-            if (isInFront) {
-                MessageActivity.open(MainActivity.this, nicknameEditText.getText().toString(), chattingWith);
-            } else {
-                shouldOpenMessageActivity = true;
+            keyObject.put("cipherSuites", cipherSuites);
+            keyObject.put("x25519PublicKey", encryptionManager.getSelfX25519PublicKey());
+            if (encryptionManager.isCompactKeyExchangeEnabled()) {
+                keyObject.put("keyFormats", new JSONArray().put(EncryptionManager.KEY_FORMAT_COMPACT));
             }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        return keyObject;
+    }
+
+    // the key exchange is complete
+    private void openMessageActivity() {
+        if (awaitingKeyExchangeAlertDialog.isShowing()) {
+            awaitingKeyExchangeAlertDialog.dismiss();
+        }
+        if (isInFront) {
+            MessageActivity.open(MainActivity.this, nicknameEditText.getText().toString(),
+                    getSession().getPeerNickname());
+        } else {
+            shouldOpenMessageActivity = true;
         }
     }
 }
@@ -18,50 +18,74 @@
 
 package com.privateco.clumber;
 
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.AsyncTask;
-import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
-import android.support.v7.app.NotificationCompat;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.Toast;
 
-import com.squareup.picasso.Picasso;
 import com.stfalcon.chatkit.commons.ImageLoader;
 import com.stfalcon.chatkit.messages.MessageInput;
 import com.stfalcon.chatkit.messages.MessagesList;
 import com.stfalcon.chatkit.messages.MessagesListAdapter;
 
-import org.greenrobot.eventbus.EventBus;
-import org.greenrobot.eventbus.Subscribe;
-import org.greenrobot.eventbus.ThreadMode;
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
-import java.text.SimpleDateFormat;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 
 import com.privateco.clumber.crypto.EncryptionManager;
+import com.privateco.clumber.crypto.TranscriptKeys;
 import com.privateco.clumber.model.Message;
-import com.privateco.clumber.model.MessageEvent;
-import com.privateco.clumber.model.User;
-import com.privateco.clumber.util.AppUtil;
+import com.privateco.clumber.util.AppEvents;
+import com.privateco.clumber.util.AppSettings;
+import com.privateco.clumber.util.AvatarCache;
 import com.privateco.clumber.util.ApplicationSocket;
-import io.socket.client.Socket;
+import com.privateco.clumber.util.EventChannel;
+import com.privateco.clumber.util.FrameDropMonitor;
+import com.privateco.clumber.util.IdGenerator;
+import com.privateco.clumber.util.MessageNotifier;
+import com.privateco.clumber.util.MessageSearchIndex;
+import com.privateco.clumber.util.MessageWindow;
+import com.privateco.clumber.util.OutboundQueue;
+import com.privateco.clumber.util.PagedMessageStore;
+import com.privateco.clumber.util.PagedMessages;
+import com.privateco.clumber.util.ParticipantRegistry;
+import com.privateco.clumber.util.SessionStateMachine;
+import com.privateco.clumber.util.TranscriptExporter;
+import com.privateco.clumber.util.TranscriptFormatter;
+import com.privateco.clumber.util.TranscriptLog;
 
 public class MessageActivity extends AppCompatActivity
         implements MessagesListAdapter.SelectionListener, MessageInput.InputListener {
@@ -71,15 +95,32 @@ public class MessageActivity extends AppCompatActivity
     private MessageInput messageInput;
 
     private MessagesListAdapter<Message> messagesAdapter;
+    private PagedMessages messageStore;
+    private TranscriptLog transcriptLog;  // null unless the user keeps transcripts
+    private MessageWindow messageWindow;  // null until the message store is open
+    private final List<Message> pendingMessages = new ArrayList<>();  // sent or received before that
+    private ExportTranscriptTask exportTask;  // the running export, if any; its progress dialog keeps it the only one
+    private final MessageSearchIndex searchIndex = new MessageSearchIndex();
+    private final TranscriptFormatter messageFormatter = new TranscriptFormatter(Locale.getDefault());  // main thread only
+    private boolean pagingPosted = false;
     private int selectionCount;
-    private final Socket socket = ApplicationSocket.getInstance().getSocket();
+    private final OutboundQueue outboundQueue = ApplicationSocket.getInstance().getOutboundQueue();
+    private final ParticipantRegistry participants = ApplicationSocket.getInstance().getParticipants();
 
-    private final String SELF_SENDER_ID = "0";
     private final int NEW_MESSAGE_NOTIFICATION_ID = 1;
+    private final int PAGING_THRESHOLD = 10;  // messages from either end of the list
+    private final int MAX_SEARCH_RESULTS = 50;
+    private final int DEFAULT_AVATAR_SIZE_DP = 40;  // chatkit's default avatar size
+    private final int EXPORT_REQUEST_CODE = 1;
     private String nickname;
     private String chattingWithUserNickName;
     private boolean exited = false;
     private boolean isInFront;
+    private MessageNotifier messageNotifier;
+    private FrameDropMonitor frameDropMonitor;  // debug builds only
+    private final AvatarCache avatarCache = new AvatarCache(AvatarCache.DEFAULT_MAX_BYTES);
+    private long avatarBindNanos = 0;  // debug builds only
+    private int avatarBindCount = 0;  // debug builds only
 
 
     public static void open(Context context, @NonNull String nickname, @NonNull String chattingWith) {
@@ -95,7 +136,7 @@ public class MessageActivity extends AppCompatActivity
         setContentView(R.layout.activity_message);
 
         initialize();
-        EventBus.getDefault().register(this);
+        subscribeEvents();
     }
 
     @Override
@@ -103,83 +144,130 @@ public class MessageActivity extends AppCompatActivity
         super.onDestroy();
 
         if (!exited) {
-            socket.emit("exit");
+            outboundQueue.clearMessages();
+            outboundQueue.sendControl("exit");
             exited = true;
         }
         new ResetEncryptionManagerTask().execute();
-        EventBus.getDefault().post(new MessageEvent("message_activity_destroyed"));
-        EventBus.getDefault().unregister(this);
+        AppEvents.MESSAGE_ACTIVITY_DESTROYED.post(null);
+        unsubscribeEvents();
+        messageNotifier.quit();
+        messagesList.removeOnScrollListener(pagingListener);
+        if (exportTask != null) {
+            // the export may be reading the store; it closes the store once it has stopped
+            exportTask.cancel(false);
+            exportTask.dismissProgress();
+        } else {
+            closeMessageStore();
+        }
+    }
+
+    private void closeMessageStore() {
+        // the transcript may be open but not shown yet, waiting for the user to decide about its history
+        PagedMessages store = messageStore != null ? messageStore : transcriptLog;
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                Log.w("code", "cannot close message store", e);
+            }
+        }
     }
 
     @Override
     public void onResume() {
         super.onResume();
         isInFront = true;
+        if (frameDropMonitor != null) {
+            frameDropMonitor.start();
+        }
 
         // clear new message notification
-        NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        notificationManager.cancel(NEW_MESSAGE_NOTIFICATION_ID);
+        messageNotifier.cancel();
     }
 
     @Override
     public void onPause() {
         super.onPause();
         isInFront = false;
+        if (transcriptLog != null) {
+            try {
+                transcriptLog.flush();
+            } catch (IOException e) {
+                Log.w("code", "cannot save transcript", e);
+            }
+        }
+        if (frameDropMonitor != null) {
+            frameDropMonitor.stop();
+            Log.i("code", "frames: " + frameDropMonitor.getFrameCount()
+                    + ", dropped: " + frameDropMonitor.getDroppedFrameCount()
+                    + ", worst: " + frameDropMonitor.getWorstFrameMillis() + " ms");
+            frameDropMonitor.reset();
+            if (avatarBindCount > 0) {
+                Log.i("code", "avatar binds: " + avatarBindCount
+                        + ", average: " + avatarBindNanos / avatarBindCount / 1000 + " us"
+                        + ", drawn: " + avatarCache.getMissCount());
+            }
+            avatarBindNanos = 0;
+            avatarBindCount = 0;
+        }
     }
 
-    @Subscribe(threadMode = ThreadMode.MAIN)
-    public void onMessageEvent(MessageEvent event) {
-        switch (event.getEvent()) {
-            case "socket_receive_message":
-                // show notification if activity is not visible
-                if (!isInFront) {
-                    NotificationCompat.Builder builder = new NotificationCompat.Builder(MessageActivity.this);
-                    builder.setAutoCancel(true)
-                            .setSmallIcon(R.mipmap.ic_launcher)
-                            .setDefaults(NotificationCompat.DEFAULT_ALL)
-                            .setTicker(getString(R.string.notification_new_message))
-                            .setContentTitle(getString(R.string.notification_new_message))
-                            .setContentText(getString(R.string.notification_new_message_from) + " " + chattingWithUserNickName)
-                            .setPriority(NotificationCompat.PRIORITY_MAX)
-                            .setContentIntent(PendingIntent.getActivity(
-                                    MessageActivity.this, 0, new Intent(MessageActivity.this, MessageActivity.class), 0));
-
-                    NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
-                    {
-                        String channelId = "1";
-                        NotificationChannel channel = new NotificationChannel(
-                                channelId,
-                                getString(R.string.notification_channel_name),
-                                NotificationManager.IMPORTANCE_HIGH);
-                        notificationManager.createNotificationChannel(channel);
-                        builder.setChannelId(channelId);
-                    }
+    private final EventChannel.Subscriber<List<Message>> onMessagesReceived = new EventChannel.Subscriber<List<Message>>() {
+        @Override
+        public void onEvent(List<Message> messages) {
+            onSessionMessage();
 
-                    notificationManager.notify(NEW_MESSAGE_NOTIFICATION_ID, builder.build());
-                }
+            // show notification if activity is not visible
+            if (!isInFront) {
+                messageNotifier.onMessages(messages);
+            }
 
-                Message message = (Message) event.getAttachment();
-                messagesAdapter.addToStart(message, true);
-                break;
-            case "socket_user_exited":
-                // exit too
-                if (!exited) {
-                    socket.emit("exit");
-                    exited = true;
+            // RecyclerView queues the inserts and lays them out in one pass; scroll once for the whole frame
+            try {
+                for (int i = 0; i < messages.size(); i++) {
+                    addMessage(messages.get(i));
                 }
-                new ResetEncryptionManagerTask().execute();
-                new AlertDialog.Builder(MessageActivity.this)
-                        .setMessage(R.string.hint_user_exited)
-                        .setPositiveButton(R.string.action_ok, new DialogInterface.OnClickListener() {
-                            @Override
-                            public void onClick(DialogInterface dialogInterface, int i) {}
-                        })
-                        .show();
-                messageInput.getButton().setVisibility(View.INVISIBLE);  // hide send button
-                break;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            // leave the list alone while the user reads older messages
+            if (messageWindow != null && messageWindow.isFollowingNewest()) {
+                messagesList.scrollToPosition(0);
+            }
+        }
+    };
+
+    private final EventChannel.Subscriber<Void> onUserExited = new EventChannel.Subscriber<Void>() {
+        @Override
+        public void onEvent(Void event) {
+            // exit too
+            if (!exited) {
+                outboundQueue.clearMessages();
+                outboundQueue.sendControl("exit");
+                exited = true;
+            }
+            new ResetEncryptionManagerTask().execute();
+            new AlertDialog.Builder(MessageActivity.this)
+                    .setMessage(R.string.hint_user_exited)
+                    .setPositiveButton(R.string.action_ok, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialogInterface, int i) {}
+                    })
+                    .show();
+            messageInput.getButton().setVisibility(View.INVISIBLE);  // hide send button
         }
+    };
+
+    private void subscribeEvents() {
+        // already posted on the main thread
+        AppEvents.MESSAGES_RECEIVED.subscribe(onMessagesReceived);
+        AppEvents.USER_EXITED.subscribeOnMainThread(onUserExited);
+    }
+
+    private void unsubscribeEvents() {
+        AppEvents.MESSAGES_RECEIVED.unsubscribe(onMessagesReceived);
+        AppEvents.USER_EXITED.unsubscribe(onUserExited);
     }
 
     @Override
@@ -192,13 +280,37 @@ public class MessageActivity extends AppCompatActivity
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        if (messageWindow == null && item.getItemId() != R.id.action_exit) {
+            return true;  // the message store is still opening
+        }
         switch (item.getItemId()) {
             case R.id.action_delete:
+                List<Message> selectedMessages = messagesAdapter.getSelectedMessages();
                 messagesAdapter.deleteSelectedMessages();
+                try {
+                    messageWindow.delete(selectedMessages);
+                    searchIndex.delete(selectedMessages);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                if (transcriptLog != null) {
+                    new CompactTranscriptTask().execute();
+                }
                 break;
             case R.id.action_copy:
-                messagesAdapter.copySelectedMessagesText(this, getMessageStringFormatter(), true);
-                Toast.makeText(this, R.string.hint_copied_message, Toast.LENGTH_LONG).show();
+                List<Message> toCopy = new ArrayList<>(messagesAdapter.getSelectedMessages());
+                Collections.reverse(toCopy);  // selected newest first
+                messagesAdapter.unselectAllItems();
+                exportTask = new ExportTranscriptTask(toCopy, null);
+                exportTask.execute();
+                break;
+            case R.id.action_export:
+                // the export is plaintext, so the user picks where it goes instead of it landing in shared storage
+                Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("text/plain")
+                        .putExtra(Intent.EXTRA_TITLE, "clumber-" + System.currentTimeMillis() + ".txt");
+                startActivityForResult(intent, EXPORT_REQUEST_CODE);
                 break;
             case R.id.action_clear:
                 new AlertDialog.Builder(MessageActivity.this)
@@ -210,6 +322,12 @@ public class MessageActivity extends AppCompatActivity
 //                                messages.clear();
                                 messagesAdapter.clear();
                                 messagesAdapter.notifyDataSetChanged();
+                                try {
+                                    messageWindow.clear();
+                                    searchIndex.clear();
+                                } catch (IOException e) {
+                                    throw new RuntimeException(e);
+                                }
                             }
                         })
                         .setNegativeButton(R.string.action_cancel, new DialogInterface.OnClickListener() {
@@ -218,6 +336,9 @@ public class MessageActivity extends AppCompatActivity
                         })
                         .show();
                 break;
+            case R.id.action_search:
+                showSearchDialog();
+                break;
             case R.id.action_exit:
                 onBackPressed();
                 break;
@@ -225,6 +346,15 @@ public class MessageActivity extends AppCompatActivity
         return true;
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == EXPORT_REQUEST_CODE && resultCode == RESULT_OK && data != null && data.getData() != null) {
+            exportTask = new ExportTranscriptTask(null, data.getData());
+            exportTask.execute();
+        }
+    }
+
     @Override
     public void onBackPressed() {
         if (selectionCount == 0) {
@@ -259,6 +389,12 @@ public class MessageActivity extends AppCompatActivity
         setUpMessageAdapter();
         setUpMessageInputListener();
         setUpSocketIO();
+        messageNotifier = new MessageNotifier(this, NEW_MESSAGE_NOTIFICATION_ID,
+                PendingIntent.getActivity(this, 0, new Intent(this, MessageActivity.class), 0),
+                chattingWithUserNickName, MessageNotifier.DEFAULT_MIN_INTERVAL_MS);
+        if (BuildConfig.DEBUG) {
+            frameDropMonitor = new FrameDropMonitor(getWindowManager().getDefaultDisplay().getRefreshRate());
+        }
     }
 
     private void bindView() {
@@ -279,17 +415,121 @@ public class MessageActivity extends AppCompatActivity
     }
 
     private void setUpMessageAdapter() {
-        messagesAdapter = new MessagesListAdapter<>(SELF_SENDER_ID, new ImageLoader() {
+        messagesAdapter = new MessagesListAdapter<>(ParticipantRegistry.SELF_ID, new ImageLoader() {
             @Override
             public void loadImage(ImageView imageView, String url) {
-                Picasso.with(MessageActivity.this).load(url).into(imageView);
+                if (!AvatarCache.isReference(url)) {
+                    imageView.setImageDrawable(null);  // avatars are the only images, and they are drawn locally
+                    return;
+                }
+                long start = frameDropMonitor != null ? System.nanoTime() : 0;
+                ViewGroup.LayoutParams params = imageView.getLayoutParams();
+                int sizePx = params != null && params.width > 0
+                        ? params.width
+                        : Math.round(DEFAULT_AVATAR_SIZE_DP * getResources().getDisplayMetrics().density);
+                imageView.setImageBitmap(avatarCache.get(url, sizePx));
+                if (frameDropMonitor != null) {
+                    avatarBindNanos += System.nanoTime() - start;
+                    avatarBindCount++;
+                }
             }
         });
         messagesAdapter.enableSelectionMode(this);
-//        messagesAdapter.setLoadMoreListener(this);
         this.messagesList.setAdapter(messagesAdapter);
+
+        if (AppSettings.isKeepTranscript(this)) {
+            // the transcript key may come out of the Android Keystore, which is too slow for the main thread
+            new OpenTranscriptTask().execute();
+        } else {
+            try {
+                onMessageStoreOpen(new PagedMessageStore(new File(getCacheDir(), "message-pages"),
+                        PagedMessageStore.DEFAULT_PAGE_SIZE, PagedMessageStore.DEFAULT_MAX_CACHED_PAGES));
+            } catch (IOException e) {
+                // The app cannot keep a long chat without its storage; crash
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void onMessageStoreOpen(PagedMessages store) throws IOException {
+        messageStore = store;
+        // shows the end of the transcript, if there is one
+        messageWindow = new MessageWindow(messageStore, messageDisplay, MessageWindow.DEFAULT_MAX_SHOWN_PAGES);
+        for (int i = 0; i < pendingMessages.size(); i++) {
+            addMessage(pendingMessages.get(i));
+        }
+        pendingMessages.clear();
+        // chatkit's load-more hook only fires while the list grows, and the window keeps it from growing
+        messagesList.addOnScrollListener(pagingListener);
+    }
+
+    /**
+     * One transcript per peer nickname, named by its hash. Anyone can take a nickname, so the user decides whether an
+     * existing transcript is shown again; see {@link OpenTranscriptTask}.
+     */
+    private File getTranscriptDirectory() throws GeneralSecurityException {
+        byte[] digest = MessageDigest.getInstance("SHA-256")
+                .digest(chattingWithUserNickName.getBytes(StandardCharsets.UTF_8));
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            name.append(String.format(Locale.US, "%02x", digest[i]));
+        }
+        return new File(new File(getFilesDir(), "transcripts"), name.toString());
     }
 
+    private final MessageWindow.Display messageDisplay = new MessageWindow.Display() {
+        @Override
+        public void showNewer(List<Message> messages) {
+            for (int i = 0; i < messages.size(); i++) {
+                messagesAdapter.addToStart(messages.get(i), false);
+            }
+        }
+
+        @Override
+        public void showOlder(List<Message> messages) {
+            if (!messages.isEmpty()) {
+                // the adapter reverses the list it gets, into the newest first order it wants for history
+                messagesAdapter.addToEnd(new ArrayList<>(messages), true);
+            }
+        }
+
+        @Override
+        public void hide(List<Message> messages) {
+            if (!messages.isEmpty()) {
+                messagesAdapter.delete(new ArrayList<>(messages));
+            }
+        }
+    };
+
+    private final RecyclerView.OnScrollListener pagingListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            // the adapter must not change inside a scroll callback
+            if (!pagingPosted) {
+                pagingPosted = true;
+                recyclerView.post(pageIn);
+            }
+        }
+    };
+
+    private final Runnable pageIn = new Runnable() {
+        @Override
+        public void run() {
+            pagingPosted = false;
+            // the list is reversed: position 0 is the newest message
+            LinearLayoutManager layoutManager = (LinearLayoutManager) messagesList.getLayoutManager();
+            try {
+                if (layoutManager.findLastVisibleItemPosition() >= layoutManager.getItemCount() - PAGING_THRESHOLD) {
+                    messageWindow.loadOlder();
+                } else if (layoutManager.findFirstVisibleItemPosition() < PAGING_THRESHOLD) {
+                    messageWindow.loadNewer();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
     private void setUpMessageInputListener() {
         messageInput.setInputListener(this);
     }
@@ -298,9 +538,79 @@ public class MessageActivity extends AppCompatActivity
 
     }
 
-    private void postMessage(String text) {
+    private void addMessage(Message message) throws IOException {
+        if (messageWindow == null) {
+            pendingMessages.add(message);
+            return;
+        }
+        messageWindow.add(message);
+        searchIndex.add(messageStore.getMessageCount() - 1, message);
+    }
+
+    private void showSearchDialog() {
+        final EditText queryEditText = new EditText(this);
+        queryEditText.setHint(R.string.hint_search_messages);
+        queryEditText.setSingleLine();
+        new AlertDialog.Builder(MessageActivity.this)
+                .setView(queryEditText)
+                .setPositiveButton(R.string.action_search, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        try {
+                            showSearchResults(queryEditText.getText().toString());
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                })
+                .setNegativeButton(R.string.action_cancel, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {}
+                })
+                .show();
+    }
+
+    private void showSearchResults(String query) throws IOException {
+        int[] docs = searchIndex.search(query, MAX_SEARCH_RESULTS);
+        final List<Integer> foundDocs = new ArrayList<>();
+        final List<Message> found = new ArrayList<>();
+        for (int doc : docs) {
+            Message message = searchIndex.resolve(doc, messageStore);
+            if (message != null) {
+                foundDocs.add(doc);
+                found.add(message);
+            }
+        }
+        if (found.isEmpty()) {
+            Toast.makeText(this, R.string.hint_no_search_results, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        CharSequence[] items = new CharSequence[found.size()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = messageFormatter.format(found.get(i));
+        }
+        new AlertDialog.Builder(MessageActivity.this)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        try {
+                            messageWindow.showPageOf(foundDocs.get(i));
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                        int position = messageWindow.getPositionFromNewest(found.get(i).getId());
+                        if (position >= 0) {
+                            messagesList.scrollToPosition(position);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    private boolean postMessage(String text) {
         Log.i("code", "posting message");
-        new PostMessageTask().execute(text);
+        // encrypted and sent on the outbound queue's sender thread
+        return outboundQueue.offerMessage(text);
     }
 
     @Override
@@ -309,60 +619,244 @@ public class MessageActivity extends AppCompatActivity
         menu.findItem(R.id.action_delete).setVisible(count > 0);
         menu.findItem(R.id.action_copy).setVisible(count > 0);
         menu.findItem(R.id.action_exit).setVisible(count == 0);
+        menu.findItem(R.id.action_search).setVisible(count == 0);
+        menu.findItem(R.id.action_export).setVisible(count == 0);
     }
 
     @Override
     public boolean onSubmit(CharSequence input) {
-        messagesAdapter.addToStart(
-                new Message(AppUtil.getRandomId(), new User(SELF_SENDER_ID, nickname), input.toString()), true);
-        postMessage(input.toString());
+        if (!postMessage(input.toString())) {
+            // the socket cannot keep up; keep the text in the input box
+            Toast.makeText(this, R.string.hint_message_queue_full, Toast.LENGTH_SHORT).show();
+            return false;
+        }
+        onSessionMessage();
+        try {
+            if (messageWindow != null) {
+                messageWindow.showNewest();
+            }
+            addMessage(new Message(IdGenerator.getInstance().nextIdString(), participants.getSelf(nickname),
+                    input.toString()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        messagesList.scrollToPosition(0);
         return true;
     }
 
-    private MessagesListAdapter.Formatter<Message> getMessageStringFormatter() {
-        return new MessagesListAdapter.Formatter<Message>() {
-            @Override
-            public String format(Message message) {
-                String createdAt = new SimpleDateFormat("MMM d, EEE 'at' h:mm a", Locale.getDefault())
-                        .format(message.getCreatedAt());
+    private void onSessionMessage() {
+        SessionStateMachine session = ApplicationSocket.getInstance().getSession();
+        if (session.onMessage(SystemClock.elapsedRealtime())) {
+            Log.i("session", session.describe());
+        }
+    }
 
-                String text = message.getText();
-                if (text == null) text = "[attachment]";
+    /**
+     * Loads the transcript key and opens the transcript, then builds the message window on the main thread.
+     * A transcript with messages in it is shown only if the user says this is the same peer as before.
+     */
+    private class OpenTranscriptTask extends AsyncTask<Void, Void, TranscriptLog> {
+        private Exception error;
 
-                return String.format(Locale.getDefault(), "%s: %s (%s)",
-                        message.getUser().getName(), text, createdAt);
+        @Override
+        protected TranscriptLog doInBackground(Void... voids) {
+            try {
+                return TranscriptLog.open(getTranscriptDirectory(), TranscriptKeys.getAead(MessageActivity.this),
+                        PagedMessageStore.DEFAULT_PAGE_SIZE, TranscriptLog.DEFAULT_SEGMENT_BYTES);
+            } catch (IOException | GeneralSecurityException e) {
+                error = e;
+                return null;
             }
-        };
-    }
+        }
 
-    private class PostMessageTask extends AsyncTask<String, Void, Void> {
         @Override
-        protected Void doInBackground(String... texts) {
-            if (texts.length != 1) {
-                throw new IllegalArgumentException("texts must be of length 1");
+        protected void onPostExecute(TranscriptLog log) {
+            if (error != null) {
+                // The app cannot keep a long chat without its storage; crash
+                throw new RuntimeException(error);
             }
-            String text = texts[0];
-            // encrypt message
-            byte[] ciphertext;
             try {
-                ciphertext = EncryptionManager.getInstance().encrypt(text);
-            } catch (GeneralSecurityException e) {
+                if (isDestroyed()) {
+                    log.close();
+                    return;
+                }
+                transcriptLog = log;
+                if (log.getMessageCount() == 0) {
+                    onMessageStoreOpen(log);
+                    return;
+                }
+            } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            // wrap message
-            JSONObject obj = new JSONObject();
+            new AlertDialog.Builder(MessageActivity.this)
+                    .setTitle(R.string.hint_title_earlier_transcript)
+                    .setMessage(getString(R.string.hint_description_earlier_transcript, chattingWithUserNickName))
+                    .setPositiveButton(R.string.action_show, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialogInterface, int i) {
+                            openTranscript(false);
+                        }
+                    })
+                    .setNegativeButton(R.string.action_start_over, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialogInterface, int i) {
+                            openTranscript(true);
+                        }
+                    })
+                    .setCancelable(false)
+                    .show();
+        }
+
+        private void openTranscript(boolean startOver) {
             try {
-                obj.put("text", ciphertext);
-                obj.put("time", System.currentTimeMillis());
-            } catch (JSONException e) {
+                if (startOver) {
+                    transcriptLog.clear();
+                }
+                onMessageStoreOpen(transcriptLog);
+            } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            // send message
-            socket.emit("send message", obj);
+        }
+    }
+
+    private class CompactTranscriptTask extends AsyncTask<Void, Void, Void> {
+        @Override
+        protected Void doInBackground(Void... voids) {
+            try {
+                transcriptLog.compact();  // remove deleted messages from disk
+            } catch (IOException e) {
+                Log.w("code", "cannot compact transcript", e);
+            }
             return null;
         }
     }
 
+    /**
+     * Writes messages as transcript lines to a document the user created, or to the clipboard when there is none.
+     * If the activity is destroyed meanwhile, the export is cancelled and closes the message store when it stops.
+     */
+    private class ExportTranscriptTask extends AsyncTask<Void, Integer, Boolean>
+            implements TranscriptExporter.ProgressListener, TranscriptExporter.CancellationSignal {
+        private final List<Message> messages;  // oldest first, null for the whole chat
+        private final Uri document;  // null for the clipboard
+        private final StringWriter clipboardText = new StringWriter();
+        private AlertDialog progressDialog;
+
+        ExportTranscriptTask(List<Message> messages, Uri document) {
+            this.messages = messages;
+            this.document = document;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            progressDialog = new AlertDialog.Builder(MessageActivity.this)
+                    .setTitle(getString(R.string.hint_title_exporting_messages))
+                    .setMessage("")
+                    .setView(getLayoutInflater().inflate(R.layout.simple_progress_bar, null))
+                    .setNegativeButton(getString(R.string.action_cancel), new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialogInterface, int i) {
+                            cancel(false);
+                        }
+                    })
+                    .setCancelable(false)
+                    .show();
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... voids) {
+            // the formatter is not thread-safe, so the export gets its own
+            TranscriptExporter exporter = new TranscriptExporter(new TranscriptFormatter(Locale.getDefault()));
+            try {
+                Writer out = document != null
+                        ? new OutputStreamWriter(openDocument(), StandardCharsets.UTF_8)
+                        : clipboardText;
+                try {
+                    if (messages != null) {
+                        exporter.export(messages, out, this, this);
+                    } else {
+                        exporter.export(messageStore, out, this, this);
+                    }
+                } finally {
+                    out.close();
+                }
+                return true;
+            } catch (IOException e) {
+                Log.w("code", "cannot export messages", e);
+                return false;
+            }
+        }
+
+        private OutputStream openDocument() throws IOException {
+            OutputStream stream = getContentResolver().openOutputStream(document);
+            if (stream == null) {
+                throw new IOException("Cannot open " + document);
+            }
+            return stream;
+        }
+
+        @Override
+        public void onProgress(int exported, int total) {
+            publishProgress(exported, total);
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            if (!isFinishing()) {
+                progressDialog.setMessage(getString(R.string.hint_export_progress, values[0], values[1]));
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean exported) {
+            exportTask = null;
+            if (!exported) {
+                deletePartialDocument();
+            }
+            if (isDestroyed()) {
+                closeMessageStore();
+                return;
+            }
+            progressDialog.dismiss();
+            if (!exported) {
+                Toast.makeText(MessageActivity.this, R.string.error_hint_export_failed, Toast.LENGTH_LONG).show();
+            } else if (document != null) {
+                Toast.makeText(MessageActivity.this, R.string.hint_exported, Toast.LENGTH_LONG).show();
+            } else {
+                ClipboardManager clipboard = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
+                clipboard.setPrimaryClip(ClipData.newPlainText(null, clipboardText.toString()));
+                Toast.makeText(MessageActivity.this, R.string.hint_copied_message, Toast.LENGTH_LONG).show();
+            }
+        }
+
+        @Override
+        protected void onCancelled(Boolean exported) {
+            exportTask = null;
+            deletePartialDocument();
+            if (isDestroyed()) {
+                closeMessageStore();
+                return;
+            }
+            progressDialog.dismiss();
+        }
+
+        void dismissProgress() {
+            if (progressDialog != null) {
+                progressDialog.dismiss();
+            }
+        }
+
+        private void deletePartialDocument() {
+            if (document != null) {
+                try {
+                    DocumentsContract.deleteDocument(getContentResolver(), document);
+                } catch (FileNotFoundException e) {
+                    Log.w("code", "cannot delete partial export", e);
+                }
+            }
+        }
+    }
+
     private class ResetEncryptionManagerTask extends AsyncTask<Void, Void, Void> {
         @Override
         protected Void doInBackground(Void... voids) {
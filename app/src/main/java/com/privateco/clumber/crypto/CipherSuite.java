@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.crypto;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Key agreement used to set up the session ratchet, advertised by id in the "send key" payload.
+ * <p>
+ * Constants are declared fastest first. Both peers pick the first constant that both advertise, so the
+ * outcome does not depend on who negotiates. Clients that advertise nothing only speak per-message ECIES P-256.
+ */
+public enum CipherSuite {
+    // cheapest agreement once the peer's key arrives, see SessionRatchetTest#keySetupCost_perCipherSuite; its key
+    // is generated in the pool next to the P-256 keyset, off the handshake
+    X25519_HKDF_SHA256_AES128_GCM("x25519", 0x01),
+    // reuses the ECIES P-256 keysets, so it needs no extra key in the payload
+    P256_HKDF_SHA256_AES128_GCM("p256", 0x02);
+
+    private final String id;
+    private final int flag;  // bit in the compact public key encoding, see PublicKeyCodec
+
+    CipherSuite(String id, int flag) {
+        this.id = id;
+        this.flag = flag;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    int getFlag() {
+        return flag;
+    }
+
+    @Nullable
+    public static CipherSuite fromId(String id) {
+        for (CipherSuite suite : values()) {
+            if (suite.id.equals(id)) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the fastest suite both sides support, or null if they share none
+     */
+    @Nullable
+    public static CipherSuite negotiate(@NonNull Set<CipherSuite> selfSuites, @NonNull Collection<String> peerSuiteIds) {
+        for (CipherSuite suite : values()) {
+            if (selfSuites.contains(suite) && peerSuiteIds.contains(suite.id)) {
+                return suite;
+            }
+        }
+        return null;
+    }
+}
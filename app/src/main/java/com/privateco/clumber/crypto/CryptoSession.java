@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.crypto;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.crypto.tink.HybridDecrypt;
+import com.google.crypto.tink.HybridEncrypt;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.subtle.X25519;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Key material of one chat session together with the primitives built from it.
+ * <p>
+ * A new instance is created for every key pair and every key exchange, and the primitives are built only
+ * then, so callers can share a snapshot without locking. Only its references are fixed: the
+ * {@link SessionRatchet} it holds moves its chains on every encrypt and decrypt, under its own locks.
+ */
+final class CryptoSession {
+    private final KeysetHandle selfPrivateKeyHandle;  // not null
+    private final KeysetHandle selfPublicKeyHandle;  // not null
+    private final HybridDecrypt selfDecryptor;  // not null
+    private final byte[] selfX25519PrivateKey;  // not null, only used by the X25519 cipher suite
+    private final byte[] selfX25519PublicKey;  // not null
+    private final KeysetHandle peerPublicKeyHandle;  // nullable
+    private final HybridEncrypt peerEncryptor;  // nullable, set with peerPublicKeyHandle
+    private final CipherSuite cipherSuite;  // nullable, the suite of sessionRatchet
+    private final SessionRatchet sessionRatchet;  // nullable, set when both peers share a cipher suite
+    private final boolean peerAcceptsCompactKey;
+
+    private CryptoSession(KeysetHandle selfPrivateKeyHandle, KeysetHandle selfPublicKeyHandle,
+                          HybridDecrypt selfDecryptor, byte[] selfX25519PrivateKey, byte[] selfX25519PublicKey,
+                          KeysetHandle peerPublicKeyHandle, HybridEncrypt peerEncryptor,
+                          CipherSuite cipherSuite, SessionRatchet sessionRatchet, boolean peerAcceptsCompactKey) {
+        this.selfPrivateKeyHandle = selfPrivateKeyHandle;
+        this.selfPublicKeyHandle = selfPublicKeyHandle;
+        this.selfDecryptor = selfDecryptor;
+        this.selfX25519PrivateKey = selfX25519PrivateKey;
+        this.selfX25519PublicKey = selfX25519PublicKey;
+        this.peerPublicKeyHandle = peerPublicKeyHandle;
+        this.peerEncryptor = peerEncryptor;
+        this.cipherSuite = cipherSuite;
+        this.sessionRatchet = sessionRatchet;
+        this.peerAcceptsCompactKey = peerAcceptsCompactKey;
+    }
+
+    /**
+     * Session of a fresh key pair, before any peer key is known.
+     * <p>
+     * The X25519 key is generated next to the P-256 keyset rather than instead of it: our key goes out before the
+     * peer's suites are known, and older peers only understand the P-256 keyset.
+     */
+    static CryptoSession fromPrivateKey(@NonNull KeysetHandle selfPrivateKeyHandle) throws GeneralSecurityException {
+        byte[] x25519PrivateKey = X25519.generatePrivateKey();
+        return new CryptoSession(selfPrivateKeyHandle, selfPrivateKeyHandle.getPublicKeysetHandle(),
+                selfPrivateKeyHandle.getPrimitive(HybridDecrypt.class),
+                x25519PrivateKey, X25519.publicFromPrivate(x25519PrivateKey), null, null, null, null, false);
+    }
+
+    /**
+     * Same key pair, talking to the given peer.
+     *
+     * @param cipherSuite the negotiated session ratchet suite, or null for per-message ECIES
+     * @param peerX25519PublicKey required by {@link CipherSuite#X25519_HKDF_SHA256_AES128_GCM}
+     * @param peerAcceptsCompactKey whether the peer advertised {@link EncryptionManager.KeyExchangeFormat#COMPACT}
+     */
+    CryptoSession withPeer(@NonNull KeysetHandle peerPublicKeyHandle, @Nullable CipherSuite cipherSuite,
+                           @Nullable byte[] peerX25519PublicKey, boolean peerAcceptsCompactKey)
+            throws GeneralSecurityException {
+        SessionRatchet sessionRatchet = null;
+        if (cipherSuite != null) {
+            switch (cipherSuite) {
+                case X25519_HKDF_SHA256_AES128_GCM:
+                    if (peerX25519PublicKey == null) {
+                        throw new GeneralSecurityException("Peer did not send an X25519 public key");
+                    }
+                    sessionRatchet = SessionRatchet.establishX25519(selfX25519PrivateKey, peerX25519PublicKey);
+                    break;
+                case P256_HKDF_SHA256_AES128_GCM:
+                    sessionRatchet = SessionRatchet.establishP256(selfPrivateKeyHandle, peerPublicKeyHandle);
+                    break;
+            }
+        }
+        return new CryptoSession(selfPrivateKeyHandle, selfPublicKeyHandle, selfDecryptor,
+                selfX25519PrivateKey, selfX25519PublicKey, peerPublicKeyHandle,
+                peerPublicKeyHandle.getPrimitive(HybridEncrypt.class), cipherSuite, sessionRatchet,
+                peerAcceptsCompactKey);
+    }
+
+    KeysetHandle getSelfPublicKeyHandle() {
+        return selfPublicKeyHandle;
+    }
+
+    byte[] getSelfX25519PublicKey() {
+        return selfX25519PublicKey.clone();
+    }
+
+    @Nullable
+    CipherSuite getCipherSuite() {
+        return cipherSuite;
+    }
+
+    boolean hasPeerPublicKey() {
+        return peerPublicKeyHandle != null;
+    }
+
+    boolean peerAcceptsCompactKey() {
+        return peerAcceptsCompactKey;
+    }
+
+    boolean isSessionRatchetEstablished() {
+        return sessionRatchet != null;
+    }
+
+    byte[] encrypt(byte[] plaintext) throws GeneralSecurityException {
+        if (peerEncryptor == null) {
+            throw new IllegalStateException("Unable to encrypt when peerPublicKeyHandle is null");
+        }
+        if (sessionRatchet != null) {
+            return sessionRatchet.encrypt(plaintext);
+        }
+        return peerEncryptor.encrypt(plaintext, null);
+    }
+
+    byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException {
+        if (SessionRatchet.isRatchetCiphertext(ciphertext)) {
+            if (sessionRatchet == null) {
+                throw new GeneralSecurityException("Received a session ratchet message without a session");
+            }
+            return sessionRatchet.decrypt(ciphertext);
+        }
+        return selfDecryptor.decrypt(ciphertext, null);
+    }
+}
@@ -18,11 +18,13 @@
 
 package com.privateco.clumber.crypto;
 
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
 import com.google.crypto.tink.CleartextKeysetHandle;
-import com.google.crypto.tink.HybridDecrypt;
-import com.google.crypto.tink.HybridEncrypt;
 import com.google.crypto.tink.JsonKeysetReader;
 import com.google.crypto.tink.JsonKeysetWriter;
+import com.google.crypto.tink.KeyTemplate;
 import com.google.crypto.tink.KeyTemplates;
 import com.google.crypto.tink.KeysetHandle;
 import com.google.crypto.tink.hybrid.HybridConfig;
@@ -31,11 +33,57 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class EncryptionManager {
-    private KeysetHandle selfPrivateKeyHandle;  // not null
-    private KeysetHandle selfPublicKeyHandle;  // not null
-    private KeysetHandle peerPublicKeyHandle;  // nullable
+    /**
+     * How chat messages are encrypted once the public keys are exchanged.
+     */
+    public enum Mode {
+        // full ECIES hybrid encryption of every message
+        ECIES,
+        // one key agreement with the negotiated CipherSuite per key exchange, then a symmetric AES-GCM ratchet
+        // per message; falls back to ECIES when the peer shares no suite
+        SESSION_RATCHET
+    }
+
+    /**
+     * How the "send key" event, and a pipelined "entry", carry the public key.
+     */
+    public enum KeyExchangeFormat {
+        // tink JSON keyset in a JSONObject, the only format older clients understand
+        JSON,
+        // PublicKeyCodec bytes as a raw socket.io binary attachment; older clients crash on it, so it is only sent
+        // to a peer that advertised it
+        COMPACT
+    }
+
+    /**
+     * Listed in the "keyFormats" field of the "entry" request and of a JSON key by clients that accept
+     * {@link KeyExchangeFormat#COMPACT}. A server forwards the peer's entry list with "entry: success", which is
+     * the only way to learn it before our own key goes out.
+     */
+    public static final String KEY_FORMAT_COMPACT = "compact";
+
+    private static final String KEY_TEMPLATE_NAME = "ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM";
+
+    private final KeyPairPool keyPairPool;
+    private final PublicKeyCodec publicKeyCodec;
+    // replaced as a whole on every reset and key exchange, never mutated in place;
+    // null until the first use after a reset, which takes a key pair from the pool
+    private final AtomicReference<CryptoSession> session = new AtomicReference<>();
+    private volatile Mode mode = Mode.SESSION_RATCHET;
+    private volatile Set<CipherSuite> enabledCipherSuites = Collections.unmodifiableSet(EnumSet.allOf(CipherSuite.class));
+    private volatile boolean compactKeyExchangeEnabled = true;
+    // from the peer's "entry", forwarded with "entry: success"; until the next reset
+    private volatile boolean peerAdvertisedCompactKey = false;
+    private volatile boolean payloadCompressionEnabled = true;
 
     private static final EncryptionManager instance = new EncryptionManager();
     public static EncryptionManager getInstance() {
@@ -49,24 +97,117 @@ public class EncryptionManager {
             // The app cannot continue if register failed; crash
             throw new RuntimeException(e);
         }
-        reset();
-    }
-
-    public void reset() {
         try {
-            selfPrivateKeyHandle = KeysetHandle.generateNew(KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM"));
-            selfPublicKeyHandle = selfPrivateKeyHandle.getPublicKeysetHandle();
+            KeyTemplate keyTemplate = KeyTemplates.get(KEY_TEMPLATE_NAME);
+            keyPairPool = new KeyPairPool(keyTemplate, KeyPairPool.DEFAULT_DEPTH);
+            publicKeyCodec = new PublicKeyCodec(keyTemplate);
         } catch (GeneralSecurityException e) {
-            // The app cannot continue if key generation failed; crash
+            // The app cannot continue without a key template; crash
             throw new RuntimeException(e);
         }
-        peerPublicKeyHandle = null;
+        // generate in the background instead of blocking the first getInstance()
+        keyPairPool.refill();
+    }
+
+    /**
+     * Drops the current keys. The next session takes a pre-generated key pair from the pool.
+     */
+    public void reset() {
+        session.set(null);
+        peerAdvertisedCompactKey = false;
+    }
+
+    public KeyPairPool getKeyPairPool() {
+        return keyPairPool;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Takes effect from the next key exchange.
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * What {@code SharePublicKeyTask} and {@code EnterRoomTask} send: JSON, unless compact keys are enabled and the
+     * current peer advertised that it accepts them, in its "entry" or its own key. A key sent with "entry" is
+     * therefore always JSON, since there is no peer yet. Both formats are always accepted on receipt.
+     */
+    public KeyExchangeFormat getKeyExchangeFormat() {
+        return compactKeyExchangeEnabled && (peerAdvertisedCompactKey || currentSession().peerAcceptsCompactKey())
+                ? KeyExchangeFormat.COMPACT
+                : KeyExchangeFormat.JSON;
+    }
+
+    /**
+     * Records whether the peer listed {@link #KEY_FORMAT_COMPACT} in its "entry" request.
+     */
+    public void setPeerAdvertisedCompactKey(boolean peerAdvertisedCompactKey) {
+        this.peerAdvertisedCompactKey = peerAdvertisedCompactKey;
+    }
+
+    public boolean isCompactKeyExchangeEnabled() {
+        return compactKeyExchangeEnabled;
+    }
+
+    /**
+     * Whether our JSON key advertises {@link #KEY_FORMAT_COMPACT} and compact keys go to peers that advertised it.
+     */
+    public void setCompactKeyExchangeEnabled(boolean compactKeyExchangeEnabled) {
+        this.compactKeyExchangeEnabled = compactKeyExchangeEnabled;
+    }
+
+    public boolean isPayloadCompressionEnabled() {
+        return payloadCompressionEnabled;
+    }
+
+    /**
+     * Deflates outgoing messages with {@link PayloadCompressor} when that makes them shorter. Only applies to
+     * session ratchet messages, since older clients that only speak ECIES do not understand the flag byte.
+     * Compressed messages are always accepted on receipt.
+     */
+    public void setPayloadCompressionEnabled(boolean payloadCompressionEnabled) {
+        this.payloadCompressionEnabled = payloadCompressionEnabled;
+    }
+
+    /**
+     * Takes effect from the next key exchange.
+     */
+    public void setEnabledCipherSuites(@NonNull Set<CipherSuite> cipherSuites) {
+        this.enabledCipherSuites = Collections.unmodifiableSet(EnumSet.copyOf(cipherSuites));
+    }
+
+    /**
+     * Cipher suites the "send key" payload should advertise to the peer, fastest first; empty in ECIES mode.
+     */
+    public List<CipherSuite> getAdvertisedCipherSuites() {
+        List<CipherSuite> advertised = new ArrayList<>();
+        if (mode == Mode.SESSION_RATCHET) {
+            for (CipherSuite suite : CipherSuite.values()) {
+                if (enabledCipherSuites.contains(suite)) {
+                    advertised.add(suite);
+                }
+            }
+        }
+        return advertised;
+    }
+
+    /**
+     * Session agreement key sent along with the public keyset for {@link CipherSuite#X25519_HKDF_SHA256_AES128_GCM}.
+     */
+    public byte[] getSelfX25519PublicKey() {
+        return currentSession().getSelfX25519PublicKey();
     }
 
     public byte[] getSelfPublicKeyJson() {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         try {
-            CleartextKeysetHandle.write(selfPublicKeyHandle, JsonKeysetWriter.withOutputStream(outputStream));
+            CleartextKeysetHandle.write(currentSession().getSelfPublicKeyHandle(),
+                    JsonKeysetWriter.withOutputStream(outputStream));
         } catch (IOException e) {
             // The app cannot continue if public key is not extracted; crash
             throw new RuntimeException(e);
@@ -74,25 +215,106 @@ public class EncryptionManager {
         return outputStream.toByteArray();
     }
 
+    /**
+     * Public key, advertised cipher suites and X25519 key in the {@link KeyExchangeFormat#COMPACT} encoding.
+     */
+    public byte[] getSelfPublicKeyCompact() {
+        CryptoSession current = currentSession();
+        try {
+            return publicKeyCodec.encode(current.getSelfPublicKeyHandle(), getAdvertisedCipherSuites(),
+                    current.getSelfX25519PublicKey());
+        } catch (GeneralSecurityException e) {
+            // The app cannot continue if public key is not extracted; crash
+            throw new RuntimeException(e);
+        }
+    }
+
     public boolean hasPeerPublicKey() {
-        return peerPublicKeyHandle != null;
+        return currentSession().hasPeerPublicKey();
+    }
+
+    public boolean isSessionRatchetEstablished() {
+        return currentSession().isSessionRatchetEstablished();
+    }
+
+    /**
+     * @return the negotiated session ratchet suite, or null when messages use per-message ECIES
+     */
+    @Nullable
+    public CipherSuite getNegotiatedCipherSuite() {
+        return currentSession().getCipherSuite();
     }
 
     public void resetPeerPublicKeyHandle(byte[] peerPublicKeyBytes) throws GeneralSecurityException, IOException {
-        peerPublicKeyHandle = KeysetHandle.readNoSecret(JsonKeysetReader.withBytes(peerPublicKeyBytes));
+        resetPeerPublicKeyHandle(peerPublicKeyBytes, Collections.<String>emptyList(), null, false);
+    }
+
+    /**
+     * @param peerCipherSuiteIds suites the peer advertised with its key, empty for older clients
+     * @param peerX25519PublicKey the peer's session agreement key, null if it did not send one
+     * @param peerAcceptsCompactKey whether the peer listed {@link #KEY_FORMAT_COMPACT} in its key formats
+     */
+    public void resetPeerPublicKeyHandle(byte[] peerPublicKeyBytes, @NonNull Collection<String> peerCipherSuiteIds,
+                                         @Nullable byte[] peerX25519PublicKey, boolean peerAcceptsCompactKey)
+            throws GeneralSecurityException, IOException {
+        KeysetHandle peerPublicKeyHandle = KeysetHandle.readNoSecret(JsonKeysetReader.withBytes(peerPublicKeyBytes));
+        resetPeer(new PublicKeyCodec.PeerPublicKey(
+                peerPublicKeyHandle, new ArrayList<>(peerCipherSuiteIds), peerX25519PublicKey, peerAcceptsCompactKey));
+    }
+
+    /**
+     * @param encoded the peer's key in the {@link KeyExchangeFormat#COMPACT} encoding
+     */
+    public void resetPeerPublicKeyCompact(byte[] encoded) throws GeneralSecurityException {
+        resetPeer(publicKeyCodec.decode(encoded));
+    }
+
+    private void resetPeer(PublicKeyCodec.PeerPublicKey peerPublicKey) throws GeneralSecurityException {
+        Set<CipherSuite> selfCipherSuites = EnumSet.noneOf(CipherSuite.class);
+        selfCipherSuites.addAll(getAdvertisedCipherSuites());
+        CipherSuite cipherSuite = CipherSuite.negotiate(selfCipherSuites, peerPublicKey.cipherSuiteIds);
+        // retry if reset() published a new key pair while the peer session was being built
+        CryptoSession current;
+        CryptoSession updated;
+        do {
+            current = currentSession();
+            updated = current.withPeer(peerPublicKey.publicKeyHandle, cipherSuite, peerPublicKey.x25519PublicKey,
+                    peerPublicKey.acceptsCompactKey);
+        } while (!session.compareAndSet(current, updated));
     }
 
     public byte[] encrypt(String input) throws GeneralSecurityException {
-        if (peerPublicKeyHandle == null) {
-            throw new IllegalStateException("Unable to encrypt when peerPublicKeyHandle is null");
+        CryptoSession current = currentSession();
+        byte[] plaintext = input.getBytes(StandardCharsets.UTF_8);
+        if (current.isSessionRatchetEstablished()) {
+            plaintext = PayloadCompressor.frame(plaintext, payloadCompressionEnabled);
         }
-        HybridEncrypt encryptor = peerPublicKeyHandle.getPrimitive(HybridEncrypt.class);
-        return encryptor.encrypt(input.getBytes(StandardCharsets.UTF_8), null);
+        return current.encrypt(plaintext);
     }
 
     public String decrypt(byte[] ciphertext) throws GeneralSecurityException {
-        HybridDecrypt decryptor = selfPrivateKeyHandle.getPrimitive(HybridDecrypt.class);
-        byte[] plaintext = decryptor.decrypt(ciphertext, null);
+        byte[] plaintext = currentSession().decrypt(ciphertext);
+        // session ratchet payloads always carry the PayloadCompressor flag byte, ECIES payloads never do
+        if (SessionRatchet.isRatchetCiphertext(ciphertext)) {
+            plaintext = PayloadCompressor.unframe(plaintext);
+        }
         return new String(plaintext, StandardCharsets.UTF_8);
     }
+
+    /**
+     * The current snapshot; encrypt and decrypt on it always see the same keys.
+     */
+    CryptoSession currentSession() {
+        CryptoSession current = session.get();
+        while (current == null) {
+            try {
+                session.compareAndSet(null, keyPairPool.take());
+            } catch (GeneralSecurityException e) {
+                // The app cannot continue if key generation failed; crash
+                throw new RuntimeException(e);
+            }
+            current = session.get();
+        }
+        return current;
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.crypto;
+
+import android.support.annotation.NonNull;
+
+import com.google.crypto.tink.KeyTemplate;
+import com.google.crypto.tink.KeysetHandle;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Key pairs generated ahead of time on a low priority background thread.
+ * <p>
+ * Taking a key pair is a queue poll as long as the pool keeps up; only a miss generates synchronously.
+ */
+public class KeyPairPool {
+    public static final int DEFAULT_DEPTH = 2;
+
+    private final KeyTemplate keyTemplate;
+    private final BlockingQueue<CryptoSession> keyPairs = new LinkedBlockingQueue<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "key-pair-pool");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private volatile int depth;
+    private int scheduledCount = 0;  // guarded by this
+
+    KeyPairPool(@NonNull KeyTemplate keyTemplate, int depth) {
+        this.keyTemplate = keyTemplate;
+        this.depth = depth;
+    }
+
+    /**
+     * Takes a pooled key pair, or generates one on the calling thread if the pool is empty, and schedules a refill.
+     */
+    CryptoSession take() throws GeneralSecurityException {
+        CryptoSession keyPair = keyPairs.poll();
+        if (keyPair != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+            keyPair = generate();
+        }
+        refill();
+        return keyPair;
+    }
+
+    /**
+     * Schedules generation until the pool holds {@link #getDepth()} key pairs.
+     */
+    synchronized void refill() {
+        while (keyPairs.size() + scheduledCount < depth) {
+            scheduledCount++;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    CryptoSession keyPair = null;
+                    try {
+                        keyPair = generate();
+                    } catch (GeneralSecurityException e) {
+                        // leave the slot empty; take() generates synchronously and reports the failure
+                    } finally {
+                        // hands the slot over in one step, so a concurrent refill never counts it twice
+                        synchronized (KeyPairPool.this) {
+                            scheduledCount--;
+                            if (keyPair != null && keyPairs.size() < KeyPairPool.this.depth) {
+                                keyPairs.offer(keyPair);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth must not be negative");
+        }
+        this.depth = depth;
+        while (keyPairs.size() > depth) {
+            keyPairs.poll();
+        }
+        refill();
+    }
+
+    public int size() {
+        return keyPairs.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    // package-private so tests can make generation fail
+    CryptoSession generate() throws GeneralSecurityException {
+        return CryptoSession.fromPrivateKey(KeysetHandle.generateNew(keyTemplate));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of message plaintext before encryption.
+ * <p>
+ * Every framed payload starts with a flag byte. Raw deflate with a built-in chat dictionary is only used when
+ * it is actually shorter than the UTF-8 bytes, so short lines never grow. The dictionary is part of the wire
+ * format: changing it needs a new flag value.
+ */
+final class PayloadCompressor {
+    static final byte FLAG_RAW = 0x00;
+    static final byte FLAG_DEFLATE_DICTIONARY_V1 = 0x01;
+    // guards against decompression bombs; far above anything MessageInput lets a user type
+    private static final int MAX_INFLATED_LENGTH = 1024 * 1024;
+
+    // most frequent phrases last, deflate finds near matches more cheaply
+    private static final byte[] DICTIONARY = (""
+            + "please thanks thank you sorry okay sure maybe tomorrow tonight today yesterday weekend "
+            + "what when where why how who which would could should will can do you know think "
+            + "I'm I am you are we are it's that's don't can't didn't won't haha lol omg btw "
+            + "message call meet home work time later now good morning good night see you "
+            + "谢谢 不好意思 没关系 可以 不可以 明天 今天 昨天 晚上 早上 周末 时间 地方 "
+            + "什么 怎么 为什么 哪里 知道 觉得 现在 一下 一起 还是 但是 因为 所以 如果 "
+            + "好的 好吧 哈哈哈 嗯嗯 是的 不是 没有 我们 你们 他们 这个 那个 我 你 的 了 吗 呢 吧 啊 ")
+            .getBytes(StandardCharsets.UTF_8);
+
+    // Deflater and Inflater hold native zlib state that is costly to set up, so each thread keeps one
+    private static final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_COMPRESSION, true);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private PayloadCompressor() {
+    }
+
+    /**
+     * @param compress false to only frame the payload
+     */
+    static byte[] frame(byte[] plaintext, boolean compress) {
+        if (compress) {
+            byte[] compressed = deflate(plaintext);
+            if (compressed.length < plaintext.length) {
+                return prepend(FLAG_DEFLATE_DICTIONARY_V1, compressed);
+            }
+        }
+        return prepend(FLAG_RAW, plaintext);
+    }
+
+    static byte[] unframe(byte[] payload) throws GeneralSecurityException {
+        if (payload.length == 0) {
+            throw new GeneralSecurityException("Empty payload");
+        }
+        byte[] body = Arrays.copyOfRange(payload, 1, payload.length);
+        switch (payload[0]) {
+            case FLAG_RAW:
+                return body;
+            case FLAG_DEFLATE_DICTIONARY_V1:
+                return inflate(body);
+            default:
+                throw new GeneralSecurityException("Unknown payload flag " + payload[0]);
+        }
+    }
+
+    private static byte[] deflate(byte[] input) {
+        Deflater deflater = PayloadCompressor.deflater.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(input.length);
+        byte[] buffer = new byte[Math.max(64, input.length)];
+        while (!deflater.finished()) {
+            outputStream.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] input) throws GeneralSecurityException {
+        Inflater inflater = PayloadCompressor.inflater.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(input);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(input.length * 4);
+        byte[] buffer = new byte[Math.max(256, input.length * 4)];
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new GeneralSecurityException("Truncated compressed payload");
+                }
+                outputStream.write(buffer, 0, length);
+                if (outputStream.size() > MAX_INFLATED_LENGTH) {
+                    throw new GeneralSecurityException("Compressed payload inflates beyond the limit");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new GeneralSecurityException("Malformed compressed payload", e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] prepend(byte flag, byte[] body) {
+        byte[] framed = new byte[body.length + 1];
+        framed[0] = flag;
+        System.arraycopy(body, 0, framed, 1, body.length);
+        return framed;
+    }
+}
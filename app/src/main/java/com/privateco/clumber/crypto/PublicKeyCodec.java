@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.crypto;
+
+import android.support.annotation.NonNull;
+
+import com.google.crypto.tink.CleartextKeysetHandle;
+import com.google.crypto.tink.KeyTemplate;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.proto.EciesAeadHkdfKeyFormat;
+import com.google.crypto.tink.proto.EciesAeadHkdfParams;
+import com.google.crypto.tink.proto.EciesAeadHkdfPublicKey;
+import com.google.crypto.tink.proto.KeyData;
+import com.google.crypto.tink.proto.KeyStatusType;
+import com.google.crypto.tink.proto.Keyset;
+import com.google.crypto.tink.proto.OutputPrefixType;
+import com.google.crypto.tink.shaded.protobuf.ByteString;
+import com.google.crypto.tink.shaded.protobuf.ExtensionRegistryLite;
+import com.google.crypto.tink.shaded.protobuf.InvalidProtocolBufferException;
+import com.google.crypto.tink.subtle.EllipticCurves;
+
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.spec.ECPoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.privateco.clumber.annotation.Immutable;
+
+/**
+ * Compact binary encoding of everything the "send key" event carries, as an alternative to the JSON keyset.
+ * <p>
+ * Layout, 104 bytes in total:
+ * <pre>
+ * version (1) | key params (1) | tink key id (4) | uncompressed P-256 point (65) | cipher suite flags (1) | X25519 key (32)
+ * </pre>
+ * The key params byte stands for the ECIES template parameters, which therefore never go over the wire.
+ * The tink key id is kept because every ECIES ciphertext is prefixed with it. The point is sent uncompressed
+ * because decompressing it on receipt costs more parse time than the 32 bytes it saves; the coordinates are
+ * sliced out as they are.
+ */
+final class PublicKeyCodec {
+    static final byte VERSION = 1;
+    private static final byte KEY_PARAMS_ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM = 1;
+    private static final int POINT_LENGTH = 65;
+    private static final byte UNCOMPRESSED_POINT_PREFIX = 0x04;
+    private static final int X25519_KEY_LENGTH = 32;
+    static final int ENCODED_LENGTH = 1 + 1 + 4 + POINT_LENGTH + 1 + X25519_KEY_LENGTH;
+    private static final String PUBLIC_KEY_TYPE_URL = "type.googleapis.com/google.crypto.tink.EciesAeadHkdfPublicKey";
+
+    private final EciesAeadHkdfParams params;
+
+    PublicKeyCodec(@NonNull KeyTemplate keyTemplate) throws GeneralSecurityException {
+        try {
+            this.params = EciesAeadHkdfKeyFormat.parseFrom(
+                    keyTemplate.getValue(), ExtensionRegistryLite.getEmptyRegistry()).getParams();
+        } catch (InvalidProtocolBufferException e) {
+            throw new GeneralSecurityException("Unable to parse ECIES key template", e);
+        }
+    }
+
+    byte[] encode(@NonNull KeysetHandle selfPublicKeyHandle, @NonNull List<CipherSuite> cipherSuites,
+                  @NonNull byte[] x25519PublicKey) throws GeneralSecurityException {
+        Keyset.Key key = primaryKey(CleartextKeysetHandle.getKeyset(selfPublicKeyHandle));
+        EciesAeadHkdfPublicKey publicKey;
+        try {
+            publicKey = EciesAeadHkdfPublicKey.parseFrom(key.getKeyData().getValue(),
+                    ExtensionRegistryLite.getEmptyRegistry());
+        } catch (InvalidProtocolBufferException e) {
+            throw new GeneralSecurityException("Unable to parse ECIES public key", e);
+        }
+        if (!publicKey.getParams().equals(params) || key.getOutputPrefixType() != OutputPrefixType.TINK) {
+            throw new GeneralSecurityException("Public key does not use the compact encoding parameters");
+        }
+        if (x25519PublicKey.length != X25519_KEY_LENGTH) {
+            throw new GeneralSecurityException("Invalid X25519 public key length");
+        }
+
+        ECPoint point = new ECPoint(new BigInteger(1, publicKey.getX().toByteArray()),
+                new BigInteger(1, publicKey.getY().toByteArray()));
+        int cipherSuiteFlags = 0;
+        for (CipherSuite suite : cipherSuites) {
+            cipherSuiteFlags |= suite.getFlag();
+        }
+        return ByteBuffer.allocate(ENCODED_LENGTH)
+                .put(VERSION)
+                .put(KEY_PARAMS_ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM)
+                .putInt(key.getKeyId())
+                .put(EllipticCurves.pointEncode(EllipticCurves.CurveType.NIST_P256,
+                        EllipticCurves.PointFormatType.UNCOMPRESSED, point))
+                .put((byte) cipherSuiteFlags)
+                .put(x25519PublicKey)
+                .array();
+    }
+
+    PeerPublicKey decode(@NonNull byte[] encoded) throws GeneralSecurityException {
+        if (encoded.length != ENCODED_LENGTH) {
+            throw new GeneralSecurityException("Invalid compact public key length " + encoded.length);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        byte[] encodedPoint = new byte[POINT_LENGTH];
+        byte[] x25519PublicKey = new byte[X25519_KEY_LENGTH];
+        int keyId;
+        int cipherSuiteFlags;
+        try {
+            if (buffer.get() != VERSION) {
+                throw new GeneralSecurityException("Unsupported compact public key version");
+            }
+            if (buffer.get() != KEY_PARAMS_ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM) {
+                throw new GeneralSecurityException("Unsupported compact public key parameters");
+            }
+            keyId = buffer.getInt();
+            buffer.get(encodedPoint);
+            cipherSuiteFlags = buffer.get() & 0xff;
+            buffer.get(x25519PublicKey);
+        } catch (BufferUnderflowException e) {
+            throw new GeneralSecurityException("Truncated compact public key", e);
+        }
+
+        // the point is checked to be on the curve when the peer's HybridEncrypt primitive is built
+        if (encodedPoint[0] != UNCOMPRESSED_POINT_PREFIX) {
+            throw new GeneralSecurityException("Invalid uncompressed point");
+        }
+        int coordinateLength = (POINT_LENGTH - 1) / 2;
+        EciesAeadHkdfPublicKey publicKey = EciesAeadHkdfPublicKey.newBuilder()
+                .setVersion(0)
+                .setParams(params)
+                .setX(ByteString.copyFrom(encodedPoint, 1, coordinateLength))
+                .setY(ByteString.copyFrom(encodedPoint, 1 + coordinateLength, coordinateLength))
+                .build();
+        Keyset keyset = Keyset.newBuilder()
+                .setPrimaryKeyId(keyId)
+                .addKey(Keyset.Key.newBuilder()
+                        .setKeyData(KeyData.newBuilder()
+                                .setTypeUrl(PUBLIC_KEY_TYPE_URL)
+                                .setValue(publicKey.toByteString())
+                                .setKeyMaterialType(KeyData.KeyMaterialType.ASYMMETRIC_PUBLIC))
+                        .setStatus(KeyStatusType.ENABLED)
+                        .setKeyId(keyId)
+                        .setOutputPrefixType(OutputPrefixType.TINK))
+                .build();
+
+        List<String> cipherSuiteIds = new ArrayList<>();
+        for (CipherSuite suite : CipherSuite.values()) {
+            if ((cipherSuiteFlags & suite.getFlag()) != 0) {
+                cipherSuiteIds.add(suite.getId());
+            }
+        }
+        // built in memory and holds public material only, so there is nothing to gain from a serialize and parse round trip
+        // a peer that sends compact keys accepts them
+        return new PeerPublicKey(CleartextKeysetHandle.fromKeyset(keyset), cipherSuiteIds, x25519PublicKey, true);
+    }
+
+    private static Keyset.Key primaryKey(Keyset keyset) throws GeneralSecurityException {
+        for (Keyset.Key key : keyset.getKeyList()) {
+            if (key.getKeyId() == keyset.getPrimaryKeyId()) {
+                return key;
+            }
+        }
+        throw new GeneralSecurityException("Keyset has no primary key");
+    }
+
+    /**
+     * What a peer sent with its key, in either encoding.
+     */
+    @Immutable
+    static final class PeerPublicKey {
+        final KeysetHandle publicKeyHandle;
+        final List<String> cipherSuiteIds;  // empty for older clients
+        final byte[] x25519PublicKey;  // nullable
+        final boolean acceptsCompactKey;
+
+        PeerPublicKey(KeysetHandle publicKeyHandle, List<String> cipherSuiteIds, byte[] x25519PublicKey,
+                      boolean acceptsCompactKey) {
+            this.publicKeyHandle = publicKeyHandle;
+            this.cipherSuiteIds = Collections.unmodifiableList(cipherSuiteIds);
+            this.x25519PublicKey = x25519PublicKey;
+            this.acceptsCompactKey = acceptsCompactKey;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.crypto;
+
+import com.google.crypto.tink.CleartextKeysetHandle;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.proto.EciesAeadHkdfPrivateKey;
+import com.google.crypto.tink.proto.EciesAeadHkdfPublicKey;
+import com.google.crypto.tink.proto.Keyset;
+import com.google.crypto.tink.shaded.protobuf.ExtensionRegistryLite;
+import com.google.crypto.tink.shaded.protobuf.InvalidProtocolBufferException;
+import com.google.crypto.tink.subtle.AesGcmJce;
+import com.google.crypto.tink.subtle.EllipticCurves;
+import com.google.crypto.tink.subtle.Hkdf;
+import com.google.crypto.tink.subtle.X25519;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Symmetric hash ratchet used once both peers have exchanged their public keys.
+ * <p>
+ * The shared secret is agreed once per key exchange (ECDH with the negotiated {@link CipherSuite}) and expanded
+ * by HKDF into one chain key per direction. Each message advances its chain with HMAC-SHA256 and is sealed by
+ * AES-GCM under the derived message key, so no public key operation happens per message.
+ * <p>
+ * Receiving derives the message key without moving the chain and commits only once AES-GCM has authenticated the
+ * message, so a forged or corrupted frame leaves the chain and the skipped keys as they were.
+ */
+class SessionRatchet {
+    // first byte of every ratchet ciphertext; never used as a tink output prefix (0x00 or 0x01)
+    static final byte CIPHERTEXT_MARKER = (byte) 0x80;
+    private static final int HEADER_LENGTH = 1 + 4;  // marker + message counter
+    private static final int CHAIN_KEY_LENGTH = 32;
+    private static final int MESSAGE_KEY_LENGTH = 16;  // AES-128-GCM, same strength as the ECIES template
+    private static final int MAX_SKIPPED_MESSAGE_KEYS = 1024;
+    private static final String HKDF_INFO_P256 = "clumber session ratchet v1";
+    private static final String HKDF_INFO_X25519 = "clumber session ratchet v1 x25519";
+    private static final byte[] MESSAGE_KEY_SEED = {0x01};
+    private static final byte[] CHAIN_KEY_SEED = {0x02};
+
+    private final Chain sendingChain;
+    private final Chain receivingChain;
+    // message keys of receiving counters that were skipped over, so late messages can still be opened
+    private final Map<Integer, byte[]> skippedMessageKeys = new LinkedHashMap<Integer, byte[]>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            // drop the oldest skipped keys so that a lossy peer cannot grow the map without bound
+            return size() > MAX_SKIPPED_MESSAGE_KEYS;
+        }
+    };
+
+    private SessionRatchet(byte[] sendingChainKey, byte[] receivingChainKey) {
+        this.sendingChain = new Chain(sendingChainKey);
+        this.receivingChain = new Chain(receivingChainKey);
+    }
+
+    /**
+     * {@link CipherSuite#P256_HKDF_SHA256_AES128_GCM}: ECDH over the two ECIES P-256 keysets.
+     */
+    static SessionRatchet establishP256(KeysetHandle selfPrivateKeyHandle, KeysetHandle peerPublicKeyHandle)
+            throws GeneralSecurityException {
+        EciesAeadHkdfPrivateKey selfPrivateKey;
+        EciesAeadHkdfPublicKey peerPublicKey;
+        try {
+            selfPrivateKey = EciesAeadHkdfPrivateKey.parseFrom(
+                    primaryKeyValue(selfPrivateKeyHandle), ExtensionRegistryLite.getEmptyRegistry());
+            peerPublicKey = EciesAeadHkdfPublicKey.parseFrom(
+                    primaryKeyValue(peerPublicKeyHandle), ExtensionRegistryLite.getEmptyRegistry());
+        } catch (InvalidProtocolBufferException e) {
+            throw new GeneralSecurityException("Unable to parse ECIES key material", e);
+        }
+
+        ECPrivateKey privateKey = EllipticCurves.getEcPrivateKey(
+                EllipticCurves.CurveType.NIST_P256, selfPrivateKey.getKeyValue().toByteArray());
+        ECPublicKey selfPublic = toEcPublicKey(selfPrivateKey.getPublicKey());
+        ECPublicKey peerPublic = toEcPublicKey(peerPublicKey);
+        byte[] sharedSecret = EllipticCurves.computeSharedSecret(privateKey, peerPublic);
+        return fromSharedSecret(sharedSecret, encodePoint(selfPublic), encodePoint(peerPublic), HKDF_INFO_P256);
+    }
+
+    /**
+     * {@link CipherSuite#X25519_HKDF_SHA256_AES128_GCM}: X25519 over the session agreement keys.
+     */
+    static SessionRatchet establishX25519(byte[] selfPrivateKey, byte[] peerPublicKey) throws GeneralSecurityException {
+        byte[] sharedSecret = X25519.computeSharedSecret(selfPrivateKey, peerPublicKey);
+        return fromSharedSecret(sharedSecret, X25519.publicFromPrivate(selfPrivateKey), peerPublicKey, HKDF_INFO_X25519);
+    }
+
+    private static SessionRatchet fromSharedSecret(byte[] sharedSecret, byte[] selfPublicKey, byte[] peerPublicKey,
+                                                   String hkdfInfo) throws GeneralSecurityException {
+        // both peers must agree on which half of the key material belongs to which direction,
+        // so the halves are assigned by ordering the two public keys
+        int order = compare(selfPublicKey, peerPublicKey);
+        if (order == 0) {
+            throw new GeneralSecurityException("Peer public key equals self public key");
+        }
+        byte[] lower = order < 0 ? selfPublicKey : peerPublicKey;
+        byte[] higher = order < 0 ? peerPublicKey : selfPublicKey;
+        byte[] salt = ByteBuffer.allocate(lower.length + higher.length).put(lower).put(higher).array();
+
+        byte[] keyMaterial = Hkdf.computeHkdf("HMACSHA256", sharedSecret, salt,
+                hkdfInfo.getBytes(StandardCharsets.UTF_8), 2 * CHAIN_KEY_LENGTH);
+        byte[] lowerChainKey = Arrays.copyOfRange(keyMaterial, 0, CHAIN_KEY_LENGTH);
+        byte[] higherChainKey = Arrays.copyOfRange(keyMaterial, CHAIN_KEY_LENGTH, 2 * CHAIN_KEY_LENGTH);
+        return order < 0
+                ? new SessionRatchet(lowerChainKey, higherChainKey)
+                : new SessionRatchet(higherChainKey, lowerChainKey);
+    }
+
+    static boolean isRatchetCiphertext(byte[] ciphertext) {
+        return ciphertext.length > HEADER_LENGTH && ciphertext[0] == CIPHERTEXT_MARKER;
+    }
+
+    byte[] encrypt(byte[] plaintext) throws GeneralSecurityException {
+        int counter;
+        byte[] messageKey;
+        synchronized (sendingChain) {
+            counter = sendingChain.counter;
+            messageKey = sendingChain.next();
+        }
+        byte[] header = ByteBuffer.allocate(HEADER_LENGTH).put(CIPHERTEXT_MARKER).putInt(counter).array();
+        byte[] sealed = new AesGcmJce(messageKey).encrypt(plaintext, header);
+        return ByteBuffer.allocate(HEADER_LENGTH + sealed.length).put(header).put(sealed).array();
+    }
+
+    byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException {
+        if (!isRatchetCiphertext(ciphertext)) {
+            throw new GeneralSecurityException("Not a session ratchet ciphertext");
+        }
+        byte[] header = Arrays.copyOfRange(ciphertext, 0, HEADER_LENGTH);
+        int counter = ByteBuffer.wrap(header, 1, 4).getInt();
+
+        byte[] messageKey;
+        Chain.Advance advance = null;
+        synchronized (receivingChain) {
+            if (counter < receivingChain.counter) {
+                messageKey = skippedMessageKeys.get(counter);
+                if (messageKey == null) {
+                    throw new GeneralSecurityException("Message " + counter + " was already decrypted or expired");
+                }
+            } else {
+                advance = receivingChain.peek(counter);
+                messageKey = advance.messageKeys[advance.messageKeys.length - 1];
+            }
+        }
+        // throws for a forged, corrupted or truncated frame, before anything changed
+        byte[] plaintext = new AesGcmJce(messageKey).decrypt(
+                Arrays.copyOfRange(ciphertext, HEADER_LENGTH, ciphertext.length), header);
+        synchronized (receivingChain) {
+            consume(counter, advance);
+        }
+        return plaintext;
+    }
+
+    /**
+     * Commits an authenticated message: moves the chain past it, or forgets its skipped key. Another message may
+     * have been committed since the key was derived, so this works from the chain's current state.
+     * Must hold the receivingChain lock.
+     */
+    private void consume(int counter, Chain.Advance advance) throws GeneralSecurityException {
+        if (counter >= receivingChain.counter) {
+            if (advance == null || advance.fromCounter != receivingChain.counter) {
+                advance = receivingChain.peek(counter);
+            }
+            for (int i = 0; i < advance.messageKeys.length - 1; i++) {
+                skippedMessageKeys.put(advance.fromCounter + i, advance.messageKeys[i]);
+            }
+            receivingChain.apply(advance);
+        } else if (skippedMessageKeys.remove(counter) == null) {
+            // a copy of the same message was opened concurrently
+            throw new GeneralSecurityException("Message " + counter + " was already decrypted or expired");
+        }
+    }
+
+    private static byte[] primaryKeyValue(KeysetHandle handle) throws GeneralSecurityException {
+        Keyset keyset = CleartextKeysetHandle.getKeyset(handle);
+        for (Keyset.Key key : keyset.getKeyList()) {
+            if (key.getKeyId() == keyset.getPrimaryKeyId()) {
+                return key.getKeyData().getValue().toByteArray();
+            }
+        }
+        throw new GeneralSecurityException("Keyset has no primary key");
+    }
+
+    private static ECPublicKey toEcPublicKey(EciesAeadHkdfPublicKey publicKey) throws GeneralSecurityException {
+        return EllipticCurves.getEcPublicKey(EllipticCurves.CurveType.NIST_P256,
+                publicKey.getX().toByteArray(), publicKey.getY().toByteArray());
+    }
+
+    private static byte[] encodePoint(ECPublicKey publicKey) throws GeneralSecurityException {
+        return EllipticCurves.pointEncode(EllipticCurves.CurveType.NIST_P256,
+                EllipticCurves.PointFormatType.UNCOMPRESSED, publicKey.getW());
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * One direction of the ratchet. Not thread-safe; callers synchronize on the chain.
+     */
+    private static class Chain {
+        private final Mac mac;
+        private byte[] chainKey;
+        private int counter = 0;
+
+        private Chain(byte[] chainKey) {
+            try {
+                this.mac = Mac.getInstance("HmacSHA256");
+            } catch (GeneralSecurityException e) {
+                // HmacSHA256 is guaranteed on every android version we support
+                throw new IllegalStateException(e);
+            }
+            this.chainKey = chainKey;
+        }
+
+        private byte[] next() throws GeneralSecurityException {
+            byte[] messageKey = Arrays.copyOf(hmac(MESSAGE_KEY_SEED), MESSAGE_KEY_LENGTH);
+            chainKey = hmac(CHAIN_KEY_SEED);
+            counter++;
+            return messageKey;
+        }
+
+        /**
+         * Message keys from the current counter up to {@code target}, without moving the chain.
+         */
+        private Advance peek(int target) throws GeneralSecurityException {
+            if (target - counter > MAX_SKIPPED_MESSAGE_KEYS) {
+                throw new GeneralSecurityException("Message " + target + " is too far ahead of the receiving chain");
+            }
+            byte[][] messageKeys = new byte[target - counter + 1][];
+            byte[] key = chainKey;
+            for (int i = 0; i < messageKeys.length; i++) {
+                messageKeys[i] = Arrays.copyOf(hmac(key, MESSAGE_KEY_SEED), MESSAGE_KEY_LENGTH);
+                key = hmac(key, CHAIN_KEY_SEED);
+            }
+            return new Advance(counter, messageKeys, key);
+        }
+
+        private void apply(Advance advance) {
+            chainKey = advance.chainKey;
+            counter = advance.fromCounter + advance.messageKeys.length;
+        }
+
+        private byte[] hmac(byte[] seed) throws GeneralSecurityException {
+            return hmac(chainKey, seed);
+        }
+
+        private byte[] hmac(byte[] key, byte[] seed) throws GeneralSecurityException {
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(seed);
+        }
+
+        /**
+         * A tentative step of the chain: the keys of counters {@code fromCounter} onwards and the chain key after.
+         */
+        private static final class Advance {
+            final int fromCounter;
+            final byte[][] messageKeys;
+            final byte[] chainKey;
+
+            Advance(int fromCounter, byte[][] messageKeys, byte[] chainKey) {
+                this.fromCounter = fromCounter;
+                this.messageKeys = messageKeys;
+                this.chainKey = chainKey;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.crypto;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.google.crypto.tink.Aead;
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.aead.AeadConfig;
+import com.google.crypto.tink.integration.android.AndroidKeysetManager;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Key for transcripts kept on the device. The keyset lives in shared preferences, wrapped by a master key that
+ * never leaves the Android Keystore, so copying the app's files does not reveal the transcripts.
+ */
+public class TranscriptKeys {
+    private static final String KEYSET_NAME = "transcript_keyset";
+    private static final String PREFERENCE_FILE = "transcript_keys";
+    private static final String MASTER_KEY_URI = "android-keystore://clumber_transcript_master_key";
+
+    private TranscriptKeys() {
+    }
+
+    /**
+     * Creates the key the first time. Slow, so call it off the main thread where possible.
+     */
+    public static Aead getAead(@NonNull Context context) throws GeneralSecurityException, IOException {
+        AeadConfig.register();
+        return new AndroidKeysetManager.Builder()
+                .withSharedPref(context, KEYSET_NAME, PREFERENCE_FILE)
+                .withKeyTemplate(KeyTemplates.get("AES128_GCM"))
+                .withMasterKeyUri(MASTER_KEY_URI)
+                .build()
+                .getKeysetHandle()
+                .getPrimitive(Aead.class);
+    }
+}
@@ -18,24 +18,21 @@
 
 package com.privateco.clumber.model;
 
+import android.support.annotation.NonNull;
+
 import com.privateco.clumber.annotation.Immutable;
 
+/**
+ * The server paired us with a peer.
+ */
 @Immutable
-public class MessageEvent {
-    private final String event;
-    private final Object attachment;
-
-    public MessageEvent(String event) {
-        this(event, null);
-    }
-
-    public MessageEvent(String event, Object attachment) {
-        this.event = event;
-        this.attachment = attachment;
-    }
+public class EntrySuccess {
+    public final String peerNickname;
+    // the peer's public key came with the pairing and is already installed
+    public final boolean peerKeyIncluded;
 
-    public String getEvent() {
-        return event;
+    public EntrySuccess(@NonNull String peerNickname, boolean peerKeyIncluded) {
+        this.peerNickname = peerNickname;
+        this.peerKeyIncluded = peerKeyIncluded;
     }
-    public Object getAttachment() { return attachment; }
 }
@@ -20,20 +20,23 @@ package com.privateco.clumber.model;
 
 import com.stfalcon.chatkit.commons.models.IUser;
 
-import com.privateco.clumber.util.AppUtil;
+import com.privateco.clumber.util.AvatarCache;
+import com.privateco.clumber.util.IdGenerator;
 
 public class User implements IUser {
 
     private final String id;
     private final String name;
+    private final String avatar;
 
     public User(String name) {
-        this(AppUtil.getRandomId(), name);
+        this(IdGenerator.getInstance().nextIdString(), name);
     }
 
     public User(String id, String name) {
         this.id = id;
         this.name = name;
+        this.avatar = AvatarCache.getReference(name);
     }
 
     @Override
@@ -48,6 +51,6 @@ public class User implements IUser {
 
     @Override
     public String getAvatar() {
-        return AppUtil.getFirstAvatarUrl();
+        return avatar;
     }
 }
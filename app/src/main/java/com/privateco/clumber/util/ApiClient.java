@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * HTTP for the app's web APIs, on the same connection pool as the socket, so an API call can reuse an open
+ * connection to the server instead of a new TLS handshake.
+ * <p>
+ * Responses go into a small disk cache. {@link #getCached(String)} returns the last response without touching
+ * the network, however old, so a result can be shown at once; {@link #get(String)} then revalidates it with a
+ * conditional GET (ETag / Last-Modified), which only costs an empty 304 when nothing changed.
+ */
+public class ApiClient {
+    private static final long CACHE_BYTES = 1024 * 1024;
+    private static final String CACHE_DIRECTORY = "http";
+    // a plain client, like the one engine.io would create for itself
+    private static final OkHttpClient sharedClient = new OkHttpClient();
+    // always ask the server, with the cached validators if there are any
+    private static final CacheControl REVALIDATE = new CacheControl.Builder().maxAge(0, TimeUnit.SECONDS).build();
+
+    private static ApiClient instance;  // guarded by ApiClient.class
+
+    private final OkHttpClient client;
+
+    /**
+     * The client the socket connects with.
+     */
+    public static OkHttpClient getSharedClient() {
+        return sharedClient;
+    }
+
+    public static synchronized ApiClient getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new ApiClient(new File(context.getCacheDir(), CACHE_DIRECTORY));
+        }
+        return instance;
+    }
+
+    ApiClient(File cacheDirectory) {
+        // newBuilder() keeps the connection pool and dispatcher
+        client = sharedClient.newBuilder()
+                .cache(new Cache(cacheDirectory, CACHE_BYTES))
+                .build();
+    }
+
+    /**
+     * @return the cached body, or null if nothing is cached; never uses the network
+     */
+    @Nullable
+    public String getCached(@NonNull String url) {
+        Request request = new Request.Builder()
+                .url(url)
+                .cacheControl(CacheControl.FORCE_CACHE)
+                .build();
+        try {
+            // 504 when nothing is cached
+            return readBody(client.newCall(request).execute());
+        } catch (IOException e) {
+            // an unreadable cache entry is the same as none
+            return null;
+        }
+    }
+
+    /**
+     * @return the current body, or null if the server answered with an error
+     */
+    @Nullable
+    public String get(@NonNull String url) throws IOException {
+        Request request = new Request.Builder()
+                .url(url)
+                .cacheControl(REVALIDATE)
+                .build();
+        return readBody(client.newCall(request).execute());
+    }
+
+    private static String readBody(Response response) throws IOException {
+        ResponseBody body = response.body();
+        try {
+            if (!response.isSuccessful() || body == null) {
+                return null;
+            }
+            return body.string();
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import java.util.List;
+
+import com.privateco.clumber.model.EntrySuccess;
+import com.privateco.clumber.model.Message;
+
+/**
+ * Every kind of event the app posts, one channel each. Channels without a payload post null.
+ */
+public final class AppEvents {
+    // events for MainActivity
+    public static final EventChannel<Void> SOCKET_CONNECTED = new EventChannel<>("socket_connected");
+    // posted once reconnecting with backoff gave up
+    public static final EventChannel<Void> SOCKET_CONNECT_ERROR = new EventChannel<>("socket_connect_error");
+    public static final EventChannel<Void> ENTRY_NAME_OCCUPIED = new EventChannel<>("socket_entry_name_occupied");
+    public static final EventChannel<Void> ENTRY_CODE_OCCUPIED = new EventChannel<>("socket_entry_code_occupied");
+    public static final EventChannel<Void> ENTRY_AWAIT = new EventChannel<>("socket_entry_await");
+    public static final EventChannel<EntrySuccess> ENTRY_SUCCESS = new EventChannel<>("socket_entry_success");
+    public static final EventChannel<Void> KEY_RECEIVED = new EventChannel<>("socket_entry_key_received");
+    public static final EventChannel<Void> MESSAGE_ACTIVITY_DESTROYED = new EventChannel<>("message_activity_destroyed");
+
+    // events for MessageActivity
+    // posted on the main thread once per display frame, with every message that arrived since the last one,
+    // oldest first
+    public static final EventChannel<List<Message>> MESSAGES_RECEIVED = new EventChannel<>("socket_receive_messages");
+    public static final EventChannel<Void> USER_EXITED = new EventChannel<>("socket_user_exited");
+
+    private AppEvents() {
+    }
+}
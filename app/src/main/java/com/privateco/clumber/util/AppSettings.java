@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+
+/**
+ * User choices that outlive a chat.
+ */
+public class AppSettings {
+    private static final String PREFERENCE_FILE = "settings";
+    private static final String KEY_KEEP_TRANSCRIPT = "keep_transcript";
+
+    private AppSettings() {
+    }
+
+    /**
+     * Off by default: nothing is saved on the phone unless the user asks for it.
+     */
+    public static boolean isKeepTranscript(@NonNull Context context) {
+        return preferences(context).getBoolean(KEY_KEEP_TRANSCRIPT, false);
+    }
+
+    public static void setKeepTranscript(@NonNull Context context, boolean keepTranscript) {
+        preferences(context).edit().putBoolean(KEY_KEEP_TRANSCRIPT, keepTranscript).apply();
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getSharedPreferences(PREFERENCE_FILE, Context.MODE_PRIVATE);
+    }
+}
@@ -20,38 +20,13 @@ package com.privateco.clumber.util;
 
 import android.content.Context;
 
-import java.util.ArrayList;
 import java.util.Locale;
-import java.util.Random;
-import java.util.UUID;
 
 import com.privateco.clumber.BuildConfig;
 import com.privateco.clumber.R;
 import com.privateco.clumber.model.Version;
 
 public class AppUtil {
-    private static final Random random = new Random();
-
-    private static final ArrayList<String> avatars = new ArrayList<>();
-    static {
-        avatars.add("http://i.imgur.com/pv1tBmT.png");
-        avatars.add("http://i.imgur.com/R3Jm1CL.png");
-        avatars.add("http://i.imgur.com/ROz4Jgh.png");
-        avatars.add("http://i.imgur.com/Qn9UesZ.png");
-    }
-
-    public static String getRandomId() {
-        return Long.toString(UUID.randomUUID().getLeastSignificantBits());
-    }
-
-    public static String getRandomAvatarUrl() {
-        return avatars.get(random.nextInt(avatars.size()));
-    }
-
-    public static String getFirstAvatarUrl() {
-        return avatars.get(0);
-    }
-
     public static Version getCurrentVersion() {
         return new Version(BuildConfig.VERSION_CODE, BuildConfig.VERSION_NAME, null);
     }
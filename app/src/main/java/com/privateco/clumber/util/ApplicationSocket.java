@@ -18,27 +18,56 @@
 
 package com.privateco.clumber.util;
 
+import android.support.annotation.NonNull;
 import android.util.Log;
 
-import org.greenrobot.eventbus.EventBus;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import com.privateco.clumber.annotation.Immutable;
 import com.privateco.clumber.constants.ApplicationConstants;
 import com.privateco.clumber.crypto.EncryptionManager;
+import com.privateco.clumber.model.EntrySuccess;
 import com.privateco.clumber.model.Message;
-import com.privateco.clumber.model.MessageEvent;
-import com.privateco.clumber.model.User;
+import io.socket.client.Ack;
 import io.socket.client.IO;
 import io.socket.client.Socket;
 import io.socket.emitter.Emitter;
 
 public class ApplicationSocket {
+    private static final int DECRYPT_WORKERS = 2;
+    private static final int DECRYPT_QUEUE_CAPACITY = 64;
+    private static final String OUTBOX_FILE_NAME = "outbox";
+    // reconnect backoff: the delay doubles from the initial one up to the max, each randomized by +-50%
+    private static final long RECONNECTION_DELAY_MS = 500;
+    private static final long RECONNECTION_DELAY_MAX_MS = 30000;
+    private static final double RECONNECTION_JITTER = 0.5;
+    private static final int RECONNECTION_ATTEMPTS = 12;
+    // cumulative acks go out after this many delivered messages, or this long after the first unacknowledged one
+    private static final int ACK_BATCH_SIZE = 8;
+    private static final long ACK_DELAY_MS = 250;
+    // how long an early message waits for the gap before it to fill
+    private static final long REORDER_TIMEOUT_MS = 2000;
+    // received messages waiting for the next display frame; BLOCK pushes back on decryption instead of losing any
+    private static final int RECEIVED_MESSAGE_BUFFER_CAPACITY = 256;
+    private static final SpscRingBuffer.OverflowPolicy RECEIVED_MESSAGE_OVERFLOW_POLICY = SpscRingBuffer.OverflowPolicy.BLOCK;
+
     private static final ApplicationSocket ourInstance = new ApplicationSocket();
 
     public static ApplicationSocket getInstance() {
@@ -46,13 +75,130 @@ public class ApplicationSocket {
     }
 
     private final Socket socket;
+    private final OutboundQueue outboundQueue;
+    private final ParticipantRegistry participants = new ParticipantRegistry();
+    private final SessionStateMachine session = new SessionStateMachine();
+    private volatile boolean pipelinedHandshake = true;
+    // both the decrypt pipeline sink and the ack scheduler produce; they queue into pendingDelivery in order, and
+    // only the holder of deliveryLock offers from there, so the ring buffer sees a single producer at a time
+    private final FrameBatcher<Message> receivedMessages = new FrameBatcher<>(
+            new SpscRingBuffer<Message>(RECEIVED_MESSAGE_BUFFER_CAPACITY, RECEIVED_MESSAGE_OVERFLOW_POLICY, null),
+            new FrameBatcher.BatchConsumer<Message>() {
+                @Override
+                public void onBatch(List<Message> batch) {
+                    AppEvents.MESSAGES_RECEIVED.post(Collections.unmodifiableList(new ArrayList<>(batch)));
+                }
+            });
+    // puts messages back in the peer's sequence order and drops copies, e.g. replays after a reconnect
+    private final ReorderWindow<Message> reorderWindow = new ReorderWindow<>(ReorderWindow.DEFAULT_SIZE);
+    private final ScheduledExecutorService ackScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "acks");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private long lastAcknowledgedSequence = -1;  // guarded by reorderWindow
+    private int unacknowledgedCount = 0;  // guarded by reorderWindow
+    private boolean tickScheduled = false;  // guarded by reorderWindow
+    // messages ready for receivedMessages; a BLOCK offer waits for the main thread holding only deliveryLock
+    private final Queue<Message> pendingDelivery = new ConcurrentLinkedQueue<>();
+    private final Object deliveryLock = new Object();
+    // decrypts inbound messages off the socket.io event thread and posts them in the order they arrived
+    private final OrderedPipeline<JSONObject, ReceivedMessage> decryptPipeline = new OrderedPipeline<>(
+            "decrypt", DECRYPT_WORKERS, DECRYPT_QUEUE_CAPACITY,
+            new OrderedPipeline.Stage<JSONObject, ReceivedMessage>() {
+                @Override
+                public ReceivedMessage process(JSONObject obj) throws JSONException {
+                    String from = (String) obj.get("from");
+                    byte[] ciphertext = (byte[]) obj.get("text");
+                    Long time = (Long) obj.get("time");
+
+                    // decrypt message
+                    String plaintext;
+                    try {
+                        plaintext = EncryptionManager.getInstance().decrypt(ciphertext);
+                    } catch (GeneralSecurityException e) {
+                        // e.g. a copy the peer sent again after a reconnect; the ratchet rejects replays
+                        Log.w("code", "dropping undecryptable message", e);
+                        return null;
+                    }
+
+                    // older clients send no sequence number
+                    return new ReceivedMessage(obj.optLong("seq", -1),
+                            new Message(IdGenerator.getInstance().nextIdString(), participants.getPeer(from), plaintext,
+                                    new Date(time)));
+                }
+            },
+            new OrderedPipeline.Sink<ReceivedMessage>() {
+                @Override
+                public void deliver(ReceivedMessage received) {
+                    if (received.sequence < 0) {
+                        pendingDelivery.add(received.message);
+                        postReceivedMessages();
+                        return;
+                    }
+                    synchronized (reorderWindow) {
+                        List<Message> ready = reorderWindow.offer(
+                                received.sequence, received.message, System.currentTimeMillis());
+                        pendingDelivery.addAll(ready);
+                        unacknowledgedCount += ready.size();
+                        if (unacknowledgedCount >= ACK_BATCH_SIZE) {
+                            sendAck();
+                        }
+                        scheduleTick();
+                    }
+                    postReceivedMessages();
+                }
+            });
 
     private ApplicationSocket() {
         try {
-            socket = IO.socket(ApplicationConstants.WEB_SERVICE_URL);
+            IO.Options options = new IO.Options();
+            options.reconnection = true;
+            options.reconnectionDelay = RECONNECTION_DELAY_MS;
+            options.reconnectionDelayMax = RECONNECTION_DELAY_MAX_MS;
+            options.randomizationFactor = RECONNECTION_JITTER;
+            options.reconnectionAttempts = RECONNECTION_ATTEMPTS;
+            // share connections with the web APIs
+            options.callFactory = ApiClient.getSharedClient();
+            options.webSocketFactory = ApiClient.getSharedClient();
+            socket = IO.socket(ApplicationConstants.WEB_SERVICE_URL, options);
         } catch (URISyntaxException e) {
             throw new RuntimeException(e);
         }
+        outboundQueue = new OutboundQueue(new OutboundQueue.Transport() {
+            @Override
+            public boolean isConnected() {
+                return socket.connected();
+            }
+
+            @Override
+            public void emit(String event, Object... args) {
+                socket.emit(event, args);
+            }
+
+            @Override
+            public void emitWithAck(String event, Object payload, final Runnable onAcknowledged) {
+                socket.emit(event, new Object[]{payload}, new Ack() {
+                    @Override
+                    public void call(Object... args) {
+                        onAcknowledged.run();
+                    }
+                });
+            }
+
+            @Override
+            public void onSendFailed(RuntimeException e) {
+                Log.w("code", "dropping outbound frame", e);
+            }
+        }, new OutboundQueue.MessageEncryptor() {
+            @Override
+            public byte[] encrypt(String text) throws GeneralSecurityException {
+                return EncryptionManager.getInstance().encrypt(text);
+            }
+        }, OutboundQueue.DEFAULT_CAPACITY);
 
         registerEventListeners();
     }
@@ -64,35 +210,55 @@ public class ApplicationSocket {
             @Override
             public void call(Object... args) {
                 Log.i("code", "socket event: connected");
-                EventBus.getDefault().post(new MessageEvent("socket_connected"));
+                // until this server says otherwise
+                outboundQueue.setBatchFramesSupported(false);
+                // resend what was not acknowledged before the connection dropped
+                outboundQueue.onConnected();
+                AppEvents.SOCKET_CONNECTED.post(null);
             }
         });
         socket.on(Socket.EVENT_CONNECT_ERROR, new Emitter.Listener() {
             @Override
             public void call(Object... args) {
+                // the manager retries with backoff on its own
                 Log.i("code", "socket event: connect error");
-                EventBus.getDefault().post(new MessageEvent("socket_connect_error"));
+            }
+        });
+        socket.on(Socket.EVENT_RECONNECT_FAILED, new Emitter.Listener() {
+            @Override
+            public void call(Object... args) {
+                Log.i("code", "socket event: reconnect failed");
+                AppEvents.SOCKET_CONNECT_ERROR.post(null);
+            }
+        });
+        // servers that relay "send messages" frames announce it after connecting; older ones send nothing
+        socket.on("capabilities", new Emitter.Listener() {
+            @Override
+            public void call(Object... args) {
+                Log.i("code", "socket event: capabilities");
+                JSONObject obj = (JSONObject) args[0];
+                outboundQueue.setBatchFramesSupported(obj.optBoolean("batchFrames", false));
             }
         });
         socket.on("entry: name occupied", new Emitter.Listener() {
             @Override
             public void call(Object... args) {
                 Log.i("code", "socket event: entry: name occupied");
-                EventBus.getDefault().post(new MessageEvent("socket_entry_name_occupied"));
+                AppEvents.ENTRY_NAME_OCCUPIED.post(null);
             }
         });
         socket.on("entry: code occupied", new Emitter.Listener() {
             @Override
             public void call(Object... args) {
                 Log.i("code", "socket event: entry: code occupied");
-                EventBus.getDefault().post(new MessageEvent("socket_entry_code_occupied"));
+                AppEvents.ENTRY_CODE_OCCUPIED.post(null);
             }
         });
         socket.on("entry: await", new Emitter.Listener() {
             @Override
             public void call(Object... args) {
                 Log.i("code", "socket event: entry: await");
-                EventBus.getDefault().post(new MessageEvent("socket_entry_await"));
+                AppEvents.ENTRY_AWAIT.post(null);
             }
         });
         socket.on("entry: success", new Emitter.Listener() {
@@ -101,13 +267,21 @@ public class ApplicationSocket {
                 Log.i("code", "socket event: entry: success");
 
                 JSONObject obj = (JSONObject)args[0];
+                String chattingWith;
                 try {
-                    String chattingWith = (String) obj.get("chattingWith");
-                    EventBus.getDefault().post(new MessageEvent("socket_entry_success", chattingWith));
+                    chattingWith = (String) obj.get("chattingWith");
                 } catch (JSONException e) {
                     throw new RuntimeException(e);
                 }
-
+                // the key formats the peer listed in its "entry", forwarded so that "send key" can already use them
+                EncryptionManager.getInstance().setPeerAdvertisedCompactKey(
+                        acceptsCompactKey(obj.optJSONArray("keyFormats")));
+                // a pipelining server forwards the key the peer sent with its "entry"; older servers and peers do not
+                Object peerKey = obj.opt("key");
+                if (peerKey != null) {
+                    resetPeerPublicKey(peerKey);
+                }
+                AppEvents.ENTRY_SUCCESS.post(new EntrySuccess(chattingWith, peerKey != null));
             }
         });
 
@@ -115,19 +289,8 @@ public class ApplicationSocket {
             @Override
             public void call(Object... args) {
                 Log.i("code", "socket event: receive key");
-                JSONObject obj = (JSONObject)args[0];
-                byte[] peerPublicKeyBytes;
-                try {
-                    peerPublicKeyBytes = (byte[]) obj.get("publicKey");
-                } catch (JSONException e) {
-                    throw new RuntimeException(e);
-                }
-                try {
-                    EncryptionManager.getInstance().resetPeerPublicKeyHandle(peerPublicKeyBytes);
-                } catch (GeneralSecurityException | IOException e) {
-                    throw new RuntimeException(e);
-                }
-                EventBus.getDefault().post(new MessageEvent("socket_entry_key_received"));
+                resetPeerPublicKey(args[0]);
+                AppEvents.KEY_RECEIVED.post(null);
             }
         });
 
@@ -136,33 +299,245 @@ public class ApplicationSocket {
             @Override
             public void call(Object... args) {
                 Log.i("code", "socket event: receive message");
-                JSONObject obj = (JSONObject)args[0];
+                // blocks while the decrypt queue is full
+                decryptPipeline.submit((JSONObject) args[0]);
+            }
+        });
+        // a batch from OutboundQueue, relayed as one frame
+        socket.on("receive messages", new Emitter.Listener() {
+            @Override
+            public void call(Object... args) {
+                Log.i("code", "socket event: receive messages");
+                JSONObject obj = (JSONObject) args[0];
                 try {
-                    String from = (String) obj.get("from");
-                    byte[] ciphertext = (byte[]) obj.get("text");
-                    Long time = (Long) obj.get("time");
-
-                    // decrypt message
-                    String plaintext = EncryptionManager.getInstance().decrypt(ciphertext);
-
-                    EventBus.getDefault().post(new MessageEvent("socket_receive_message",
-                            new Message(AppUtil.getRandomId(), new User(from), plaintext, new Date(time))));
-                } catch (JSONException | GeneralSecurityException e) {
+                    Object from = obj.get("from");
+                    JSONArray messages = obj.getJSONArray("messages");
+                    for (int i = 0; i < messages.length(); i++) {
+                        JSONObject message = messages.getJSONObject(i);
+                        message.put("from", from);
+                        decryptPipeline.submit(message);
+                    }
+                } catch (JSONException e) {
                     throw new RuntimeException(e);
                 }
             }
         });
+        socket.on("receive ack", new Emitter.Listener() {
+            @Override
+            public void call(Object... args) {
+                JSONObject obj = (JSONObject) args[0];
+                outboundQueue.onPeerAcknowledged(obj.optLong("seq", -1));
+            }
+        });
         socket.on("user exited", new Emitter.Listener() {
             @Override
             public void call(Object... args) {
                 Log.i("code", "socket event: user exited");
-                EventBus.getDefault().post(new MessageEvent("socket_user_exited"));
+                AppEvents.USER_EXITED.post(null);
             }
         });
 
     }
 
+    /**
+     * Moves pendingDelivery into receivedMessages. Call without holding reorderWindow, since a full buffer blocks here
+     * until the main thread drains it.
+     */
+    private void postReceivedMessages() {
+        synchronized (deliveryLock) {
+            Message message;
+            while ((message = pendingDelivery.poll()) != null) {
+                receivedMessages.offer(message);
+            }
+        }
+    }
+
+    /**
+     * Sends the cumulative sequence number if it moved since the last ack. Call while holding reorderWindow.
+     */
+    private void sendAck() {
+        long sequence = reorderWindow.getCumulativeSequence();
+        unacknowledgedCount = 0;
+        if (sequence <= lastAcknowledgedSequence) {
+            return;
+        }
+        lastAcknowledgedSequence = sequence;
+        JSONObject obj = new JSONObject();
+        try {
+            obj.put("seq", sequence);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        outboundQueue.sendControl("send ack", obj);
+    }
+
+    /**
+     * Flushes a pending ack and timed out gaps later, while either is outstanding. Call while holding reorderWindow.
+     */
+    private void scheduleTick() {
+        if (tickScheduled || (unacknowledgedCount == 0 && reorderWindow.getWaitingCount() == 0)) {
+            return;
+        }
+        tickScheduled = true;
+        ackScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (reorderWindow) {
+                    tickScheduled = false;
+                    List<Message> ready = reorderWindow.flushExpired(System.currentTimeMillis(), REORDER_TIMEOUT_MS);
+                    pendingDelivery.addAll(ready);
+                    unacknowledgedCount += ready.size();
+                    sendAck();
+                    scheduleTick();
+                }
+                postReceivedMessages();
+            }
+        }, ACK_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Installs the peer's key from a "receive key" or "entry: success" payload and starts over with the new peer.
+     */
+    private void resetPeerPublicKey(Object payload) {
+        try {
+            // messages already received were encrypted for the keys being replaced
+            decryptPipeline.awaitIdle();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        // the peer starts a new session at sequence number 0
+        synchronized (reorderWindow) {
+            reorderWindow.reset();
+            lastAcknowledgedSequence = -1;
+            unacknowledgedCount = 0;
+        }
+        participants.clear();
+        try {
+            if (payload instanceof byte[]) {
+                // compact binary attachment
+                EncryptionManager.getInstance().resetPeerPublicKeyCompact((byte[]) payload);
+            } else {
+                resetPeerPublicKeyFromJson((JSONObject) payload);
+            }
+        } catch (GeneralSecurityException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void resetPeerPublicKeyFromJson(JSONObject obj) throws GeneralSecurityException, IOException {
+        byte[] peerPublicKeyBytes;
+        try {
+            peerPublicKeyBytes = (byte[]) obj.get("publicKey");
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        // older clients advertise no cipher suites and only understand ECIES
+        List<String> peerCipherSuiteIds = new ArrayList<>();
+        JSONArray cipherSuites = obj.optJSONArray("cipherSuites");
+        if (cipherSuites != null) {
+            for (int i = 0; i < cipherSuites.length(); i++) {
+                peerCipherSuiteIds.add(cipherSuites.optString(i));
+            }
+        }
+        byte[] peerX25519PublicKey = obj.opt("x25519PublicKey") instanceof byte[]
+                ? (byte[]) obj.opt("x25519PublicKey")
+                : null;
+        EncryptionManager.getInstance().resetPeerPublicKeyHandle(peerPublicKeyBytes, peerCipherSuiteIds,
+                peerX25519PublicKey, acceptsCompactKey(obj.optJSONArray("keyFormats")));
+    }
+
+    /**
+     * Older clients and servers list no key formats, and those clients only understand JSON keys.
+     */
+    private static boolean acceptsCompactKey(JSONArray keyFormats) {
+        if (keyFormats != null) {
+            for (int i = 0; i < keyFormats.length(); i++) {
+                if (EncryptionManager.KEY_FORMAT_COMPACT.equals(keyFormats.optString(i))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public Socket getSocket() {
         return socket;
     }
+
+    public ParticipantRegistry getParticipants() {
+        return participants;
+    }
+
+    public boolean isPipelinedHandshake() {
+        return pipelinedHandshake;
+    }
+
+    /**
+     * Pipelined, "entry" carries our public key and a server that supports it forwards each peer's key with
+     * "entry: success", which saves the "send key" / "receive key" round trip. Unless both keys came that way, the
+     * separate exchange still runs, so older servers and peers keep working. Takes effect from the next entry.
+     */
+    public void setPipelinedHandshake(boolean pipelinedHandshake) {
+        this.pipelinedHandshake = pipelinedHandshake;
+    }
+
+    /**
+     * The chat session on this socket; driven by the activities, which see both the server events and the user.
+     */
+    public SessionStateMachine getSession() {
+        return session;
+    }
+
+    /**
+     * Persists outgoing messages under {@code directory} until the server acknowledges them, so they can be sent
+     * again after a reconnect. The outbox does not carry messages across process death: the session keys they were
+     * encrypted with only lived in memory, and the chat ends with the process, so leftovers are discarded here.
+     */
+    public void openOutbox(File directory) throws IOException {
+        Outbox outbox = Outbox.open(new File(directory, OUTBOX_FILE_NAME));
+        outbox.clear();
+        outboundQueue.setOutbox(outbox);
+    }
+
+    /**
+     * All outgoing events go through here instead of {@link Socket#emit}.
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * Queue depth and per-stage latency of inbound message decryption.
+     */
+    public OrderedPipeline<JSONObject, ReceivedMessage> getDecryptPipeline() {
+        return decryptPipeline;
+    }
+
+    /**
+     * Received messages waiting for the main thread, with overflow counts.
+     */
+    public SpscRingBuffer<Message> getReceivedMessageBuffer() {
+        return receivedMessages.getRingBuffer();
+    }
+
+    /**
+     * Duplicate, reordered and skipped counts of inbound sequence numbers.
+     */
+    public ReorderWindow<Message> getReorderWindow() {
+        return reorderWindow;
+    }
+
+    /**
+     * A decrypted message with the sender's sequence number, -1 if the sender is an older client.
+     */
+    @Immutable
+    public static final class ReceivedMessage {
+        final long sequence;
+        final Message message;
+
+        ReceivedMessage(long sequence, Message message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
 }
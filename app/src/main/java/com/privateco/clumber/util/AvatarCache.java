@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.support.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Round avatars drawn locally from a nickname: its initials in white on a color picked by hashing it.
+ * <p>
+ * Each avatar is drawn once per nickname and size and kept in a least recently used cache bounded by bytes, so
+ * binding a message row is a lookup. Avatars are referred to as {@code "avatar:" + nickname}, which is what
+ * {@link com.privateco.clumber.model.User#getAvatar()} returns. Main thread only.
+ */
+public class AvatarCache {
+    public static final String SCHEME = "avatar:";
+    public static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+    private static final float TEXT_SIZE_RATIO = 0.4f;
+    // material 300 shades, light enough for white text
+    private static final int[] COLORS = {
+            0xFFE57373, 0xFFF06292, 0xFFBA68C8, 0xFF9575CD, 0xFF7986CB,
+            0xFF64B5F6, 0xFF4DB6AC, 0xFF81C784, 0xFFFFB74D, 0xFFA1887F,
+    };
+
+    private final int maxBytes;
+    private final LinkedHashMap<Key, Bitmap> bitmaps = new LinkedHashMap<>(16, 0.75f, true);
+    private final Key lookupKey = new Key(null, 0);  // reused so that a hit allocates nothing
+    private final Paint circlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private int cachedBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    public AvatarCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+        textPaint.setColor(0xFFFFFFFF);
+        textPaint.setTextAlign(Paint.Align.CENTER);
+        textPaint.setTypeface(Typeface.DEFAULT_BOLD);
+    }
+
+    public static String getReference(@NonNull String nickname) {
+        return SCHEME + nickname;
+    }
+
+    public static boolean isReference(String url) {
+        return url != null && url.startsWith(SCHEME);
+    }
+
+    /**
+     * @param reference as returned by {@link #getReference(String)}
+     */
+    public Bitmap get(@NonNull String reference, int sizePx) {
+        lookupKey.reference = reference;
+        lookupKey.sizePx = sizePx;
+        Bitmap bitmap = bitmaps.get(lookupKey);
+        lookupKey.reference = null;
+        if (bitmap != null) {
+            hitCount++;
+            return bitmap;
+        }
+        missCount++;
+        bitmap = render(reference.substring(SCHEME.length()), sizePx);
+        bitmaps.put(new Key(reference, sizePx), bitmap);
+        cachedBytes += bitmap.getByteCount();
+        trim();
+        return bitmap;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public int getCachedBytes() {
+        return cachedBytes;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<Key, Bitmap>> eldest = bitmaps.entrySet().iterator();
+        // always keep the avatar just drawn
+        while (cachedBytes > maxBytes && bitmaps.size() > 1) {
+            Bitmap bitmap = eldest.next().getValue();
+            eldest.remove();
+            cachedBytes -= bitmap.getByteCount();
+        }
+    }
+
+    private Bitmap render(String nickname, int sizePx) {
+        Bitmap bitmap = Bitmap.createBitmap(sizePx, sizePx, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        float radius = sizePx / 2f;
+        circlePaint.setColor(getColor(nickname));
+        canvas.drawCircle(radius, radius, radius, circlePaint);
+        textPaint.setTextSize(sizePx * TEXT_SIZE_RATIO);
+        // centre the text between its ascent and descent
+        float baseline = radius - (textPaint.ascent() + textPaint.descent()) / 2;
+        canvas.drawText(getInitials(nickname), radius, baseline, textPaint);
+        return bitmap;
+    }
+
+    /**
+     * The first letters of the first two words, e.g. "JD" for "john doe"; a CJK name gives its first character.
+     */
+    static String getInitials(String nickname) {
+        String[] words = nickname.trim().split("\\s+");
+        StringBuilder initials = new StringBuilder(4);
+        for (int i = 0; i < words.length && i < 2; i++) {
+            if (!words[i].isEmpty()) {
+                initials.appendCodePoint(words[i].codePointAt(0));
+            }
+        }
+        return initials.length() > 0 ? initials.toString().toUpperCase(Locale.ROOT) : "?";
+    }
+
+    /**
+     * The same for a nickname on every device and run, since {@link String#hashCode()} is specified.
+     */
+    static int getColor(String nickname) {
+        return COLORS[(nickname.hashCode() & Integer.MAX_VALUE) % COLORS.length];
+    }
+
+    private static final class Key {
+        String reference;
+        int sizePx;
+
+        Key(String reference, int sizePx) {
+            this.reference = reference;
+            this.sizePx = sizePx;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return sizePx == key.sizePx && reference.equals(key.reference);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * reference.hashCode() + sizePx;
+        }
+    }
+}
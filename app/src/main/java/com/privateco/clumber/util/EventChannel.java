@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+
+/**
+ * One kind of app event with its own subscriber list, in place of string-keyed events on a reflective bus.
+ * <p>
+ * Posting walks an array snapshot of the subscriptions, so it neither looks anything up, locks nor allocates.
+ * Subscribers registered with {@link #subscribeOnMainThread(Subscriber)} receive the event through
+ * {@link MainThreadDispatcher}. A subscriber never hears about an event after {@link #unsubscribe(Subscriber)}
+ * returned, even one posted earlier that was still waiting for the main thread, so an activity can unsubscribe in
+ * onDestroy and not be called on afterwards.
+ */
+public final class EventChannel<T> {
+    public interface Subscriber<T> {
+        void onEvent(T event);
+    }
+
+    private final String name;
+    private final MainThreadDispatcher mainThreadDispatcher;  // null to use the shared one
+    // replaced on every change, never mutated in place
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    public EventChannel(@NonNull String name) {
+        this(name, null);
+    }
+
+    EventChannel(@NonNull String name, MainThreadDispatcher mainThreadDispatcher) {
+        this.name = name;
+        this.mainThreadDispatcher = mainThreadDispatcher;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The subscriber runs on the posting thread.
+     */
+    public void subscribe(@NonNull Subscriber<T> subscriber) {
+        add(new Subscription(subscriber, false));
+    }
+
+    public void subscribeOnMainThread(@NonNull Subscriber<T> subscriber) {
+        add(new Subscription(subscriber, true));
+    }
+
+    public synchronized void unsubscribe(@NonNull Subscriber<T> subscriber) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].subscriber == subscriber) {
+                current[i].active = false;
+                Subscription[] updated = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                subscriptions = updated;
+                return;
+            }
+        }
+    }
+
+    public void post(T event) {
+        Subscription[] current = subscriptions;
+        for (Subscription subscription : current) {
+            if (subscription.onMainThread) {
+                dispatcher().dispatch(subscription, event);
+            } else {
+                subscription.deliver(event);
+            }
+        }
+    }
+
+    private synchronized void add(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        Subscription[] updated = new Subscription[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = subscription;
+        subscriptions = updated;
+    }
+
+    private MainThreadDispatcher dispatcher() {
+        return mainThreadDispatcher != null ? mainThreadDispatcher : MainThreadDispatcher.getInstance();
+    }
+
+    static final class Subscription {
+        final Subscriber<?> subscriber;
+        final boolean onMainThread;
+        // cleared by unsubscribe, so events already on their way to the main thread are dropped
+        volatile boolean active = true;
+
+        Subscription(Subscriber<?> subscriber, boolean onMainThread) {
+            this.subscriber = subscriber;
+            this.onMainThread = onMainThread;
+        }
+
+        @SuppressWarnings("unchecked")
+        void deliver(Object event) {
+            if (active) {
+                ((Subscriber<Object>) subscriber).onEvent(event);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands items from a background producer to the main thread once per display frame.
+ * <p>
+ * Items wait in a {@link SpscRingBuffer}; the first item after a drain schedules one frame callback, which
+ * takes everything queued by then. A burst therefore costs one main looper task and one batch, however long it is.
+ */
+public class FrameBatcher<T> {
+    public interface BatchConsumer<T> {
+        /**
+         * Called on the main thread. The list is reused for the next frame, so copy what must be kept.
+         */
+        void onBatch(List<T> batch);
+    }
+
+    private final SpscRingBuffer<T> ringBuffer;
+    private final BatchConsumer<T> consumer;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean frameScheduled = new AtomicBoolean();
+    private final List<T> batch = new ArrayList<>();  // main thread only
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // items offered from now on schedule the next frame
+            frameScheduled.set(false);
+            ringBuffer.drainTo(batch);
+            if (!batch.isEmpty()) {
+                consumer.onBatch(batch);
+                batch.clear();
+            }
+        }
+    };
+    // Choreographer.getInstance() is per looper thread, so it has to be called on the main thread
+    private final Runnable scheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        }
+    };
+
+    public FrameBatcher(@NonNull SpscRingBuffer<T> ringBuffer, @NonNull BatchConsumer<T> consumer) {
+        this.ringBuffer = ringBuffer;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Producer side, see {@link SpscRingBuffer#offer(Object)}.
+     */
+    public void offer(@NonNull T item) {
+        ringBuffer.offer(item);
+        if (frameScheduled.compareAndSet(false, true)) {
+            mainHandler.post(scheduleFrame);
+        }
+    }
+
+    public SpscRingBuffer<T> getRingBuffer() {
+        return ringBuffer;
+    }
+}
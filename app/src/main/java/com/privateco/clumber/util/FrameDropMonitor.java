@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.view.Choreographer;
+
+/**
+ * Counts the display frames the main thread missed while it is started.
+ * <p>
+ * A frame callback is posted for every frame. When the time between two callbacks spans more than one frame
+ * period, the frames in between were dropped, typically because the main thread was busy with layout.
+ */
+public class FrameDropMonitor implements Choreographer.FrameCallback {
+    private final long framePeriodNanos;
+    private boolean running = false;  // main thread only, like everything below
+    private long lastFrameTimeNanos = 0;
+    private long frameCount = 0;
+    private long droppedFrameCount = 0;
+    private long worstFrameNanos = 0;
+
+    /**
+     * @param refreshRate frames per second of the display, e.g. {@code Display.getRefreshRate()}
+     */
+    public FrameDropMonitor(float refreshRate) {
+        this.framePeriodNanos = (long) (1000000000L / refreshRate);
+    }
+
+    /**
+     * Call on the main thread.
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        lastFrameTimeNanos = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Call on the main thread. The counts are kept until {@link #reset()}.
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) {
+            return;
+        }
+        onFrame(frameTimeNanos);
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    void onFrame(long frameTimeNanos) {
+        if (lastFrameTimeNanos != 0) {
+            long interval = frameTimeNanos - lastFrameTimeNanos;
+            // half a period of slack for vsync jitter
+            long missed = (interval + framePeriodNanos / 2) / framePeriodNanos - 1;
+            if (missed > 0) {
+                droppedFrameCount += missed;
+            }
+            worstFrameNanos = Math.max(worstFrameNanos, interval);
+        }
+        lastFrameTimeNanos = frameTimeNanos;
+        frameCount++;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+
+    /**
+     * Longest time between two frames, in milliseconds.
+     */
+    public long getWorstFrameMillis() {
+        return worstFrameNanos / 1000000L;
+    }
+
+    public void reset() {
+        lastFrameTimeNanos = 0;
+        frameCount = 0;
+        droppedFrameCount = 0;
+        worstFrameNanos = 0;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unique ids for messages and users, touching {@code SecureRandom} only once per process.
+ * <p>
+ * An id is a random 64-bit per-process prefix followed by a 64-bit counter, so ids never repeat within a process
+ * and increase in the order they were handed out. The prefix keeps ids from different runs (e.g. in a kept
+ * transcript) apart: the counter starts over in every process, and a prefix this wide makes two runs picking the
+ * same one negligible. The string form is fixed-width hex, so ids from one process sort in the order they were
+ * handed out.
+ */
+public final class IdGenerator {
+    static final int ID_STRING_LENGTH = 32;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final IdGenerator instance = new IdGenerator(new SecureRandom().nextLong());
+
+    private final long prefix;
+    private final AtomicLong counter = new AtomicLong();
+
+    public static IdGenerator getInstance() {
+        return instance;
+    }
+
+    IdGenerator(long prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * The next id as 32 hex digits, the prefix then the counter.
+     */
+    public String nextIdString() {
+        return toString(prefix, counter.getAndIncrement());
+    }
+
+    static String toString(long prefix, long count) {
+        char[] digits = new char[ID_STRING_LENGTH];
+        writeHex(prefix, digits, 0);
+        writeHex(count, digits, ID_STRING_LENGTH / 2);
+        return new String(digits);
+    }
+
+    private static void writeHex(long value, char[] digits, int offset) {
+        for (int i = offset + 15; i >= offset; i--) {
+            digits[i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+}
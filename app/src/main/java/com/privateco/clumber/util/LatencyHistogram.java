@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+/**
+ * Counts durations in power-of-two millisecond buckets: bucket 0 holds durations under 1 ms, bucket i those from
+ * 2^(i-1) ms to just under 2^i ms, and the last bucket everything longer. Percentiles are reported as bucket upper
+ * bounds, so they are accurate to within a factor of two. Not thread-safe.
+ */
+public class LatencyHistogram {
+    static final int BUCKET_COUNT = 24;  // the last one starts at about 70 minutes
+
+    private final long[] buckets = new long[BUCKET_COUNT];
+    private long count = 0;
+    private long totalMillis = 0;
+    private long maxMillis = 0;
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;  // a clock that went backwards
+        }
+        buckets[bucketOf(millis)]++;
+        count++;
+        totalMillis += millis;
+        maxMillis = Math.max(maxMillis, millis);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public long getMeanMillis() {
+        return count == 0 ? 0 : totalMillis / count;
+    }
+
+    /**
+     * @param fraction e.g. 0.9 for the 90th percentile
+     * @return an upper bound of the percentile, at most the longest duration recorded; 0 if nothing was recorded
+     */
+    public long getPercentileMillis(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBoundOf(i), maxMillis);
+            }
+        }
+        return maxMillis;
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = 0;
+        }
+        count = 0;
+        totalMillis = 0;
+        maxMillis = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + count
+                + " p50<=" + getPercentileMillis(0.5)
+                + " p90<=" + getPercentileMillis(0.9)
+                + " max=" + maxMillis + " ms";
+    }
+
+    static int bucketOf(long millis) {
+        // 0 -> 0, 1 -> 1, 2..3 -> 2, 4..7 -> 3, ...
+        int bucket = Long.SIZE - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Hands events to main thread subscribers of {@link EventChannel}.
+ * <p>
+ * In batched mode, events posted while a hop is already scheduled join it, so a burst costs one main looper
+ * task instead of one per event. The pending lists are swapped on every drain and reused, so steady state
+ * dispatching does not allocate. Subscriptions are queued rather than subscribers, and one that was cancelled
+ * while its event waited is skipped.
+ */
+public class MainThreadDispatcher {
+    private static MainThreadDispatcher instance;
+
+    public static synchronized MainThreadDispatcher getInstance() {
+        if (instance == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            instance = new MainThreadDispatcher(new Executor() {
+                @Override
+                public void execute(@NonNull Runnable runnable) {
+                    handler.post(runnable);
+                }
+            });
+        }
+        return instance;
+    }
+
+    private final Executor mainThreadExecutor;
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    private volatile boolean batched = true;
+
+    private final Object lock = new Object();
+    private List<EventChannel.Subscription> pendingSubscriptions = new ArrayList<>();  // guarded by lock
+    private List<Object> pendingEvents = new ArrayList<>();  // guarded by lock
+    private boolean drainScheduled = false;  // guarded by lock
+    // only touched by the main thread while draining
+    private List<EventChannel.Subscription> drainingSubscriptions = new ArrayList<>();
+    private List<Object> drainingEvents = new ArrayList<>();
+
+    MainThreadDispatcher(@NonNull Executor mainThreadExecutor) {
+        this.mainThreadExecutor = mainThreadExecutor;
+    }
+
+    public boolean isBatched() {
+        return batched;
+    }
+
+    /**
+     * @param batched false to post every event as its own main looper task
+     */
+    public void setBatched(boolean batched) {
+        this.batched = batched;
+    }
+
+    void dispatch(@NonNull final EventChannel.Subscription subscription, final Object event) {
+        if (!batched) {
+            mainThreadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    subscription.deliver(event);
+                }
+            });
+            return;
+        }
+        boolean schedule;
+        synchronized (lock) {
+            pendingSubscriptions.add(subscription);
+            pendingEvents.add(event);
+            schedule = !drainScheduled;
+            drainScheduled = true;
+        }
+        if (schedule) {
+            mainThreadExecutor.execute(drain);
+        }
+    }
+
+    private void drain() {
+        synchronized (lock) {
+            List<EventChannel.Subscription> subscriptions = pendingSubscriptions;
+            List<Object> events = pendingEvents;
+            pendingSubscriptions = drainingSubscriptions;
+            pendingEvents = drainingEvents;
+            drainingSubscriptions = subscriptions;
+            drainingEvents = events;
+            drainScheduled = false;
+        }
+        for (int i = 0; i < drainingSubscriptions.size(); i++) {
+            // checks whether the subscription is still active, e.g. not unsubscribed by an earlier event in this drain
+            drainingSubscriptions.get(i).deliver(drainingEvents.get(i));
+        }
+        drainingSubscriptions.clear();
+        drainingEvents.clear();
+    }
+}
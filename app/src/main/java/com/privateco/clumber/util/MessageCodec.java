@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.privateco.clumber.model.Message;
+import com.privateco.clumber.model.User;
+
+/**
+ * Binary form of a {@link Message} for local storage. Users are shared between the messages read by one codec.
+ */
+class MessageCodec {
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    private final Map<String, User> users = new HashMap<>();
+
+    static void write(DataOutput output, Message message) throws IOException {
+        User user = (User) message.getUser();
+        writeString(output, message.getId());
+        writeString(output, user.getId());
+        writeString(output, user.getName());
+        writeString(output, message.getText());
+        output.writeLong(message.getCreatedAt().getTime());
+    }
+
+    Message read(DataInput input) throws IOException {
+        String id = readString(input);
+        String userId = readString(input);
+        String userName = readString(input);
+        String text = readString(input);
+        long time = input.readLong();
+        User user = users.get(userId);
+        if (user == null) {
+            user = new User(userId, userName);
+            users.put(userId, user);
+        }
+        return new Message(id, user, text, new Date(time));
+    }
+
+    private static void writeString(DataOutput output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Corrupt string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
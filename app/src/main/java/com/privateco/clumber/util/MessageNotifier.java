@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.app.NotificationCompat;
+
+import java.util.List;
+
+import com.privateco.clumber.R;
+import com.privateco.clumber.model.Message;
+
+/**
+ * Shows messages that arrive while the chat is in the background as one inbox style notification with a count.
+ * <p>
+ * Notifications are built and posted on a background thread, at most once per interval; messages in between are
+ * folded into the next update (see {@link NotificationAggregator}). The channel is created once, and an update
+ * to a notification that is still showing does not sound or vibrate again. The lock screen shows the count only.
+ */
+public class MessageNotifier {
+    public static final long DEFAULT_MIN_INTERVAL_MS = 2000;
+    private static final String CHANNEL_ID = "1";
+
+    private final Context context;
+    private final NotificationManager notificationManager;
+    private final int notificationId;
+    private final PendingIntent contentIntent;
+    private final String senderNickname;
+    private final NotificationAggregator aggregator;
+    private final HandlerThread thread = new HandlerThread("notifications");
+    private final Handler handler;
+    private boolean channelCreated = false;  // notification thread only
+
+    private final Runnable postUpdate = new Runnable() {
+        @Override
+        public void run() {
+            NotificationAggregator.Update update = aggregator.take(SystemClock.uptimeMillis());
+            if (update != null) {
+                post(update);
+            }
+        }
+    };
+
+    private final Runnable cancelNotification = new Runnable() {
+        @Override
+        public void run() {
+            notificationManager.cancel(notificationId);
+        }
+    };
+
+    public MessageNotifier(@NonNull Context context, int notificationId, @NonNull PendingIntent contentIntent,
+                           @NonNull String senderNickname, long minIntervalMillis) {
+        this.context = context.getApplicationContext();
+        this.notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        this.notificationId = notificationId;
+        this.contentIntent = contentIntent;
+        this.senderNickname = senderNickname;
+        this.aggregator = new NotificationAggregator(minIntervalMillis);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    public void onMessages(@NonNull List<Message> messages) {
+        long delay = aggregator.add(messages, SystemClock.uptimeMillis());
+        if (delay >= 0) {
+            handler.postDelayed(postUpdate, delay);
+        }
+    }
+
+    /**
+     * Removes the notification and starts counting from zero, e.g. once the user opened the chat.
+     */
+    public void cancel() {
+        aggregator.clear();
+        handler.removeCallbacks(postUpdate);
+        // after an update that is being posted right now
+        handler.post(cancelNotification);
+    }
+
+    /**
+     * Cancels the notification and stops the thread. The notifier cannot be used afterwards.
+     */
+    public void quit() {
+        cancel();
+        thread.quitSafely();
+    }
+
+    private void post(NotificationAggregator.Update update) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && !channelCreated) {
+            NotificationChannel channel = new NotificationChannel(
+                    CHANNEL_ID,
+                    context.getString(R.string.notification_channel_name),
+                    NotificationManager.IMPORTANCE_HIGH);
+            notificationManager.createNotificationChannel(channel);
+            channelCreated = true;
+        }
+
+        String title = context.getResources().getQuantityString(
+                R.plurals.notification_new_messages, update.count, update.count);
+        String from = context.getString(R.string.notification_new_message_from) + " " + senderNickname;
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle()
+                .setBigContentTitle(title)
+                .setSummaryText(from);
+        for (String line : update.getLines()) {
+            style.addLine(line);
+        }
+        Notification publicVersion = new NotificationCompat.Builder(context, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(title)
+                .setContentText(from)
+                .build();
+        Notification notification = new NotificationCompat.Builder(context, CHANNEL_ID)
+                .setAutoCancel(true)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setDefaults(NotificationCompat.DEFAULT_ALL)
+                .setOnlyAlertOnce(true)
+                .setTicker(title)
+                .setContentTitle(title)
+                .setContentText(from)
+                .setNumber(update.count)
+                .setStyle(style)
+                .setPriority(NotificationCompat.PRIORITY_MAX)
+                .setVisibility(NotificationCompat.VISIBILITY_PRIVATE)
+                .setPublicVersion(publicVersion)
+                .setContentIntent(contentIntent)
+                .build();
+        notificationManager.notify(notificationId, notification);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.privateco.clumber.model.Message;
+
+/**
+ * In-memory inverted index over the text of the messages of a session.
+ * <p>
+ * Messages are identified by their number in {@link PagedMessages}, and the index keeps only the terms and, per
+ * message, a hash of its id; the texts themselves stay in the store. Latin words are lower-cased terms. Runs of
+ * CJK characters have no word boundaries, so they are indexed as overlapping bigrams plus the last character of
+ * the run, which lets a single character query match by prefix. Every query term is a prefix, except CJK bigrams,
+ * and a message matches when it matches all of them.
+ */
+public class MessageSearchIndex {
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private int[] docs = new int[1024];  // in the order added, which is ascending
+    private long[] idHashes = new long[1024];  // parallel to docs
+    private int docCount = 0;
+    private final BitSet deletedDocs = new BitSet();
+
+    /**
+     * @param doc the number of the message in its store; higher than every doc added before
+     */
+    public synchronized void add(int doc, @NonNull Message message) {
+        if (docCount > 0 && docs[docCount - 1] >= doc) {
+            throw new IllegalArgumentException("docs must increase");
+        }
+        if (docCount == docs.length) {
+            docs = Arrays.copyOf(docs, docCount * 2);
+            idHashes = Arrays.copyOf(idHashes, docCount * 2);
+        }
+        docs[docCount] = doc;
+        idHashes[docCount] = hash(message.getId());
+        docCount++;
+        String text = message.getText();
+        if (text == null) {
+            return;
+        }
+        List<String> tokens = new ArrayList<>();
+        tokenize(text, tokens, null);
+        for (int i = 0; i < tokens.size(); i++) {
+            Postings postings = terms.get(tokens.get(i));
+            if (postings == null) {
+                postings = new Postings();
+                terms.put(tokens.get(i), postings);
+            }
+            postings.add(doc);
+        }
+    }
+
+    public synchronized void delete(@NonNull List<Message> messages) {
+        for (Message message : messages) {
+            long idHash = hash(message.getId());
+            for (int i = docCount - 1; i >= 0; i--) {
+                if (idHashes[i] == idHash) {
+                    deletedDocs.set(docs[i]);
+                    break;
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        terms.clear();
+        docCount = 0;
+        deletedDocs.clear();
+    }
+
+    /**
+     * @return the numbers of the matching messages, newest first
+     */
+    public synchronized int[] search(@NonNull String query, int limit) {
+        List<String> tokens = new ArrayList<>();
+        List<Boolean> prefixes = new ArrayList<>();
+        tokenize(query, tokens, prefixes);
+        if (tokens.isEmpty() || docCount == 0) {
+            return new int[0];
+        }
+        BitSet matches = null;
+        for (int i = 0; i < tokens.size(); i++) {
+            BitSet termMatches = new BitSet();
+            if (prefixes.get(i)) {
+                SortedMap<String, Postings> range = terms.subMap(tokens.get(i), tokens.get(i) + Character.MAX_VALUE);
+                for (Map.Entry<String, Postings> entry : range.entrySet()) {
+                    entry.getValue().addTo(termMatches);
+                }
+            } else {
+                Postings postings = terms.get(tokens.get(i));
+                if (postings != null) {
+                    postings.addTo(termMatches);
+                }
+            }
+            if (matches == null) {
+                matches = termMatches;
+            } else {
+                matches.and(termMatches);
+            }
+            if (matches.isEmpty()) {
+                return new int[0];
+            }
+        }
+        matches.andNot(deletedDocs);
+        int[] result = new int[Math.min(limit, matches.cardinality())];
+        int doc = matches.length();
+        for (int i = 0; i < result.length; i++) {
+            doc = matches.previousSetBit(doc - 1);
+            result[i] = doc;
+        }
+        return result;
+    }
+
+    /**
+     * Finds a search result in its store.
+     *
+     * @return null if the message was deleted meanwhile
+     */
+    @Nullable
+    public Message resolve(int doc, @NonNull PagedMessages store) throws IOException {
+        long idHash;
+        synchronized (this) {
+            int i = Arrays.binarySearch(docs, 0, docCount, doc);
+            if (i < 0) {
+                return null;
+            }
+            idHash = idHashes[i];
+        }
+        // the page may have gaps, so the message is found by its id
+        List<Message> page = store.getPage(doc / store.getPageSize());
+        for (int i = 0; i < page.size(); i++) {
+            if (hash(page.get(i).getId()) == idHash) {
+                return page.get(i);
+            }
+        }
+        return null;
+    }
+
+    public synchronized int getTermCount() {
+        return terms.size();
+    }
+
+    /**
+     * @param prefixes if not null, gets for every token whether it is to be matched as a prefix
+     */
+    static void tokenize(String text, List<String> tokens, @Nullable List<Boolean> prefixes) {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int codePoint = text.codePointAt(i);
+            if (isCjk(codePoint)) {
+                int start = i;
+                int previous = -1;
+                while (i < length && isCjk(codePoint = text.codePointAt(i))) {
+                    if (previous >= 0) {
+                        tokens.add(text.substring(previous, i + Character.charCount(codePoint)));
+                        if (prefixes != null) {
+                            prefixes.add(false);
+                        }
+                    }
+                    previous = i;
+                    i += Character.charCount(codePoint);
+                }
+                // the last character on its own; a query of one character has nothing but this
+                if (prefixes == null || previous == start) {
+                    tokens.add(text.substring(previous, i));
+                    if (prefixes != null) {
+                        prefixes.add(true);
+                    }
+                }
+            } else if (Character.isLetterOrDigit(codePoint)) {
+                int start = i;
+                while (i < length && !isCjk(codePoint = text.codePointAt(i)) && Character.isLetterOrDigit(codePoint)) {
+                    i += Character.charCount(codePoint);
+                }
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                if (prefixes != null) {
+                    prefixes.add(true);
+                }
+            } else {
+                i += Character.charCount(codePoint);
+            }
+        }
+    }
+
+    private static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+
+    // 64-bit FNV-1a, so two ids practically never collide
+    private static long hash(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static final class Postings {
+        private int[] docs = new int[4];
+        private int size = 0;
+
+        void add(int doc) {
+            // a term repeated within one message
+            if (size > 0 && docs[size - 1] == doc) {
+                return;
+            }
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+
+        void addTo(BitSet set) {
+            for (int i = 0; i < size; i++) {
+                set.set(docs[i]);
+            }
+        }
+    }
+}
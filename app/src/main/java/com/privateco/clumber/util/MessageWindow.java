@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import com.privateco.clumber.model.Message;
+
+/**
+ * Decides which pages of {@link PagedMessages} are shown, so the message list never holds more than
+ * {@code maxShownPages} pages however long the session gets.
+ * <p>
+ * While the newest page is shown, new messages are shown as they arrive and the oldest page is hidden once the
+ * window is full. Scrolling towards either end pages the next page in and hides one at the other end. Messages
+ * arriving while the user reads older pages are only stored, and show up when the user scrolls back down.
+ */
+public class MessageWindow {
+    public static final int DEFAULT_MAX_SHOWN_PAGES = 6;
+
+    public interface Display {
+        /**
+         * @param messages oldest first, all newer than what is shown
+         */
+        void showNewer(List<Message> messages);
+
+        /**
+         * @param messages oldest first, all older than what is shown
+         */
+        void showOlder(List<Message> messages);
+
+        void hide(List<Message> messages);
+    }
+
+    private final PagedMessages store;
+    private final Display display;
+    private final int maxShownPages;
+    private final Deque<List<Message>> shownPages = new ArrayDeque<>();  // oldest first
+    private int firstShownPage = 0;
+    private int lastShownPage = -1;
+    private boolean followingNewest = false;
+
+    /**
+     * Shows the newest messages {@code store} holds already, if any.
+     */
+    public MessageWindow(@NonNull PagedMessages store, @NonNull Display display, int maxShownPages)
+            throws IOException {
+        if (maxShownPages < 2) {
+            throw new IllegalArgumentException("maxShownPages must be at least 2");
+        }
+        this.store = store;
+        this.display = display;
+        this.maxShownPages = maxShownPages;
+        showNewest();
+    }
+
+    public void add(@NonNull Message message) throws IOException {
+        store.append(message);
+        if (!followingNewest) {
+            return;
+        }
+        int page = (store.getMessageCount() - 1) / store.getPageSize();
+        if (page > lastShownPage) {
+            shownPages.addLast(new ArrayList<Message>());
+            lastShownPage = page;
+            hideOldestPages();
+        }
+        shownPages.peekLast().add(message);
+        display.showNewer(Collections.singletonList(message));
+    }
+
+    /**
+     * Call when the user scrolls close to the oldest shown message.
+     *
+     * @return false if the oldest message is shown already
+     */
+    public boolean loadOlder() throws IOException {
+        if (firstShownPage == 0) {
+            return false;
+        }
+        List<Message> page = store.getPage(firstShownPage - 1);
+        // hide first, so the display never holds more than the window
+        while (lastShownPage - firstShownPage + 2 > maxShownPages) {
+            display.hide(shownPages.removeLast());
+            lastShownPage--;
+            followingNewest = false;
+        }
+        firstShownPage--;
+        shownPages.addFirst(page);
+        display.showOlder(page);
+        return true;
+    }
+
+    /**
+     * Call when the user scrolls close to the newest shown message.
+     *
+     * @return false if the newest message is shown already
+     */
+    public boolean loadNewer() throws IOException {
+        if (followingNewest) {
+            return false;
+        }
+        lastShownPage++;
+        List<Message> page = store.getPage(lastShownPage);
+        if (lastShownPage == store.getPageCount() - 1) {
+            // the page new messages go to has to stay mutable
+            page = new ArrayList<>(page);
+            followingNewest = true;
+        }
+        hideOldestPages();
+        shownPages.addLast(page);
+        display.showNewer(page);
+        return true;
+    }
+
+    /**
+     * Jumps back to the newest messages, e.g. before showing a message the user just sent.
+     */
+    public void showNewest() throws IOException {
+        if (followingNewest) {
+            return;
+        }
+        int newestPage = store.getPageCount() - 1;
+        // one full page above the newest so the list is not nearly empty
+        showPages(Math.max(0, newestPage - 1), newestPage);
+    }
+
+    /**
+     * Shows the page holding message number {@code messageNumber} and the pages after it, e.g. for a search result.
+     */
+    public void showPageOf(int messageNumber) throws IOException {
+        int page = messageNumber / store.getPageSize();
+        showPages(page, Math.min(store.getPageCount() - 1, page + maxShownPages - 1));
+    }
+
+    /**
+     * @return how many shown messages are newer than the message, which is its position in a list showing the
+     * newest first; -1 if it is not shown
+     */
+    public int getPositionFromNewest(@NonNull String messageId) {
+        int position = 0;
+        for (Iterator<List<Message>> pages = shownPages.descendingIterator(); pages.hasNext(); ) {
+            List<Message> page = pages.next();
+            for (int i = page.size() - 1; i >= 0; i--, position++) {
+                if (page.get(i).getId().equals(messageId)) {
+                    return position;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Forgets messages the display removed by itself, so they do not come back when their page is shown again.
+     */
+    public void delete(@NonNull List<Message> messages) throws IOException {
+        Set<String> ids = new HashSet<>();
+        for (Message message : messages) {
+            ids.add(message.getId());
+        }
+        store.delete(ids);
+        List<List<Message>> kept = new ArrayList<>(shownPages.size());
+        for (List<Message> page : shownPages) {
+            List<Message> keptMessages = new ArrayList<>(page.size());
+            for (Message message : page) {
+                if (!ids.contains(message.getId())) {
+                    keptMessages.add(message);
+                }
+            }
+            kept.add(keptMessages);
+        }
+        shownPages.clear();
+        shownPages.addAll(kept);
+    }
+
+    /**
+     * Forgets every message. The display has to be cleared by the caller.
+     */
+    public void clear() throws IOException {
+        store.clear();
+        shownPages.clear();
+        shownPages.addLast(new ArrayList<Message>());
+        firstShownPage = 0;
+        lastShownPage = 0;
+        followingNewest = true;
+    }
+
+    public boolean isFollowingNewest() {
+        return followingNewest;
+    }
+
+    public int getShownMessageCount() {
+        int count = 0;
+        for (List<Message> page : shownPages) {
+            count += page.size();
+        }
+        return count;
+    }
+
+    private void showPages(int first, int last) throws IOException {
+        while (!shownPages.isEmpty()) {
+            display.hide(shownPages.removeFirst());
+        }
+        int newestPage = store.getPageCount() - 1;
+        for (int page = first; page <= last; page++) {
+            // the page new messages go to has to stay mutable
+            List<Message> messages = page == newestPage
+                    ? new ArrayList<>(store.getPage(page))
+                    : store.getPage(page);
+            shownPages.addLast(messages);
+            display.showNewer(messages);
+        }
+        firstShownPage = first;
+        lastShownPage = last;
+        followingNewest = last == newestPage;
+    }
+
+    private void hideOldestPages() {
+        while (lastShownPage - firstShownPage + 1 > maxShownPages) {
+            display.hide(shownPages.removeFirst());
+            firstShownPage++;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import com.privateco.clumber.annotation.Immutable;
+import com.privateco.clumber.model.Message;
+
+/**
+ * Folds messages that arrive while the chat is in the background into notification updates no more often than
+ * once per interval.
+ * <p>
+ * {@link #add(List, long)} says when the next update is due; the caller posts it then with what
+ * {@link #take(long)} returns. Messages arriving before that only join the pending update. Thread-safe.
+ */
+public class NotificationAggregator {
+    /**
+     * Lines an inbox style notification shows before it collapses the rest into its summary.
+     */
+    public static final int MAX_LINES = 5;
+
+    private final long minIntervalMillis;
+    private final Deque<String> lines = new ArrayDeque<>();  // guarded by this, newest last
+    private int count = 0;  // guarded by this
+    private long lastUpdateMillis = Long.MIN_VALUE;  // guarded by this
+    private boolean updateScheduled = false;  // guarded by this
+
+    public NotificationAggregator(long minIntervalMillis) {
+        this.minIntervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * @return the delay until the next update should be posted, or -1 if one is already scheduled
+     */
+    public synchronized long add(@NonNull List<Message> messages, long nowMillis) {
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            String text = message.getText();
+            lines.addLast(message.getUser().getName() + ": " + (text != null ? text : "[attachment]"));
+            if (lines.size() > MAX_LINES) {
+                lines.removeFirst();
+            }
+        }
+        count += messages.size();
+        if (updateScheduled || messages.isEmpty()) {
+            return -1;
+        }
+        updateScheduled = true;
+        if (lastUpdateMillis == Long.MIN_VALUE) {
+            return 0;
+        }
+        return Math.max(0, lastUpdateMillis + minIntervalMillis - nowMillis);
+    }
+
+    /**
+     * Takes the pending update.
+     *
+     * @return null if {@link #clear()} was called since it was scheduled
+     */
+    public synchronized Update take(long nowMillis) {
+        if (!updateScheduled) {
+            return null;
+        }
+        updateScheduled = false;
+        lastUpdateMillis = nowMillis;
+        return new Update(count, new ArrayList<>(lines));
+    }
+
+    /**
+     * Forgets every message, e.g. once the user opened the chat.
+     */
+    public synchronized void clear() {
+        lines.clear();
+        count = 0;
+        updateScheduled = false;
+    }
+
+    @Immutable
+    public static final class Update {
+        /**
+         * Messages since the last {@link #clear()}, including those no longer in {@link #getLines()}.
+         */
+        public final int count;
+        private final List<String> lines;
+
+        Update(int count, List<String> lines) {
+            this.count = count;
+            this.lines = Collections.unmodifiableList(lines);
+        }
+
+        /**
+         * "name: text" for the latest messages, oldest first.
+         */
+        public List<String> getLines() {
+            return lines;
+        }
+    }
+}
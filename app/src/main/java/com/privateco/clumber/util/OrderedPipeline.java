@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes inputs on a worker pool and hands the outputs to a {@link Sink} in submission order.
+ * <p>
+ * Every input gets a sequence number on submit. Workers finish in any order; a finished output waits in the
+ * reorder buffer until all earlier ones are delivered. The work queue is bounded: once it is full,
+ * {@link #submit(Object)} blocks the submitting thread, which pushes back on the producer instead of buffering
+ * without limit.
+ */
+public class OrderedPipeline<I, O> {
+    public interface Stage<I, O> {
+        O process(I input) throws Exception;
+    }
+
+    public interface Sink<O> {
+        void deliver(O output);
+    }
+
+    private final Stage<I, O> stage;
+    private final Sink<O> sink;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong nextSubmitSequence = new AtomicLong();
+
+    private final Object reorderLock = new Object();
+    private final Map<Long, Completed<O>> reorderBuffer = new HashMap<>();  // guarded by reorderLock
+    private long nextDeliverSequence = 0;  // guarded by reorderLock
+
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+    private final AtomicLong processNanos = new AtomicLong();
+    private final AtomicLong reorderWaitNanos = new AtomicLong();
+
+    public OrderedPipeline(@NonNull final String name, int workers, int queueCapacity,
+                           @NonNull Stage<I, O> stage, @NonNull Sink<O> sink) {
+        this.stage = stage;
+        this.sink = sink;
+        this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                // backpressure: wait for room instead of dropping or growing the queue
+                try {
+                    executor.getQueue().put(runnable);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues an input, blocking while the queue is full.
+     */
+    public void submit(final I input) {
+        final long sequence = nextSubmitSequence.getAndIncrement();
+        final long submitTime = System.nanoTime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.nanoTime();
+                queueWaitNanos.addAndGet(startTime - submitTime);
+                O output = null;
+                RuntimeException failure = null;
+                try {
+                    output = stage.process(input);
+                } catch (Exception e) {
+                    failure = new RuntimeException(e);
+                }
+                long finishTime = System.nanoTime();
+                processNanos.addAndGet(finishTime - startTime);
+                complete(sequence, new Completed<>(output, finishTime));
+                if (failure != null) {
+                    // the sequence is released first so later outputs are not held back forever
+                    throw failure;
+                }
+            }
+        });
+        int depth = executor.getQueue().size();
+        int max;
+        while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+            // retry
+        }
+    }
+
+    private void complete(long sequence, Completed<O> completed) {
+        synchronized (reorderLock) {
+            reorderBuffer.put(sequence, completed);
+            Completed<O> next;
+            while ((next = reorderBuffer.remove(nextDeliverSequence)) != null) {
+                nextDeliverSequence++;
+                reorderWaitNanos.addAndGet(System.nanoTime() - next.finishTime);
+                if (next.output != null) {
+                    sink.deliver(next.output);
+                    deliveredCount.incrementAndGet();
+                }
+            }
+            reorderLock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until every input submitted so far is delivered, e.g. before the keys used by the stage change.
+     */
+    public void awaitIdle() throws InterruptedException {
+        long submitted = nextSubmitSequence.get();
+        synchronized (reorderLock) {
+            while (nextDeliverSequence < submitted) {
+                reorderLock.wait();
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public int getReorderBufferSize() {
+        synchronized (reorderLock) {
+            return reorderBuffer.size();
+        }
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    /**
+     * Average time from submit until a worker picks the input up.
+     */
+    public long getAverageQueueWaitNanos() {
+        return average(queueWaitNanos);
+    }
+
+    /**
+     * Average time spent in the {@link Stage}.
+     */
+    public long getAverageProcessNanos() {
+        return average(processNanos);
+    }
+
+    /**
+     * Average time a processed output waits for earlier ones before it is delivered.
+     */
+    public long getAverageReorderWaitNanos() {
+        return average(reorderWaitNanos);
+    }
+
+    private long average(AtomicLong totalNanos) {
+        long completed;
+        synchronized (reorderLock) {
+            completed = nextDeliverSequence;
+        }
+        return completed == 0 ? 0 : totalNanos.get() / completed;
+    }
+
+    private static final class Completed<O> {
+        final O output;  // null if the stage failed
+        final long finishTime;
+
+        Completed(O output, long finishTime) {
+            this.output = output;
+            this.finishTime = finishTime;
+        }
+    }
+}
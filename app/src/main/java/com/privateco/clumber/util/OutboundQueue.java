@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outgoing socket events, sent from one background thread in two lanes.
+ * <p>
+ * Control events ("entry", "send key", "exit") always go out before chat messages. Chat messages are encrypted
+ * on the sender thread. If the server advertised that it relays "send messages" frames, messages submitted within
+ * {@link #BATCH_WINDOW_MS} of the first pending one are coalesced into one such frame; otherwise every message goes
+ * out at once as its own "send message" event, since waiting would only delay it. A frame that fails to encrypt,
+ * store or emit is dropped and reported to the {@link Transport}; the sender carries on with the next one. The chat
+ * lane is bounded and is not drained while the socket is disconnected, so {@link #offerMessage(String)} refuses new
+ * messages once it is full.
+ * <p>
+ * Every chat message carries a per-session sequence number, starting at 0 after {@link #clearMessages()}.
+ * With an {@link Outbox} set, every encrypted message is stored before it is sent and removed when the server
+ * acknowledges its frame or the peer acknowledges its sequence number. Whatever is still unacknowledged when the
+ * socket reconnects is sent again, in order, before any new message. Servers and peers that never acknowledge
+ * anything would leave every message pending and get all of them again on every reconnect, so the outbox is only
+ * used once an acknowledgement has been seen.
+ */
+public class OutboundQueue {
+    public static final int DEFAULT_CAPACITY = 128;
+    static final long BATCH_WINDOW_MS = 15;
+    static final int MAX_BATCH_SIZE = 16;
+    private static final long DISCONNECTED_POLL_MS = 100;
+
+    public interface Transport {
+        boolean isConnected();
+
+        void emit(String event, Object... args);
+
+        /**
+         * @param onAcknowledged called once the server confirms it received the frame
+         */
+        void emitWithAck(String event, Object payload, Runnable onAcknowledged);
+
+        /**
+         * Called on the sender thread with whatever made it drop a frame.
+         */
+        void onSendFailed(RuntimeException e);
+    }
+
+    public interface MessageEncryptor {
+        /**
+         * Called on the sender thread.
+         */
+        byte[] encrypt(String text) throws Exception;
+    }
+
+    private final Transport transport;
+    private final MessageEncryptor encryptor;
+    private final int capacity;
+
+    private final Object lock = new Object();
+    private final Queue<Object[]> controlLane = new ArrayDeque<>();  // guarded by lock, event name then args
+    private final Queue<PendingMessage> chatLane = new ArrayDeque<>();  // guarded by lock
+    private boolean replayRequested = false;  // guarded by lock
+    private volatile Outbox outbox;
+    private volatile boolean batchFramesSupported = false;
+    private volatile boolean acknowledgementSeen = false;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicLong peerAcknowledgedSequence = new AtomicLong(-1);
+
+    private final AtomicLong sentMessageCount = new AtomicLong();
+    private final AtomicLong sentFrameCount = new AtomicLong();
+    private final AtomicLong droppedMessageCount = new AtomicLong();
+    private final AtomicLong replayedMessageCount = new AtomicLong();
+    private final AtomicLong failedFrameCount = new AtomicLong();
+
+    public OutboundQueue(@NonNull Transport transport, @NonNull MessageEncryptor encryptor, int capacity) {
+        this.transport = transport;
+        this.encryptor = encryptor;
+        this.capacity = capacity;
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSender();
+            }
+        }, "outbound");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Messages sent from now on are kept in {@code outbox} until acknowledged.
+     */
+    public void setOutbox(@Nullable Outbox outbox) {
+        this.outbox = outbox;
+    }
+
+    /**
+     * Whether the server relays "send messages" frames. Servers that do not know the event drop it silently, so
+     * batches go out as single messages until the server says otherwise.
+     */
+    public void setBatchFramesSupported(boolean batchFramesSupported) {
+        this.batchFramesSupported = batchFramesSupported;
+    }
+
+    /**
+     * Sends whatever the outbox still holds before the next new message. Call on every (re)connect.
+     */
+    public void onConnected() {
+        synchronized (lock) {
+            replayRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * The peer received every message up to and including {@code sequence}.
+     */
+    public void onPeerAcknowledged(long sequence) {
+        if (sequence >= 0) {
+            acknowledgementSeen = true;
+        }
+        peerAcknowledgedSequence.set(sequence);
+        Outbox outbox = this.outbox;
+        if (outbox != null) {
+            try {
+                outbox.acknowledge(sequence);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Queues a control event ahead of every pending chat message. Never refused.
+     */
+    public void sendControl(@NonNull String event, Object... args) {
+        Object[] entry = new Object[args.length + 1];
+        entry[0] = event;
+        System.arraycopy(args, 0, entry, 1, args.length);
+        synchronized (lock) {
+            controlLane.add(entry);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues a chat message without blocking.
+     *
+     * @return false if the chat lane is full because the socket cannot keep up; the caller should keep the text
+     */
+    public boolean offerMessage(@NonNull String text) {
+        synchronized (lock) {
+            if (chatLane.size() >= capacity) {
+                return false;
+            }
+            chatLane.add(new PendingMessage(text, System.currentTimeMillis()));
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Drops chat messages that have not been sent or acknowledged yet and restarts the sequence numbers,
+     * e.g. when the chat ends.
+     */
+    public void clearMessages() {
+        synchronized (lock) {
+            droppedMessageCount.addAndGet(chatLane.size());
+            chatLane.clear();
+            nextSequence.set(0);
+            peerAcknowledgedSequence.set(-1);
+            Outbox outbox = this.outbox;
+            if (outbox != null) {
+                try {
+                    outbox.clear();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    public int getPendingMessageCount() {
+        synchronized (lock) {
+            return chatLane.size();
+        }
+    }
+
+    public long getSentMessageCount() {
+        return sentMessageCount.get();
+    }
+
+    /**
+     * Frames that carried chat messages; lower than {@link #getSentMessageCount()} when batching kicks in.
+     */
+    public long getSentFrameCount() {
+        return sentFrameCount.get();
+    }
+
+    /**
+     * Highest sequence number the peer acknowledged in this session, -1 if none.
+     */
+    public long getPeerAcknowledgedSequence() {
+        return peerAcknowledgedSequence.get();
+    }
+
+    public long getDroppedMessageCount() {
+        return droppedMessageCount.get();
+    }
+
+    /**
+     * Messages sent again after a reconnect because their first frame was not acknowledged.
+     */
+    public long getReplayedMessageCount() {
+        return replayedMessageCount.get();
+    }
+
+    /**
+     * Whether the server or the peer acknowledged anything yet; until then the outbox is not used.
+     */
+    public boolean isAcknowledgementSeen() {
+        return acknowledgementSeen;
+    }
+
+    /**
+     * Control events, batches and replays dropped because they could not be encrypted, stored or emitted.
+     */
+    public long getFailedFrameCount() {
+        return failedFrameCount.get();
+    }
+
+    private void runSender() {
+        while (true) {
+            Object[] control = null;
+            List<PendingMessage> batch = null;
+            boolean replay = false;
+            try {
+                synchronized (lock) {
+                    while (controlLane.isEmpty()
+                            && ((chatLane.isEmpty() && !replayRequested) || !transport.isConnected())) {
+                        // connectivity is only signalled on connect, so poll while messages wait for the socket
+                        lock.wait(chatLane.isEmpty() && !replayRequested ? 0 : DISCONNECTED_POLL_MS);
+                    }
+                    if (!controlLane.isEmpty()) {
+                        control = controlLane.poll();
+                    } else if (replayRequested) {
+                        replayRequested = false;
+                        replay = true;
+                    } else {
+                        int batchSize = 1;
+                        if (batchFramesSupported) {
+                            // give a burst the chance to complete, unless a control event shows up meanwhile
+                            long deadline = System.currentTimeMillis() + BATCH_WINDOW_MS;
+                            long remaining;
+                            while (chatLane.size() < MAX_BATCH_SIZE && controlLane.isEmpty()
+                                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                                lock.wait(remaining);
+                            }
+                            batchSize = MAX_BATCH_SIZE;
+                        }
+                        batch = new ArrayList<>();
+                        while (batch.size() < batchSize && !chatLane.isEmpty()) {
+                            batch.add(chatLane.poll());
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // this is the only sender thread; one bad frame must not stop everything after it, including "exit"
+            try {
+                if (control != null) {
+                    Object[] args = new Object[control.length - 1];
+                    System.arraycopy(control, 1, args, 0, args.length);
+                    transport.emit((String) control[0], args);
+                } else if (replay) {
+                    replay();
+                } else {
+                    sendBatch(batch);
+                }
+            } catch (RuntimeException e) {
+                failedFrameCount.incrementAndGet();
+                transport.onSendFailed(e);
+            }
+        }
+    }
+
+    private void replay() {
+        Outbox outbox = this.outbox;
+        if (outbox == null || !acknowledgementSeen) {
+            return;
+        }
+        List<Outbox.Entry> pending = outbox.getPending();
+        for (int from = 0; from < pending.size(); from += MAX_BATCH_SIZE) {
+            List<Outbox.Entry> frame = pending.subList(from, Math.min(from + MAX_BATCH_SIZE, pending.size()));
+            replayedMessageCount.addAndGet(frame.size());
+            emitFrame(outbox, frame);
+        }
+    }
+
+    private void sendBatch(List<PendingMessage> batch) {
+        // without acknowledgements nothing would ever leave the outbox
+        Outbox outbox = acknowledgementSeen ? this.outbox : null;
+        List<Outbox.Entry> frame = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            PendingMessage message = batch.get(i);
+            byte[] ciphertext;
+            try {
+                ciphertext = encryptor.encrypt(message.text);
+            } catch (IllegalStateException e) {
+                // the chat ended and the keys were reset while these messages waited
+                droppedMessageCount.addAndGet(batch.size() - i);
+                break;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            long sequence = nextSequence.getAndIncrement();
+            try {
+                frame.add(outbox != null
+                        ? outbox.append(sequence, ciphertext, message.time)
+                        : new Outbox.Entry(sequence, message.time, ciphertext));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (!frame.isEmpty()) {
+            emitFrame(outbox, frame);
+        }
+    }
+
+    private void emitFrame(@Nullable Outbox outbox, List<Outbox.Entry> frame) {
+        JSONArray payloads = new JSONArray();
+        try {
+            for (Outbox.Entry entry : frame) {
+                JSONObject obj = new JSONObject();
+                obj.put("text", entry.getCiphertext());
+                obj.put("time", entry.time);
+                obj.put("seq", entry.id);
+                payloads.put(obj);
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        if (payloads.length() > 1 && batchFramesSupported) {
+            transport.emitWithAck("send messages", payloads,
+                    acknowledgement(outbox, frame.get(frame.size() - 1).id));
+            sentFrameCount.incrementAndGet();
+        } else {
+            for (int i = 0; i < payloads.length(); i++) {
+                transport.emitWithAck("send message", payloads.opt(i), acknowledgement(outbox, frame.get(i).id));
+                sentFrameCount.incrementAndGet();
+            }
+        }
+        sentMessageCount.addAndGet(payloads.length());
+    }
+
+    private Runnable acknowledgement(@Nullable final Outbox outbox, final long lastId) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                acknowledgementSeen = true;
+                if (outbox == null) {
+                    return;
+                }
+                try {
+                    outbox.acknowledge(lastId);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private static final class PendingMessage {
+        final String text;
+        final long time;
+
+        PendingMessage(String text, long time) {
+            this.text = text;
+            this.time = time;
+        }
+    }
+}
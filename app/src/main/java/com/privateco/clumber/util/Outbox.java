@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.privateco.clumber.annotation.Immutable;
+
+/**
+ * Encrypted outgoing messages kept in an append-only file until the server acknowledges them.
+ * <p>
+ * The file is a sequence of records: a message record carries its id (the message sequence number), the send time
+ * and the ciphertext; an ack record carries the highest id acknowledged so far. Opening the file replays the
+ * records to find what is still pending. A record cut short by a crash is dropped. Once nothing is pending the file
+ * is truncated, so it only grows while acknowledgements are outstanding. At most {@code maxPending} messages are
+ * kept; appending more forgets the oldest.
+ */
+public class Outbox implements Closeable {
+    private static final byte RECORD_MESSAGE = 1;
+    private static final byte RECORD_ACK = 2;
+    private static final int MAX_CIPHERTEXT_LENGTH = 1024 * 1024;
+    public static final int DEFAULT_MAX_PENDING = 512;
+
+    private final File file;
+    private final int maxPending;
+    private long evictedCount = 0;  // guarded by this
+    private final Deque<Entry> pending = new ArrayDeque<>();  // guarded by this, in id order
+    private DataOutputStream output;  // guarded by this
+
+    public static Outbox open(@NonNull File file) throws IOException {
+        return open(file, DEFAULT_MAX_PENDING);
+    }
+
+    public static Outbox open(@NonNull File file, int maxPending) throws IOException {
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("maxPending must be positive");
+        }
+        Outbox outbox = new Outbox(file, maxPending);
+        outbox.load();
+        return outbox;
+    }
+
+    private Outbox(File file, int maxPending) {
+        this.file = file;
+        this.maxPending = maxPending;
+    }
+
+    private void load() throws IOException {
+        long validLength = 0;
+        if (file.exists()) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                while (true) {
+                    byte type = input.readByte();
+                    long id = input.readLong();
+                    if (type == RECORD_MESSAGE) {
+                        long time = input.readLong();
+                        int length = input.readInt();
+                        if (length < 0 || length > MAX_CIPHERTEXT_LENGTH) {
+                            break;
+                        }
+                        byte[] ciphertext = new byte[length];
+                        input.readFully(ciphertext);
+                        pending.addLast(new Entry(id, time, ciphertext));
+                        validLength += 1 + 8 + 8 + 4 + ciphertext.length;
+                    } else if (type == RECORD_ACK) {
+                        removeAcknowledged(id);
+                        validLength += 1 + 8;
+                    } else {
+                        break;
+                    }
+                }
+            } catch (EOFException e) {
+                // a record cut short by a crash, or simply the end of the file
+            } finally {
+                input.close();
+            }
+        }
+        // drop a torn tail so new records are not appended after garbage
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(pending.isEmpty() ? 0 : validLength);
+        } finally {
+            randomAccessFile.close();
+        }
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    /**
+     * Stores a message before it is sent. The record reaches the file system before this returns. If that makes more
+     * than {@code maxPending} messages, the oldest one is forgotten as if it had been acknowledged.
+     *
+     * @param id higher than every pending id
+     */
+    public synchronized Entry append(long id, @NonNull byte[] ciphertext, long time) throws IOException {
+        if (!pending.isEmpty() && pending.peekLast().id >= id) {
+            throw new IllegalArgumentException("Outbox ids must increase");
+        }
+        Entry entry = new Entry(id, time, ciphertext);
+        output.writeByte(RECORD_MESSAGE);
+        output.writeLong(entry.id);
+        output.writeLong(entry.time);
+        output.writeInt(ciphertext.length);
+        output.write(ciphertext);
+        output.flush();
+        pending.addLast(entry);
+        if (pending.size() > maxPending) {
+            evictedCount++;
+            acknowledge(pending.peekFirst().id);
+        }
+        return entry;
+    }
+
+    /**
+     * Marks every message up to and including {@code id} as delivered.
+     */
+    public synchronized void acknowledge(long id) throws IOException {
+        if (pending.isEmpty() || pending.peekFirst().id > id) {
+            return;
+        }
+        removeAcknowledged(id);
+        if (pending.isEmpty()) {
+            truncate();
+        } else {
+            output.writeByte(RECORD_ACK);
+            output.writeLong(id);
+            output.flush();
+        }
+    }
+
+    /**
+     * Pending messages, oldest first.
+     */
+    public synchronized List<Entry> getPending() {
+        return new ArrayList<>(pending);
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Messages forgotten unacknowledged because the outbox was full.
+     */
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * Forgets every pending message, e.g. when the keys they were encrypted with are gone.
+     */
+    public synchronized void clear() throws IOException {
+        pending.clear();
+        truncate();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        output.close();
+    }
+
+    private void removeAcknowledged(long id) {
+        while (!pending.isEmpty() && pending.peekFirst().id <= id) {
+            pending.removeFirst();
+        }
+    }
+
+    private void truncate() throws IOException {
+        output.close();
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)));
+    }
+
+    @Immutable
+    public static final class Entry {
+        public final long id;
+        public final long time;
+        private final byte[] ciphertext;
+
+        Entry(long id, long time, byte[] ciphertext) {
+            this.id = id;
+            this.time = time;
+            this.ciphertext = ciphertext;
+        }
+
+        public byte[] getCiphertext() {
+            return ciphertext.clone();
+        }
+    }
+}
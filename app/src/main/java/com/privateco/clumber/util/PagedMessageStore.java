@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+
+import com.google.crypto.tink.subtle.AesGcmJce;
+import com.google.crypto.tink.subtle.Random;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.privateco.clumber.model.Message;
+
+/**
+ * Every message of a session in pages of {@code pageSize}, with only a few pages in memory.
+ * <p>
+ * Messages are appended to the newest page. A full page is sealed with AES-GCM under a key that only lives in
+ * this object and written to a spill file, so nothing on disk can be read once the session is gone. Sealed pages
+ * are read back on demand and the most recently used ones are kept in memory, up to {@code maxCachedPages}.
+ * Deleted messages are only filtered out when a page is read, so page boundaries never move.
+ */
+public class PagedMessageStore implements PagedMessages, Closeable {
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int DEFAULT_MAX_CACHED_PAGES = 4;
+    private static final int KEY_LENGTH = 16;  // AES-128-GCM
+
+    private final File file;
+    private final RandomAccessFile spill;
+    private final AesGcmJce cipher;
+    private final int pageSize;
+    private final MessageCodec codec = new MessageCodec();
+    private final Map<Integer, List<Message>> cachedPages;  // sealed pages, least recently used first
+    private List<Message> openPage;
+    private long[] pageOffsets = new long[16];  // start of each sealed page in the spill file
+    private int sealedPageCount = 0;
+    private final Set<String> deletedIds = new HashSet<>();
+
+    private long pageReadCount = 0;
+    private long cacheHitCount = 0;
+
+    /**
+     * @param file deleted first if it exists, and again on {@link #close()}
+     */
+    public PagedMessageStore(@NonNull File file, int pageSize, final int maxCachedPages) throws IOException {
+        if (pageSize <= 0 || maxCachedPages <= 0) {
+            throw new IllegalArgumentException("pageSize and maxCachedPages must be positive");
+        }
+        this.file = file;
+        this.pageSize = pageSize;
+        this.openPage = new ArrayList<>(pageSize);
+        this.cachedPages = new LinkedHashMap<Integer, List<Message>>(maxCachedPages + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<Message>> eldest) {
+                // the page is on disk already, so evicting it only costs a read when it is needed again
+                return size() > maxCachedPages;
+            }
+        };
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+        this.spill = new RandomAccessFile(file, "rw");
+        try {
+            this.cipher = new AesGcmJce(Random.randBytes(KEY_LENGTH));
+        } catch (GeneralSecurityException e) {
+            // AES-GCM is always available on Android; crash
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized void append(@NonNull Message message) throws IOException {
+        openPage.add(message);
+        if (openPage.size() == pageSize) {
+            seal();
+        }
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public synchronized int getMessageCount() {
+        return sealedPageCount * pageSize + openPage.size();
+    }
+
+    @Override
+    public synchronized int getPageCount() {
+        return sealedPageCount + 1;
+    }
+
+    /**
+     * Reads the page from disk unless it is in memory.
+     */
+    @Override
+    public synchronized List<Message> getPage(int page) throws IOException {
+        if (page < 0 || page > sealedPageCount) {
+            throw new IndexOutOfBoundsException("page " + page + " of " + getPageCount());
+        }
+        if (page == sealedPageCount) {
+            return Collections.unmodifiableList(withoutDeleted(openPage));
+        }
+        List<Message> messages = cachedPages.get(page);
+        if (messages != null) {
+            cacheHitCount++;
+            return messages;
+        }
+        messages = Collections.unmodifiableList(withoutDeleted(readPage(page)));
+        pageReadCount++;
+        cachedPages.put(page, messages);
+        return messages;
+    }
+
+    @Override
+    public synchronized void delete(@NonNull Collection<String> messageIds) {
+        deletedIds.addAll(messageIds);
+        cachedPages.clear();
+    }
+
+    public synchronized int getCachedPageCount() {
+        return cachedPages.size();
+    }
+
+    /**
+     * Pages that had to be read back from disk.
+     */
+    public synchronized long getPageReadCount() {
+        return pageReadCount;
+    }
+
+    public synchronized long getCacheHitCount() {
+        return cacheHitCount;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        openPage = new ArrayList<>(pageSize);
+        cachedPages.clear();
+        sealedPageCount = 0;
+        deletedIds.clear();
+        spill.setLength(0);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        cachedPages.clear();
+        openPage = new ArrayList<>(pageSize);
+        spill.close();
+        file.delete();
+    }
+
+    private void seal() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(openPage.size());
+        for (int i = 0; i < openPage.size(); i++) {
+            MessageCodec.write(output, openPage.get(i));
+        }
+        byte[] sealed;
+        try {
+            sealed = cipher.encrypt(bytes.toByteArray(), associatedData(sealedPageCount));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        long offset = spill.length();
+        spill.seek(offset);
+        spill.writeInt(sealed.length);
+        spill.write(sealed);
+        if (sealedPageCount == pageOffsets.length) {
+            pageOffsets = Arrays.copyOf(pageOffsets, pageOffsets.length * 2);
+        }
+        pageOffsets[sealedPageCount] = offset;
+        // the page just filled up is the one most likely to be shown next
+        cachedPages.put(sealedPageCount, Collections.unmodifiableList(withoutDeleted(openPage)));
+        sealedPageCount++;
+        openPage = new ArrayList<>(pageSize);
+    }
+
+    private List<Message> readPage(int page) throws IOException {
+        spill.seek(pageOffsets[page]);
+        byte[] sealed = new byte[spill.readInt()];
+        spill.readFully(sealed);
+        byte[] plaintext;
+        try {
+            plaintext = cipher.decrypt(sealed, associatedData(page));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Page " + page + " does not decrypt", e);
+        }
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(plaintext));
+        int count = input.readInt();
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(codec.read(input));
+        }
+        return messages;
+    }
+
+    private List<Message> withoutDeleted(List<Message> messages) {
+        List<Message> result = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            if (deletedIds.isEmpty() || !deletedIds.contains(messages.get(i).getId())) {
+                result.add(messages.get(i));
+            }
+        }
+        return result;
+    }
+
+    // binds each ciphertext to its page, so pages cannot be swapped on disk
+    private static byte[] associatedData(int page) {
+        return ByteBuffer.allocate(4).putInt(page).array();
+    }
+}
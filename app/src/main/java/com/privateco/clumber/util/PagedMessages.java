@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import com.privateco.clumber.model.Message;
+
+/**
+ * The messages of a chat in order, addressed in fixed-size pages for {@link MessageWindow}.
+ * <p>
+ * Page {@code p} holds the messages appended as number {@code p * pageSize} up to the next page. Deleting messages
+ * leaves gaps instead of moving later messages to another page.
+ */
+public interface PagedMessages extends Closeable {
+    void append(@NonNull Message message) throws IOException;
+
+    int getPageSize();
+
+    /**
+     * Messages appended so far, deleted ones included.
+     */
+    int getMessageCount();
+
+    /**
+     * Full pages plus the page new messages go to, which may be empty.
+     */
+    int getPageCount();
+
+    /**
+     * @return the messages of the page that were not deleted, oldest first
+     */
+    List<Message> getPage(int page) throws IOException;
+
+    /**
+     * Leaves the messages out of every page read from now on.
+     */
+    void delete(@NonNull Collection<String> messageIds) throws IOException;
+
+    /**
+     * Forgets every message.
+     */
+    void clear() throws IOException;
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.privateco.clumber.model.User;
+
+/**
+ * The people in the current chat, one shared {@link User} per nickname.
+ * <p>
+ * Every message from the same sender references the same instance, with an id that stays the same for the whole
+ * session, so chatkit groups a sender's consecutive messages and a long chat holds two users rather than one per
+ * message. Cleared when a new session starts.
+ */
+public class ParticipantRegistry {
+    /**
+     * Id of the local user, which the messages adapter uses to tell outgoing messages apart.
+     */
+    public static final String SELF_ID = "0";
+
+    private final Map<String, User> peers = new HashMap<>();  // guarded by this, by nickname
+    private User self;  // guarded by this
+
+    public synchronized User getSelf(@NonNull String nickname) {
+        if (self == null || !self.getName().equals(nickname)) {
+            self = new User(SELF_ID, nickname);
+        }
+        return self;
+    }
+
+    public synchronized User getPeer(@NonNull String nickname) {
+        User peer = peers.get(nickname);
+        if (peer == null) {
+            peer = new User(nickname);
+            peers.put(nickname, peer);
+        }
+        return peer;
+    }
+
+    public synchronized int getPeerCount() {
+        return peers.size();
+    }
+
+    public synchronized void clear() {
+        peers.clear();
+        self = null;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Puts messages with per-session sequence numbers back in order and drops duplicates.
+ * <p>
+ * The window covers the sequence numbers from the next expected one up to {@code size} ahead. A bitmap marks
+ * which of them already arrived, so a copy is recognised without a lookup, and anything below the window was
+ * delivered or given up on already. An early message waits in the window until the gap before it fills. A gap
+ * is skipped when a message arrives beyond the window, or when the oldest waiting message times out.
+ */
+public class ReorderWindow<T> {
+    public static final int DEFAULT_SIZE = 64;
+
+    private final int size;
+    private final long[] received;  // bit (seq % size) is set when seq is in the window and waiting
+    private final Object[] items;  // indexed by seq % size
+    private final long[] arrivalTimes;  // indexed by seq % size
+    private long nextSequence = 0;  // lowest sequence number not delivered or skipped yet
+    private int waitingCount = 0;
+
+    private long duplicateCount = 0;
+    private long reorderedCount = 0;
+    private long skippedCount = 0;
+
+    /**
+     * @param size a multiple of 64
+     */
+    public ReorderWindow(int size) {
+        if (size <= 0 || size % Long.SIZE != 0) {
+            throw new IllegalArgumentException("size must be a positive multiple of 64");
+        }
+        this.size = size;
+        this.received = new long[size / Long.SIZE];
+        this.items = new Object[size];
+        this.arrivalTimes = new long[size];
+    }
+
+    /**
+     * @return the messages that can be delivered now, in sequence order; empty for a duplicate or an early message
+     */
+    public synchronized List<T> offer(long sequence, T item, long nowMillis) {
+        if (sequence < nextSequence) {
+            duplicateCount++;
+            return Collections.emptyList();
+        }
+        List<T> ready = new ArrayList<>();
+        if (sequence >= nextSequence + size) {
+            // make room by giving up on the oldest gaps
+            skipTo(sequence - size + 1, ready);
+        }
+        int index = (int) (sequence % size);
+        if (isReceived(index)) {
+            duplicateCount++;
+            return ready;
+        }
+        if (sequence != nextSequence) {
+            reorderedCount++;
+        }
+        setReceived(index, true);
+        items[index] = item;
+        arrivalTimes[index] = nowMillis;
+        waitingCount++;
+        drain(ready);
+        return ready;
+    }
+
+    /**
+     * Skips the gaps in front of messages that have waited for {@code timeoutMillis} or longer.
+     */
+    public synchronized List<T> flushExpired(long nowMillis, long timeoutMillis) {
+        List<T> ready = new ArrayList<>();
+        while (waitingCount > 0) {
+            long oldest = -1;
+            for (long sequence = nextSequence; sequence < nextSequence + size; sequence++) {
+                int index = (int) (sequence % size);
+                if (isReceived(index) && nowMillis - arrivalTimes[index] >= timeoutMillis) {
+                    oldest = sequence;
+                    break;
+                }
+            }
+            if (oldest < 0) {
+                break;
+            }
+            skipTo(oldest, ready);
+            drain(ready);
+        }
+        return ready;
+    }
+
+    /**
+     * Highest sequence number up to which everything was delivered or given up on; -1 if none yet.
+     */
+    public synchronized long getCumulativeSequence() {
+        return nextSequence - 1;
+    }
+
+    public synchronized int getWaitingCount() {
+        return waitingCount;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    public synchronized long getReorderedCount() {
+        return reorderedCount;
+    }
+
+    public synchronized long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * Starts over at sequence number 0 for a new session.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < received.length; i++) {
+            received[i] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            items[i] = null;
+        }
+        nextSequence = 0;
+        waitingCount = 0;
+    }
+
+    /**
+     * Moves the window start to {@code sequence}, delivering what waited on the way and counting the gaps.
+     */
+    private void skipTo(long sequence, List<T> ready) {
+        // past a full window nothing can be waiting any more
+        long end = Math.min(sequence, nextSequence + size);
+        for (long current = nextSequence; current < end; current++) {
+            int index = (int) (current % size);
+            if (isReceived(index)) {
+                ready.add(take(index));
+            } else {
+                skippedCount++;
+            }
+        }
+        skippedCount += sequence - end;
+        nextSequence = sequence;
+    }
+
+    private void drain(List<T> ready) {
+        int index;
+        while (isReceived(index = (int) (nextSequence % size))) {
+            ready.add(take(index));
+            nextSequence++;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T take(int index) {
+        T item = (T) items[index];
+        items[index] = null;
+        setReceived(index, false);
+        waitingCount--;
+        return item;
+    }
+
+    private boolean isReceived(int index) {
+        return (received[index / Long.SIZE] & (1L << (index % Long.SIZE))) != 0;
+    }
+
+    private void setReceived(int index, boolean value) {
+        if (value) {
+            received[index / Long.SIZE] |= 1L << (index % Long.SIZE);
+        } else {
+            received[index / Long.SIZE] &= ~(1L << (index % Long.SIZE));
+        }
+    }
+}
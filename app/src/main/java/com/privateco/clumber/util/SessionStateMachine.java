@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Where the current chat session is, from tapping connect to leaving the chat, and how long each step took.
+ * <p>
+ * A session goes CONNECTING, ENTERING, optionally AWAITING, KEY_EXCHANGE, CHATTING and finally EXITED, which is
+ * also the state before the first session; it can end early from any state. Every transition is timestamped, the
+ * time spent in each completed state goes into a {@link LatencyHistogram} for that state, and the time from
+ * CONNECTING to the first message sent or received, the time to first message, into one of its own. Histograms
+ * cover every session since the process started. Thread-safe; times are in milliseconds of one monotonic clock.
+ */
+public class SessionStateMachine {
+    public enum State {
+        /**
+         * Waiting for the socket before the entry request goes out.
+         */
+        CONNECTING,
+        /**
+         * Entry requested, waiting for the server to pair or park us.
+         */
+        ENTERING,
+        /**
+         * Parked in the room until the peer enters.
+         */
+        AWAITING,
+        /**
+         * Paired; both public keys have to cross before messages can.
+         */
+        KEY_EXCHANGE,
+        CHATTING,
+        EXITED
+    }
+
+    private State state = State.EXITED;  // guarded by this
+    private final Map<State, Long> enteredAt = new EnumMap<>(State.class);  // guarded by this, this session only
+    private String peerNickname;  // guarded by this
+    private boolean selfKeySentWithEntry;  // guarded by this
+    private boolean selfKeyShared;  // guarded by this
+    private boolean peerKeyReceived;  // guarded by this
+    private boolean firstMessageSeen;  // guarded by this
+
+    private final Map<State, LatencyHistogram> phaseHistograms = new EnumMap<>(State.class);  // guarded by this
+    private final LatencyHistogram timeToFirstMessage = new LatencyHistogram();  // guarded by this
+    private long illegalTransitionCount = 0;  // guarded by this
+
+    public SessionStateMachine() {
+        for (State phase : State.values()) {
+            phaseHistograms.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * CONNECTING is allowed from any state and abandons the session in progress, EXITED from any other state;
+     * otherwise only the next step of the handshake is. Server events can arrive late or twice, so a transition
+     * that is not allowed is counted and ignored.
+     *
+     * @return false if the transition is not allowed
+     */
+    public synchronized boolean moveTo(@NonNull State next, long nowMillis) {
+        if (!isAllowed(state, next)) {
+            illegalTransitionCount++;
+            return false;
+        }
+        if (next == State.CONNECTING) {
+            enteredAt.clear();
+            peerNickname = null;
+            selfKeySentWithEntry = false;
+            selfKeyShared = false;
+            peerKeyReceived = false;
+            firstMessageSeen = false;
+        } else {
+            Long since = enteredAt.get(state);
+            if (since != null) {
+                phaseHistograms.get(state).record(nowMillis - since);
+            }
+        }
+        state = next;
+        enteredAt.put(next, nowMillis);
+        return true;
+    }
+
+    /**
+     * Our public key went out with the entry request, for a server that pipelines the key exchange.
+     */
+    public synchronized void onSelfKeySentWithEntry() {
+        selfKeySentWithEntry = true;
+    }
+
+    /**
+     * @return true if our public key went out with this session's entry request
+     */
+    public synchronized boolean isSelfKeySentWithEntry() {
+        return selfKeySentWithEntry;
+    }
+
+    /**
+     * Our public key reached the peer, forwarded with the pairing or sent on its own.
+     *
+     * @return true if that completed the key exchange, which moves the session to CHATTING
+     */
+    public synchronized boolean onSelfKeyShared(long nowMillis) {
+        selfKeyShared = true;
+        return completeKeyExchange(nowMillis);
+    }
+
+    /**
+     * The peer's public key arrived.
+     *
+     * @return true if that completed the key exchange, which moves the session to CHATTING
+     */
+    public synchronized boolean onPeerKeyReceived(long nowMillis) {
+        peerKeyReceived = true;
+        return completeKeyExchange(nowMillis);
+    }
+
+    /**
+     * Call for every message sent or received; only the first one of a session counts.
+     *
+     * @return true for the first message of the session
+     */
+    public synchronized boolean onMessage(long nowMillis) {
+        if (state != State.CHATTING || firstMessageSeen) {
+            return false;
+        }
+        firstMessageSeen = true;
+        Long start = enteredAt.get(State.CONNECTING);
+        if (start != null) {
+            timeToFirstMessage.record(nowMillis - start);
+        }
+        return true;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized void setPeerNickname(@Nullable String peerNickname) {
+        this.peerNickname = peerNickname;
+    }
+
+    /**
+     * @return null before the server paired us with a peer
+     */
+    @Nullable
+    public synchronized String getPeerNickname() {
+        return peerNickname;
+    }
+
+    /**
+     * @return when the current session entered {@code phase}, or -1 if it did not
+     */
+    public synchronized long getEnteredAt(@NonNull State phase) {
+        Long at = enteredAt.get(phase);
+        return at != null ? at : -1;
+    }
+
+    /**
+     * Time spent in {@code phase} by every session that left it. The histogram is live: read it while holding the
+     * lock on this state machine, or use {@link #describe()}.
+     */
+    public LatencyHistogram getPhaseHistogram(@NonNull State phase) {
+        return phaseHistograms.get(phase);
+    }
+
+    /**
+     * The same caveat as {@link #getPhaseHistogram(State)} applies.
+     */
+    public LatencyHistogram getTimeToFirstMessageHistogram() {
+        return timeToFirstMessage;
+    }
+
+    public synchronized long getIllegalTransitionCount() {
+        return illegalTransitionCount;
+    }
+
+    /**
+     * One line for the log: time to first message first, then every phase that has been measured.
+     */
+    public synchronized String describe() {
+        StringBuilder text = new StringBuilder("time to first message ").append(timeToFirstMessage);
+        for (State phase : State.values()) {
+            LatencyHistogram histogram = phaseHistograms.get(phase);
+            if (histogram.getCount() > 0) {
+                text.append("; ").append(phase).append(' ').append(histogram);
+            }
+        }
+        return text.toString();
+    }
+
+    private boolean completeKeyExchange(long nowMillis) {
+        return state == State.KEY_EXCHANGE && selfKeyShared && peerKeyReceived && moveTo(State.CHATTING, nowMillis);
+    }
+
+    private static boolean isAllowed(State from, State to) {
+        switch (to) {
+            case CONNECTING:
+                return true;
+            case ENTERING:
+                return from == State.CONNECTING;
+            case AWAITING:
+                return from == State.ENTERING;
+            case KEY_EXCHANGE:
+                return from == State.ENTERING || from == State.AWAITING;
+            case CHATTING:
+                return from == State.KEY_EXCHANGE;
+            case EXITED:
+                return from != State.EXITED;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue from one producer thread to one consumer thread.
+ * <p>
+ * Producers on several threads are fine as long as they never offer concurrently, e.g. because they hold a
+ * common lock. What happens when the buffer is full depends on the {@link OverflowPolicy}.
+ */
+public class SpscRingBuffer<T> {
+    public enum OverflowPolicy {
+        // the producer waits for the consumer; nothing is lost
+        BLOCK,
+        // the oldest queued item is discarded to make room
+        DROP_OLDEST,
+        // items that do not fit are merged by the Coalescer and handed over after the queued ones
+        COALESCE
+    }
+
+    public interface Coalescer<T> {
+        /**
+         * @param older the overflow so far
+         * @return a single item standing for both
+         */
+        T coalesce(T older, T newer);
+    }
+
+    private static final int BLOCK_SPINS = 64;
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final AtomicReferenceArray<T> items;
+    private final int mask;
+    private final OverflowPolicy overflowPolicy;
+    private final Coalescer<T> coalescer;
+    // head is only advanced by the consumer, except that DROP_OLDEST lets the producer skip it ahead
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // COALESCE only: newer than everything in the ring while set
+    private final AtomicReference<T> overflow = new AtomicReference<>();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two
+     * @param coalescer required for {@link OverflowPolicy#COALESCE}, ignored otherwise
+     */
+    public SpscRingBuffer(int capacity, @NonNull OverflowPolicy overflowPolicy, @Nullable Coalescer<T> coalescer) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (overflowPolicy == OverflowPolicy.COALESCE && coalescer == null) {
+            throw new IllegalArgumentException("COALESCE needs a coalescer");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.items = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * Producer side. Blocks only with {@link OverflowPolicy#BLOCK}.
+     */
+    public void offer(@NonNull T item) {
+        if (overflowPolicy == OverflowPolicy.COALESCE && coalesceIntoOverflow(item)) {
+            return;
+        }
+        long currentTail = tail.get();
+        int waits = 0;
+        while (currentTail - head.get() > mask) {
+            switch (overflowPolicy) {
+                case BLOCK:
+                    if (waits++ == 0) {
+                        blockedCount.incrementAndGet();
+                    }
+                    // a busy consumer frees a slot within microseconds; one draining per frame takes longer
+                    if (waits < BLOCK_SPINS) {
+                        Thread.yield();
+                    } else {
+                        LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    }
+                    break;
+                case DROP_OLDEST:
+                    long currentHead = head.get();
+                    if (currentTail - currentHead > mask && head.compareAndSet(currentHead, currentHead + 1)) {
+                        droppedCount.incrementAndGet();
+                    }
+                    break;
+                case COALESCE:
+                    overflow.set(item);
+                    coalescedCount.incrementAndGet();
+                    return;
+            }
+        }
+        items.lazySet((int) (currentTail & mask), item);
+        tail.lazySet(currentTail + 1);
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return null if empty
+     */
+    @Nullable
+    public T poll() {
+        while (true) {
+            long currentHead = head.get();
+            if (currentHead == tail.get()) {
+                return overflowPolicy == OverflowPolicy.COALESCE ? overflow.getAndSet(null) : null;
+            }
+            T item = items.get((int) (currentHead & mask));
+            // fails only if DROP_OLDEST skipped this slot meanwhile, in which case the item may be a newer one
+            if (head.compareAndSet(currentHead, currentHead + 1)) {
+                return item;
+            }
+        }
+    }
+
+    /**
+     * Consumer side. Moves everything queued now into {@code sink}, oldest first.
+     *
+     * @return the number of items moved
+     */
+    public int drainTo(@NonNull List<? super T> sink) {
+        int count = 0;
+        T item;
+        while ((item = poll()) != null) {
+            sink.add(item);
+            count++;
+        }
+        return count;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get()) + (overflow.get() != null ? 1 : 0);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Times the producer had to wait for room.
+     */
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    /**
+     * While overflow is pending, every new item joins it so nothing overtakes it.
+     */
+    private boolean coalesceIntoOverflow(T item) {
+        while (true) {
+            T older = overflow.get();
+            if (older == null) {
+                return false;
+            }
+            if (overflow.compareAndSet(older, coalescer.coalesce(older, item))) {
+                coalescedCount.incrementAndGet();
+                return true;
+            }
+        }
+    }
+}
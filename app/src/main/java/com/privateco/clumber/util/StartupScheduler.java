@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.os.Trace;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Keeps app start work off the first frame.
+ * <p>
+ * Warm-up that every later screen needs (socket, crypto) starts on background threads when the process starts,
+ * see {@link #runInBackground(String, Runnable)}. Work a screen does not need for its first frame waits until
+ * that frame has been drawn, see {@link #runAfterFirstDraw(View, String, Runnable)}. Each piece of work runs in
+ * a trace section of its name, and its end is marked on the {@link StartupTimeline} and in the log, as is the
+ * first draw, so cold start can be measured in a system trace or from logcat.
+ */
+public class StartupScheduler {
+    public static final String MILESTONE_FIRST_DRAW = "first draw";
+    private static final String DONE_SUFFIX = " done";
+
+    private static final StartupScheduler instance = new StartupScheduler();
+
+    // starts with the first use, which is Application.onCreate()
+    private final StartupTimeline timeline = new StartupTimeline();
+
+    public static StartupScheduler getInstance() {
+        return instance;
+    }
+
+    private StartupScheduler() {
+    }
+
+    public StartupTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Records a milestone the first time it is reached.
+     */
+    public void mark(@NonNull String milestone) {
+        if (timeline.mark(milestone)) {
+            Log.i("startup", milestone + " at " + timeline.getMillis(milestone) + " ms");
+        }
+    }
+
+    /**
+     * Runs {@code task} on a new thread; "{@code section} done" is marked when it returns.
+     */
+    public void runInBackground(@NonNull final String section, @NonNull final Runnable task) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTraced(section, task);
+            }
+        }, section).start();
+    }
+
+    /**
+     * Runs {@code task} on the main thread once the window of {@code view} has drawn its next frame, which is its
+     * first when called from {@code onCreate}.
+     */
+    public void runAfterFirstDraw(@NonNull final View view, @NonNull final String section,
+                                  @NonNull final Runnable task) {
+        view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                view.getViewTreeObserver().removeOnPreDrawListener(this);
+                // queued behind the draw that follows this callback
+                view.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mark(MILESTONE_FIRST_DRAW);
+                        runTraced(section, task);
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
+    private void runTraced(String section, Runnable task) {
+        Trace.beginSection(section);
+        try {
+            task.run();
+        } finally {
+            Trace.endSection();
+        }
+        mark(section + DONE_SUFFIX);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named points of app start, e.g. "first draw", each recorded the first time it is reached. Thread-safe.
+ */
+public class StartupTimeline {
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final long startNanos;
+    private final Map<String, Long> milestones = new LinkedHashMap<>();  // guarded by this, nanos since start
+
+    public StartupTimeline() {
+        this(System.nanoTime());
+    }
+
+    StartupTimeline(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * @return false if the milestone was reached before, which leaves it as it was
+     */
+    public boolean mark(@NonNull String milestone) {
+        return mark(milestone, System.nanoTime());
+    }
+
+    synchronized boolean mark(String milestone, long nowNanos) {
+        if (milestones.containsKey(milestone)) {
+            return false;
+        }
+        milestones.put(milestone, nowNanos - startNanos);
+        return true;
+    }
+
+    /**
+     * @return milliseconds from start to the milestone, or -1 if it was not reached yet
+     */
+    public synchronized long getMillis(@NonNull String milestone) {
+        Long nanos = milestones.get(milestone);
+        return nanos != null ? nanos / NANOS_PER_MILLI : -1;
+    }
+
+    /**
+     * Milliseconds from start to every milestone reached so far, in the order they were reached.
+     */
+    public synchronized Map<String, Long> getMilestones() {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> milestone : milestones.entrySet()) {
+            millis.put(milestone.getKey(), milestone.getValue() / NANOS_PER_MILLI);
+        }
+        return Collections.unmodifiableMap(millis);
+    }
+}
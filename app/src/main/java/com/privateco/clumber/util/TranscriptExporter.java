@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import com.privateco.clumber.model.Message;
+
+/**
+ * Writes messages as transcript lines to a {@link Writer}, a chunk at a time.
+ * <p>
+ * Lines are appended to one reused buffer, which is copied into one reused char array and written out once it
+ * holds {@link #CHUNK_CHARS}, so the output never holds the whole transcript unless it is a string itself.
+ * Meant for a background thread; not thread-safe.
+ */
+public class TranscriptExporter {
+    static final int CHUNK_CHARS = 16 * 1024;
+
+    public interface ProgressListener {
+        /**
+         * Called after every chunk and once at the end, on the exporting thread.
+         */
+        void onProgress(int exported, int total);
+    }
+
+    public interface CancellationSignal {
+        boolean isCancelled();
+    }
+
+    private final TranscriptFormatter formatter;
+    private final StringBuilder chunk = new StringBuilder(CHUNK_CHARS + 1024);
+    private char[] chars = new char[CHUNK_CHARS + 1024];
+
+    public TranscriptExporter(@NonNull TranscriptFormatter formatter) {
+        this.formatter = formatter;
+    }
+
+    /**
+     * @param messages oldest first
+     * @return the number of messages written
+     */
+    public int export(@NonNull List<Message> messages, @NonNull Writer out, @Nullable ProgressListener listener,
+                      @Nullable CancellationSignal cancellation) throws IOException {
+        int exported = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            exported++;
+            if (append(messages.get(i), out)) {
+                report(listener, exported, messages.size());
+                if (isCancelled(cancellation)) {
+                    return exported;
+                }
+            }
+        }
+        flush(out);
+        report(listener, exported, messages.size());
+        return exported;
+    }
+
+    /**
+     * Exports every message of the store, reading one page at a time.
+     *
+     * @return the number of messages written
+     */
+    public int export(@NonNull PagedMessages store, @NonNull Writer out, @Nullable ProgressListener listener,
+                      @Nullable CancellationSignal cancellation) throws IOException {
+        int total = store.getMessageCount();
+        int exported = 0;
+        int pageCount = store.getPageCount();
+        for (int page = 0; page < pageCount; page++) {
+            List<Message> messages = store.getPage(page);
+            for (int i = 0; i < messages.size(); i++) {
+                exported++;
+                if (append(messages.get(i), out)) {
+                    // deleted messages count towards the total, so progress is by position
+                    report(listener, Math.min(total, (page + 1) * store.getPageSize()), total);
+                    if (isCancelled(cancellation)) {
+                        return exported;
+                    }
+                }
+            }
+        }
+        flush(out);
+        report(listener, total, total);
+        return exported;
+    }
+
+    /**
+     * @return true if a chunk was written
+     */
+    private boolean append(Message message, Writer out) throws IOException {
+        formatter.appendTo(chunk, message);
+        chunk.append('\n');
+        if (chunk.length() >= CHUNK_CHARS) {
+            flush(out);
+            return true;
+        }
+        return false;
+    }
+
+    private void flush(Writer out) throws IOException {
+        int length = chunk.length();
+        if (length == 0) {
+            return;
+        }
+        if (chars.length < length) {
+            chars = new char[length];
+        }
+        chunk.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+        chunk.setLength(0);
+    }
+
+    private static void report(ProgressListener listener, int exported, int total) {
+        if (listener != null) {
+            listener.onProgress(exported, total);
+        }
+    }
+
+    private static boolean isCancelled(CancellationSignal cancellation) {
+        return cancellation != null && cancellation.isCancelled();
+    }
+}
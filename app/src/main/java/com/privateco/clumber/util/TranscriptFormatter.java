@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+
+import com.stfalcon.chatkit.messages.MessagesListAdapter;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import com.privateco.clumber.model.Message;
+
+/**
+ * Formats a message as one transcript line, "name: text (date)".
+ * <p>
+ * The date format is created once and a formatted date is reused for every message of the same minute, which
+ * is the finest unit it shows. Not thread-safe: use one instance per thread.
+ */
+public class TranscriptFormatter implements MessagesListAdapter.Formatter<Message> {
+    private static final String DATE_PATTERN = "MMM d, EEE 'at' h:mm a";
+    private static final long MINUTE_MILLIS = 60 * 1000;
+
+    private final SimpleDateFormat dateFormat;
+    private final StringBuilder line = new StringBuilder();
+    private long cachedMinute = Long.MIN_VALUE;
+    private String cachedDate;
+
+    public TranscriptFormatter(@NonNull Locale locale) {
+        this.dateFormat = new SimpleDateFormat(DATE_PATTERN, locale);
+    }
+
+    @Override
+    public String format(Message message) {
+        line.setLength(0);
+        appendTo(line, message);
+        return line.toString();
+    }
+
+    /**
+     * Appends the line without creating intermediate strings.
+     */
+    public void appendTo(@NonNull StringBuilder out, @NonNull Message message) {
+        String text = message.getText();
+        out.append(message.getUser().getName())
+                .append(": ")
+                .append(text != null ? text : "[attachment]")
+                .append(" (")
+                .append(formatDate(message.getCreatedAt().getTime()))
+                .append(')');
+    }
+
+    private String formatDate(long time) {
+        // time zone offsets are whole minutes, so a minute since the epoch is a minute on the clock
+        long minute = time >= 0 ? time / MINUTE_MILLIS : (time + 1) / MINUTE_MILLIS - 1;
+        if (minute != cachedMinute) {
+            cachedDate = dateFormat.format(new Date(time));
+            cachedMinute = minute;
+        }
+        return cachedDate;
+    }
+}
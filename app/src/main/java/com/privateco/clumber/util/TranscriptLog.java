@@ -0,0 +1,593 @@
+/*
+ * Copyright (c) 2021 Privateco and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.privateco.clumber.util;
+
+import android.support.annotation.NonNull;
+
+import com.google.crypto.tink.Aead;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.privateco.clumber.model.Message;
+
+/**
+ * Chat transcript kept on the device, in a directory of append-only segment files.
+ * <p>
+ * Every message is one record: its length, then the message sealed by the {@link Aead} with the transcript id and
+ * its record number as associated data, so records cannot be moved around on disk, nor into another transcript
+ * sealed by the same key. The random id is created with the transcript and kept in its directory. Appends go
+ * through a write buffer to the channel of the newest segment; a segment is closed once it reaches
+ * {@code segmentBytes}. Reads map the segments into memory and find a record from the offset of every
+ * {@link #INDEX_INTERVAL}th record, which is all the index there is. Opening only walks the record lengths and
+ * decrypts nothing.
+ * <p>
+ * Deleted messages are filtered out when read until {@link #compact()} overwrites them with empty records.
+ * Record numbers never change, so neither do page boundaries.
+ */
+public class TranscriptLog implements PagedMessages, Flushable {
+    public static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+    static final int INDEX_INTERVAL = 32;
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACTING_SUFFIX = ".compacting";
+    private static final String ID_FILE_NAME = "id";
+    private static final int ID_BYTES = 16;
+
+    private final File directory;
+    private final Aead aead;
+    private final int pageSize;
+    private final int segmentBytes;
+    private final MessageCodec codec = new MessageCodec();
+    private final List<Segment> segments = new ArrayList<>();  // oldest first, the last one is written to
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+    private final Set<String> deletedIds = new HashSet<>();  // until compacted
+    // one compaction at a time; it takes the monitor of the log only briefly
+    private final Object compactionLock = new Object();
+    private FileChannel writeChannel;
+    private long recordCount = 0;
+    private byte[] transcriptId;
+
+    public static TranscriptLog open(@NonNull File directory, @NonNull Aead aead, int pageSize, int segmentBytes)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        TranscriptLog log = new TranscriptLog(directory, aead, pageSize, segmentBytes);
+        log.load();
+        return log;
+    }
+
+    private TranscriptLog(File directory, Aead aead, int pageSize, int segmentBytes) {
+        if (pageSize <= 0 || segmentBytes <= 0) {
+            throw new IllegalArgumentException("pageSize and segmentBytes must be positive");
+        }
+        this.directory = directory;
+        this.aead = aead;
+        this.pageSize = pageSize;
+        this.segmentBytes = segmentBytes;
+    }
+
+    private void load() throws IOException {
+        // segments without the id that sealed them cannot be read, so a transcript without one starts over
+        boolean hasId = readTranscriptId();
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                if (file.getName().endsWith(COMPACTING_SUFFIX)) {
+                    // left over from a compaction that did not finish; the original is still there
+                    file.delete();
+                    return false;
+                }
+                return file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        // zero-padded first record numbers sort by name
+        Arrays.sort(files);
+        boolean broken = false;
+        for (File file : files) {
+            if (!hasId || broken || firstIndexOf(file) != recordCount) {
+                // nothing after a gap or a torn record can be trusted
+                broken = true;
+                file.delete();
+                continue;
+            }
+            Segment segment = new Segment(file, recordCount);
+            broken = !scan(segment);
+            segments.add(segment);
+            recordCount += segment.recordCount;
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(segmentFile(0), 0));
+        }
+        openWriteChannel();
+    }
+
+    /**
+     * Reads the transcript id, or creates one if there is none.
+     *
+     * @return false if the id was created
+     */
+    private boolean readTranscriptId() throws IOException {
+        File file = new File(directory, ID_FILE_NAME);
+        if (file.length() == ID_BYTES) {
+            transcriptId = new byte[ID_BYTES];
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                input.readFully(transcriptId);
+            } finally {
+                input.close();
+            }
+            return true;
+        }
+        transcriptId = new byte[ID_BYTES];
+        new SecureRandom().nextBytes(transcriptId);
+        File creating = new File(directory, ID_FILE_NAME + ".new");
+        write(creating, ByteBuffer.wrap(transcriptId));
+        if (!creating.renameTo(file)) {
+            throw new IOException("Cannot create " + file);
+        }
+        return false;
+    }
+
+    /**
+     * Finds the records of a segment and cuts off a torn tail.
+     *
+     * @return false if the segment had to be cut
+     */
+    private boolean scan(Segment segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+        try {
+            long size = file.length();
+            ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int position = 0;
+            while (position + 4 <= size) {
+                int length = buffer.getInt(position);
+                if (length < 0 || length > MAX_RECORD_LENGTH || position + 4L + length > size) {
+                    break;
+                }
+                segment.addRecord(position);
+                position += 4 + length;
+            }
+            segment.length = position;
+            if (position < size) {
+                file.setLength(position);
+                return false;
+            }
+            return true;
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public synchronized void append(@NonNull Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageCodec.write(new DataOutputStream(bytes), message);
+        byte[] sealed;
+        try {
+            sealed = aead.encrypt(bytes.toByteArray(), associatedData(transcriptId, recordCount));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        int recordLength = 4 + sealed.length;
+        Segment segment = lastSegment();
+        if (segment.recordCount > 0 && segment.length + recordLength > segmentBytes) {
+            flush();
+            writeChannel.close();
+            segment = new Segment(segmentFile(recordCount), recordCount);
+            segments.add(segment);
+            openWriteChannel();
+        }
+        if (writeBuffer.remaining() < recordLength) {
+            flushBuffer();
+        }
+        if (recordLength > writeBuffer.capacity()) {
+            ByteBuffer record = ByteBuffer.allocate(recordLength);
+            record.putInt(sealed.length).put(sealed).flip();
+            while (record.hasRemaining()) {
+                writeChannel.write(record);
+            }
+        } else {
+            writeBuffer.putInt(sealed.length).put(sealed);
+        }
+        segment.addRecord((int) segment.length);
+        segment.length += recordLength;
+        recordCount++;
+    }
+
+    /**
+     * Writes buffered records to the file and waits for the device to store them.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        flushBuffer();
+        writeChannel.force(false);
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public synchronized int getMessageCount() {
+        return (int) recordCount;
+    }
+
+    @Override
+    public synchronized int getPageCount() {
+        return (int) (recordCount / pageSize) + 1;
+    }
+
+    @Override
+    public synchronized List<Message> getPage(int page) throws IOException {
+        if (page < 0 || page >= getPageCount()) {
+            throw new IndexOutOfBoundsException("page " + page + " of " + getPageCount());
+        }
+        long start = (long) page * pageSize;
+        long end = Math.min(start + pageSize, recordCount);
+        List<Message> messages = new ArrayList<>(pageSize);
+        if (start < end) {
+            read(start, end, messages);
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized void delete(@NonNull Collection<String> messageIds) {
+        deletedIds.addAll(messageIds);
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Overwrites deleted messages on disk with empty records, rewriting only the segments that held them.
+     * Decrypts every record, so call it off the main thread. The log is locked only to take a snapshot of the
+     * segments and to swap each rewritten one in, so reads and appends carry on meanwhile.
+     *
+     * @return the number of messages removed from disk
+     */
+    public int compact() throws IOException {
+        synchronized (compactionLock) {
+            List<Segment> snapshot;
+            long[] lengths;
+            Set<String> deleting;
+            synchronized (this) {
+                if (deletedIds.isEmpty()) {
+                    return 0;
+                }
+                flushBuffer();
+                snapshot = new ArrayList<>(segments);
+                lengths = new long[snapshot.size()];
+                for (int i = 0; i < lengths.length; i++) {
+                    lengths[i] = snapshot.get(i).length;
+                }
+                deleting = new HashSet<>(deletedIds);
+            }
+            int removed = 0;
+            for (int i = 0; i < snapshot.size(); i++) {
+                removed += compact(snapshot.get(i), lengths[i], deleting);
+            }
+            synchronized (this) {
+                deletedIds.removeAll(deleting);
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Rewrites the first {@code length} bytes of a segment without the lock, then swaps the result in under it,
+     * together with any records appended after those bytes meanwhile.
+     */
+    private int compact(Segment segment, long length, Set<String> deleting) throws IOException {
+        // a mapping of our own, since segment.map belongs to readers holding the lock
+        ByteBuffer buffer = mapReadOnly(segment.file, length);
+        MessageCodec compactionCodec = new MessageCodec();
+        List<Integer> removedOffsets = new ArrayList<>();
+        int position = 0;
+        for (long index = segment.firstIndex; position < length; index++) {
+            int recordLength = buffer.getInt(position);
+            if (recordLength > 0
+                    && deleting.contains(open(buffer, position, index, compactionCodec).getId())) {
+                removedOffsets.add(position);
+            }
+            position += 4 + recordLength;
+        }
+        if (removedOffsets.isEmpty()) {
+            return 0;
+        }
+        File compacting = new File(directory, segment.file.getName() + COMPACTING_SUFFIX);
+        Segment compacted = new Segment(segment.file, segment.firstIndex);
+        ByteBuffer out = ByteBuffer.allocate((int) length);
+        int next = 0;
+        position = 0;
+        while (position < length) {
+            int recordLength = buffer.getInt(position);
+            compacted.addRecord(out.position());
+            if (next < removedOffsets.size() && removedOffsets.get(next) == position) {
+                next++;
+                out.putInt(0);
+            } else {
+                ByteBuffer record = buffer.duplicate();
+                record.limit(position + 4 + recordLength).position(position);
+                out.put(record);
+            }
+            position += 4 + recordLength;
+        }
+        out.flip();
+        write(compacting, out);
+
+        synchronized (this) {
+            int at = segments.indexOf(segment);
+            if (at < 0 || !writeChannel.isOpen()) {
+                // cleared or closed meanwhile
+                compacting.delete();
+                return 0;
+            }
+            boolean isLast = at == segments.size() - 1;
+            flushBuffer();
+            if (segment.length > length) {
+                ByteBuffer tail = mapReadOnly(segment.file, segment.length);
+                int tailPosition = (int) length;
+                tail.position(tailPosition);
+                int offset = out.limit();
+                while (tailPosition < segment.length) {
+                    compacted.addRecord(offset);
+                    int recordLength = 4 + tail.getInt(tailPosition);
+                    tailPosition += recordLength;
+                    offset += recordLength;
+                }
+                RandomAccessFile output = new RandomAccessFile(compacting, "rw");
+                try {
+                    FileChannel channel = output.getChannel();
+                    channel.position(out.limit());
+                    while (tail.hasRemaining()) {
+                        channel.write(tail);
+                    }
+                    channel.force(false);
+                } finally {
+                    output.close();
+                }
+            }
+            compacted.length = out.limit() + (segment.length - length);
+            if (isLast) {
+                writeChannel.close();
+            }
+            if (!compacting.renameTo(segment.file)) {
+                throw new IOException("Cannot replace " + segment.file);
+            }
+            segments.set(at, compacted);
+            if (isLast) {
+                openWriteChannel();
+            }
+        }
+        return removedOffsets.size();
+    }
+
+    private static ByteBuffer mapReadOnly(File file, long length) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            return input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void write(File file, ByteBuffer bytes) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(0);
+            FileChannel channel = output.getChannel();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        } finally {
+            output.close();
+        }
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        writeBuffer.clear();
+        writeChannel.close();
+        for (Segment segment : segments) {
+            segment.file.delete();
+        }
+        segments.clear();
+        deletedIds.clear();
+        recordCount = 0;
+        segments.add(new Segment(segmentFile(0), 0));
+        openWriteChannel();
+    }
+
+    /**
+     * Flushes and closes the files. The transcript stays on disk.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        writeChannel.close();
+        for (Segment segment : segments) {
+            segment.map = null;
+        }
+    }
+
+    private void read(long start, long end, List<Message> messages) throws IOException {
+        flushBuffer();
+        int segmentIndex = segmentIndexOf(start);
+        long index = start;
+        while (index < end) {
+            Segment segment = segments.get(segmentIndex++);
+            ByteBuffer buffer = map(segment);
+            int position = segment.offsetOf((int) (index - segment.firstIndex), buffer);
+            long segmentEnd = Math.min(end, segment.firstIndex + segment.recordCount);
+            for (; index < segmentEnd; index++) {
+                int length = buffer.getInt(position);
+                if (length > 0) {
+                    Message message = open(buffer, position, index, codec);
+                    if (!deletedIds.contains(message.getId())) {
+                        messages.add(message);
+                    }
+                }
+                position += 4 + length;
+            }
+        }
+    }
+
+    private Message open(ByteBuffer buffer, int position, long index, MessageCodec codec) throws IOException {
+        byte[] sealed = new byte[buffer.getInt(position)];
+        ByteBuffer record = buffer.duplicate();
+        record.position(position + 4);
+        record.get(sealed);
+        byte[] plaintext;
+        try {
+            plaintext = aead.decrypt(sealed, associatedData(transcriptId, index));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Record " + index + " does not decrypt", e);
+        }
+        return codec.read(new DataInputStream(new ByteArrayInputStream(plaintext)));
+    }
+
+    private int segmentIndexOf(long index) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segments.get(middle).firstIndex <= index) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private ByteBuffer map(Segment segment) throws IOException {
+        // the newest segment grows, so its mapping is renewed once it falls behind
+        if (segment.map == null || segment.mappedLength < segment.length) {
+            RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+            try {
+                segment.map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segment.length);
+                segment.mappedLength = segment.length;
+            } finally {
+                file.close();
+            }
+        }
+        return segment.map;
+    }
+
+    private void flushBuffer() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            writeChannel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    private void openWriteChannel() throws IOException {
+        Segment segment = lastSegment();
+        writeChannel = new RandomAccessFile(segment.file, "rw").getChannel();
+        writeChannel.position(segment.length);
+    }
+
+    private Segment lastSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private File segmentFile(long firstIndex) {
+        return new File(directory, String.format(Locale.US, "%020d", firstIndex) + SEGMENT_SUFFIX);
+    }
+
+    private static long firstIndexOf(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] associatedData(byte[] transcriptId, long index) {
+        return ByteBuffer.allocate(transcriptId.length + 8).put(transcriptId).putLong(index).array();
+    }
+
+    private static final class Segment {
+        final File file;
+        final long firstIndex;
+        int recordCount = 0;
+        long length = 0;  // including records still in the write buffer
+        int[] sparseOffsets = new int[16];  // offset of every INDEX_INTERVAL-th record
+        MappedByteBuffer map;
+        long mappedLength = 0;
+
+        Segment(File file, long firstIndex) {
+            this.file = file;
+            this.firstIndex = firstIndex;
+        }
+
+        void addRecord(int offset) {
+            if (recordCount % INDEX_INTERVAL == 0) {
+                int slot = recordCount / INDEX_INTERVAL;
+                if (slot == sparseOffsets.length) {
+                    sparseOffsets = Arrays.copyOf(sparseOffsets, slot * 2);
+                }
+                sparseOffsets[slot] = offset;
+            }
+            recordCount++;
+        }
+
+        /**
+         * Starts at the nearest indexed record and skips at most {@code INDEX_INTERVAL - 1} lengths.
+         */
+        int offsetOf(int record, ByteBuffer buffer) {
+            int position = sparseOffsets[record / INDEX_INTERVAL];
+            for (int skip = record % INDEX_INTERVAL; skip > 0; skip--) {
+                position += 4 + buffer.getInt(position);
+            }
+            return position;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.privateco.clumber.crypto;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrency stress test of {@link EncryptionManager} session snapshots.
+ */
+public class EncryptionManagerTest {
+    private static final int WORKERS = 4;
+    private static final int RESETS = 200;
+    private static final byte[] CHAT_LINE = "ping".getBytes(StandardCharsets.UTF_8);
+
+    private final EncryptionManager manager = EncryptionManager.getInstance();
+
+    @Before
+    public void setUp() {
+        // talking to ourselves only works without the ratchet, which needs two distinct key pairs
+        manager.setMode(EncryptionManager.Mode.ECIES);
+        manager.reset();
+    }
+
+    @After
+    public void tearDown() {
+        manager.setMode(EncryptionManager.Mode.SESSION_RATCHET);
+        manager.reset();
+    }
+
+    @Test
+    public void snapshots_areNeverTornDuringReset() throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicInteger roundTrips = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(WORKERS);
+
+        for (int i = 0; i < WORKERS; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (running.get()) {
+                            // a torn read would pair the peer key of one key pair with the private key of another
+                            CryptoSession session = manager.currentSession();
+                            if (session.hasPeerPublicKey()) {
+                                assertArrayEquals(CHAT_LINE, session.decrypt(session.encrypt(CHAT_LINE)));
+                                roundTrips.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            worker.start();
+        }
+
+        for (int i = 0; i < RESETS; i++) {
+            manager.reset();
+            manager.resetPeerPublicKeyHandle(manager.getSelfPublicKeyJson());
+        }
+        running.set(false);
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(roundTrips.get() > 0);
+    }
+
+    @Test
+    public void encryptDecrypt_throughManager() throws Exception {
+        manager.resetPeerPublicKeyHandle(manager.getSelfPublicKeyJson());
+        assertEquals("你好", manager.decrypt(manager.encrypt("你好")));
+    }
+
+    @Test
+    public void keyExchangeFormat_isJsonUntilThePeerAdvertisesCompact() throws Exception {
+        assertEquals(EncryptionManager.KeyExchangeFormat.JSON, manager.getKeyExchangeFormat());
+
+        // an older client: a JSON key without key formats
+        manager.resetPeerPublicKeyHandle(manager.getSelfPublicKeyJson());
+        assertEquals(EncryptionManager.KeyExchangeFormat.JSON, manager.getKeyExchangeFormat());
+
+        manager.resetPeerPublicKeyHandle(manager.getSelfPublicKeyJson(),
+                Collections.<String>emptyList(), null, true);
+        assertEquals(EncryptionManager.KeyExchangeFormat.COMPACT, manager.getKeyExchangeFormat());
+        manager.setCompactKeyExchangeEnabled(false);
+        assertEquals(EncryptionManager.KeyExchangeFormat.JSON, manager.getKeyExchangeFormat());
+        manager.setCompactKeyExchangeEnabled(true);
+
+        // the next peer starts over
+        manager.reset();
+        assertEquals(EncryptionManager.KeyExchangeFormat.JSON, manager.getKeyExchangeFormat());
+
+        // advertised in the peer's "entry", before any key arrived
+        manager.setPeerAdvertisedCompactKey(true);
+        assertEquals(EncryptionManager.KeyExchangeFormat.COMPACT, manager.getKeyExchangeFormat());
+        manager.reset();
+        assertEquals(EncryptionManager.KeyExchangeFormat.JSON, manager.getKeyExchangeFormat());
+    }
+}
@@ -0,0 +1,124 @@
+package com.privateco.clumber.crypto;
+
+import com.google.crypto.tink.KeyTemplate;
+import com.google.crypto.tink.KeyTemplates;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hits, misses, refills and failed refills of {@link KeyPairPool}, and {@link EncryptionManager#reset()} taking from it.
+ */
+public class KeyPairPoolTest {
+    private static final long TIMEOUT_MS = 30000;
+
+    private static KeyTemplate keyTemplate;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // registers the hybrid key managers once, before any pool generates in the background
+        EncryptionManager.getInstance();
+        keyTemplate = KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM");
+    }
+
+    @Test
+    public void emptyPool_missesThenRefillsToItsDepth() throws Exception {
+        KeyPairPool pool = new KeyPairPool(keyTemplate, 3);
+        assertEquals(0, pool.size());
+
+        assertNotNull(pool.take());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0, pool.getHitCount());
+        awaitSize(pool, 3);
+
+        CryptoSession first = pool.take();
+        CryptoSession second = pool.take();
+        assertNotSame(first, second);
+        assertEquals(2, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        awaitSize(pool, 3);
+        assertEquals(3, pool.size());  // never more than the depth
+    }
+
+    @Test
+    public void setDepth_shrinksAndGrowsThePool() throws Exception {
+        KeyPairPool pool = new KeyPairPool(keyTemplate, 2);
+        pool.refill();
+        awaitSize(pool, 2);
+
+        pool.setDepth(1);
+        assertEquals(1, pool.size());
+        pool.setDepth(4);
+        awaitSize(pool, 4);
+        pool.setDepth(0);
+        assertEquals(0, pool.size());
+        pool.take();
+        assertEquals(0, pool.size());  // nothing to refill
+    }
+
+    @Test
+    public void failedRefill_fallsBackToSynchronousGeneration() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(2);
+        KeyPairPool pool = new KeyPairPool(keyTemplate, 2) {
+            @Override
+            CryptoSession generate() throws GeneralSecurityException {
+                // the two background refills fail, everything after succeeds
+                if (!Thread.currentThread().getName().equals("key-pair-pool") || failures.getAndDecrement() <= 0) {
+                    return super.generate();
+                }
+                throw new GeneralSecurityException("test failure");
+            }
+        };
+        pool.refill();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (failures.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.size());
+
+        assertNotNull(pool.take());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0, pool.getHitCount());
+
+        // a failed slot is free again once its task has finished, and the next refill schedules it
+        while (pool.size() < 2 && System.currentTimeMillis() < deadline) {
+            pool.refill();
+            Thread.sleep(10);
+        }
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void reset_installsAFreshSessionFromThePool() throws Exception {
+        EncryptionManager manager = EncryptionManager.getInstance();
+        KeyPairPool pool = manager.getKeyPairPool();
+        awaitSize(pool, pool.getDepth());
+        CryptoSession before = manager.currentSession();
+        manager.resetPeerPublicKeyHandle(manager.getSelfPublicKeyJson());
+        awaitSize(pool, pool.getDepth());
+        long hits = pool.getHitCount();
+
+        manager.reset();
+        CryptoSession after = manager.currentSession();
+
+        assertNotSame(before, after);
+        assertFalse(after.hasPeerPublicKey());
+        assertFalse(before.getSelfPublicKeyHandle().getKeysetInfo().equals(after.getSelfPublicKeyHandle().getKeysetInfo()));
+        assertEquals(hits + 1, pool.getHitCount());
+        assertSame(after, manager.currentSession());
+        manager.reset();
+    }
+
+    private static void awaitSize(KeyPairPool pool, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (pool.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, pool.size());
+    }
+}
@@ -0,0 +1,107 @@
+package com.privateco.clumber.crypto;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip of the payload framing, with compression ratio and CPU cost over a sample chat corpus.
+ */
+public class PayloadCompressorTest {
+    private static final int ROUNDS = 200;
+
+    private static final List<String> CORPUS = Arrays.asList(
+            "hi",
+            "ok",
+            "Good morning! Are you coming to the meeting today?",
+            "I think I'll be a bit late, sorry. Can we meet at the station at 7 tonight?",
+            "haha that's so funny, I didn't know you could do that",
+            "Thanks for the message, I will call you later when I get home from work",
+            "Don't forget to bring the documents tomorrow, we need them for the weekend trip",
+            "好的",
+            "谢谢你，明天见！",
+            "不好意思，我今天晚上没有时间，我们周末再一起吃饭吧",
+            "你知道现在那个地方怎么走吗？我觉得我们还是一起去比较好",
+            "哈哈哈哈哈哈哈哈哈哈",
+            "因为下雨了，所以我们改到明天早上再出发，如果有问题的话告诉我一下",
+            "Meeting moved: 明天早上十点 at the office, please confirm 谢谢");
+
+    @Test
+    public void roundTrip_everyCorpusLine() throws Exception {
+        for (String line : CORPUS) {
+            byte[] plaintext = line.getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals(plaintext, PayloadCompressor.unframe(PayloadCompressor.frame(plaintext, true)));
+            assertArrayEquals(plaintext, PayloadCompressor.unframe(PayloadCompressor.frame(plaintext, false)));
+        }
+    }
+
+    @Test
+    public void frame_neverCostsMoreThanTheFlagByte() {
+        for (String line : CORPUS) {
+            byte[] plaintext = line.getBytes(StandardCharsets.UTF_8);
+            assertTrue(PayloadCompressor.frame(plaintext, true).length <= plaintext.length + 1);
+        }
+        assertEquals(PayloadCompressor.FLAG_RAW, PayloadCompressor.frame("ok".getBytes(StandardCharsets.UTF_8), true)[0]);
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void unframe_rejectsUnknownFlag() throws Exception {
+        PayloadCompressor.unframe(new byte[]{0x7f, 1, 2, 3});
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void unframe_rejectsTruncatedDeflate() throws Exception {
+        byte[] framed = PayloadCompressor.frame(CORPUS.get(11).getBytes(StandardCharsets.UTF_8), true);
+        assertEquals(PayloadCompressor.FLAG_DEFLATE_DICTIONARY_V1, framed[0]);
+        PayloadCompressor.unframe(Arrays.copyOf(framed, framed.length / 2));
+    }
+
+    @Test
+    public void compressionRatioAndCpuCost_overCorpus() throws Exception {
+        // warm up so class loading and JIT stay out of the measurement
+        for (int i = 0; i < ROUNDS; i++) {
+            for (String line : CORPUS) {
+                PayloadCompressor.unframe(PayloadCompressor.frame(line.getBytes(StandardCharsets.UTF_8), true));
+            }
+        }
+
+        long rawBytes = 0;
+        long framedBytes = 0;
+        long compressedLines = 0;
+        for (String line : CORPUS) {
+            byte[] plaintext = line.getBytes(StandardCharsets.UTF_8);
+            byte[] framed = PayloadCompressor.frame(plaintext, true);
+            rawBytes += plaintext.length;
+            framedBytes += framed.length;
+            if (framed[0] == PayloadCompressor.FLAG_DEFLATE_DICTIONARY_V1) {
+                compressedLines++;
+            }
+        }
+
+        long frameNanos = 0;
+        long unframeNanos = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            for (String line : CORPUS) {
+                byte[] plaintext = line.getBytes(StandardCharsets.UTF_8);
+                long start = System.nanoTime();
+                byte[] framed = PayloadCompressor.frame(plaintext, true);
+                frameNanos += System.nanoTime() - start;
+                start = System.nanoTime();
+                PayloadCompressor.unframe(framed);
+                unframeNanos += System.nanoTime() - start;
+            }
+        }
+        int messages = ROUNDS * CORPUS.size();
+
+        System.out.printf("payload compression: %d -> %d bytes (%.0f%%), %d of %d lines compressed, "
+                        + "%d us to compress and %d us to decompress per message%n",
+                rawBytes, framedBytes, 100.0 * framedBytes / rawBytes, compressedLines, CORPUS.size(),
+                frameNanos / messages / 1000, unframeNanos / messages / 1000);
+        assertTrue(framedBytes < rawBytes);
+    }
+}
@@ -0,0 +1,95 @@
+package com.privateco.clumber.crypto;
+
+import com.google.crypto.tink.CleartextKeysetHandle;
+import com.google.crypto.tink.HybridDecrypt;
+import com.google.crypto.tink.HybridEncrypt;
+import com.google.crypto.tink.JsonKeysetReader;
+import com.google.crypto.tink.JsonKeysetWriter;
+import com.google.crypto.tink.KeyTemplate;
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.hybrid.HybridConfig;
+import com.google.crypto.tink.subtle.X25519;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip of the compact public key encoding, with handshake size and parse latency against the JSON keyset.
+ */
+public class PublicKeyCodecTest {
+    private static final int PARSE_ROUNDS = 2000;
+
+    private static PublicKeyCodec codec;
+    private static KeysetHandle privateKeyHandle;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        HybridConfig.register();
+        KeyTemplate keyTemplate = KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM");
+        codec = new PublicKeyCodec(keyTemplate);
+        privateKeyHandle = KeysetHandle.generateNew(keyTemplate);
+    }
+
+    @Test
+    public void roundTrip_decodedKeyEncryptsForOriginal() throws Exception {
+        byte[] x25519PublicKey = X25519.publicFromPrivate(X25519.generatePrivateKey());
+        byte[] encoded = codec.encode(privateKeyHandle.getPublicKeysetHandle(),
+                Arrays.asList(CipherSuite.values()), x25519PublicKey);
+        assertEquals(PublicKeyCodec.ENCODED_LENGTH, encoded.length);
+
+        PublicKeyCodec.PeerPublicKey decoded = codec.decode(encoded);
+        assertEquals(Arrays.asList("x25519", "p256"), decoded.cipherSuiteIds);
+        assertArrayEquals(x25519PublicKey, decoded.x25519PublicKey);
+
+        byte[] plaintext = "hello".getBytes(StandardCharsets.UTF_8);
+        byte[] ciphertext = decoded.publicKeyHandle.getPrimitive(HybridEncrypt.class).encrypt(plaintext, null);
+        assertArrayEquals(plaintext, privateKeyHandle.getPrimitive(HybridDecrypt.class).decrypt(ciphertext, null));
+    }
+
+    @Test
+    public void roundTrip_noCipherSuites() throws Exception {
+        byte[] encoded = codec.encode(privateKeyHandle.getPublicKeysetHandle(),
+                Collections.<CipherSuite>emptyList(), new byte[32]);
+        assertTrue(codec.decode(encoded).cipherSuiteIds.isEmpty());
+    }
+
+    @Test
+    public void handshakeBytesAndParseLatency_jsonVersusCompact() throws Exception {
+        KeysetHandle publicKeyHandle = privateKeyHandle.getPublicKeysetHandle();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        CleartextKeysetHandle.write(publicKeyHandle, JsonKeysetWriter.withOutputStream(outputStream));
+        byte[] json = outputStream.toByteArray();
+        byte[] compact = codec.encode(publicKeyHandle, Arrays.asList(CipherSuite.values()), new byte[32]);
+
+        // warm up both paths so neither pays for class loading and JIT in the measurement
+        for (int i = 0; i < PARSE_ROUNDS; i++) {
+            KeysetHandle.readNoSecret(JsonKeysetReader.withBytes(json));
+            codec.decode(compact);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < PARSE_ROUNDS; i++) {
+            KeysetHandle.readNoSecret(JsonKeysetReader.withBytes(json));
+        }
+        long jsonNanos = (System.nanoTime() - start) / PARSE_ROUNDS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < PARSE_ROUNDS; i++) {
+            codec.decode(compact);
+        }
+        long compactNanos = (System.nanoTime() - start) / PARSE_ROUNDS;
+
+        // the JSON figure excludes the cipher suites and X25519 key, which the compact form already includes
+        System.out.printf("public key handshake: JSON keyset %d bytes, %d us to parse; compact %d bytes, %d us to parse%n",
+                json.length, jsonNanos / 1000, compact.length, compactNanos / 1000);
+        assertTrue(compact.length < json.length);
+    }
+}
@@ -0,0 +1,194 @@
+package com.privateco.clumber.crypto;
+
+import com.google.crypto.tink.HybridDecrypt;
+import com.google.crypto.tink.HybridEncrypt;
+import com.google.crypto.tink.KeyTemplate;
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.hybrid.HybridConfig;
+import com.google.crypto.tink.subtle.X25519;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of {@link SessionRatchet}, a per-message cost comparison against ECIES and
+ * the per-suite key setup cost behind the {@link CipherSuite} ordering.
+ */
+public class SessionRatchetTest {
+    private static final int BENCHMARK_MESSAGES = 2000;
+    private static final int AGREEMENT_ROUNDS = 200;
+    private static final byte[] CHAT_LINE = "hello there, 你好，今天过得怎么样？".getBytes(StandardCharsets.UTF_8);
+
+    private static KeysetHandle alicePrivate;
+    private static KeysetHandle bobPrivate;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        HybridConfig.register();
+        alicePrivate = KeysetHandle.generateNew(KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM"));
+        bobPrivate = KeysetHandle.generateNew(KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM"));
+    }
+
+    @Test
+    public void roundTrip_bothDirections() throws Exception {
+        SessionRatchet alice = SessionRatchet.establishP256(alicePrivate, bobPrivate.getPublicKeysetHandle());
+        SessionRatchet bob = SessionRatchet.establishP256(bobPrivate, alicePrivate.getPublicKeysetHandle());
+
+        for (int i = 0; i < 10; i++) {
+            byte[] fromAlice = alice.encrypt(CHAT_LINE);
+            assertTrue(SessionRatchet.isRatchetCiphertext(fromAlice));
+            assertArrayEquals(CHAT_LINE, bob.decrypt(fromAlice));
+
+            byte[] fromBob = bob.encrypt(CHAT_LINE);
+            assertArrayEquals(CHAT_LINE, alice.decrypt(fromBob));
+        }
+    }
+
+    @Test
+    public void roundTrip_x25519() throws Exception {
+        byte[] alicePrivateKey = X25519.generatePrivateKey();
+        byte[] bobPrivateKey = X25519.generatePrivateKey();
+        SessionRatchet alice = SessionRatchet.establishX25519(alicePrivateKey, X25519.publicFromPrivate(bobPrivateKey));
+        SessionRatchet bob = SessionRatchet.establishX25519(bobPrivateKey, X25519.publicFromPrivate(alicePrivateKey));
+
+        assertArrayEquals(CHAT_LINE, bob.decrypt(alice.encrypt(CHAT_LINE)));
+        assertArrayEquals(CHAT_LINE, alice.decrypt(bob.encrypt(CHAT_LINE)));
+    }
+
+    @Test
+    public void negotiate_picksFastestSharedSuite() {
+        Set<CipherSuite> all = EnumSet.allOf(CipherSuite.class);
+        assertEquals(CipherSuite.X25519_HKDF_SHA256_AES128_GCM,
+                CipherSuite.negotiate(all, Arrays.asList("p256", "x25519")));
+        assertEquals(CipherSuite.P256_HKDF_SHA256_AES128_GCM,
+                CipherSuite.negotiate(all, Collections.singletonList("p256")));
+        assertEquals(CipherSuite.P256_HKDF_SHA256_AES128_GCM,
+                CipherSuite.negotiate(EnumSet.of(CipherSuite.P256_HKDF_SHA256_AES128_GCM), Arrays.asList("x25519", "p256")));
+        // older clients advertise nothing and stay on ECIES
+        assertNull(CipherSuite.negotiate(all, Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void decrypt_outOfOrderAndReplay() throws Exception {
+        SessionRatchet alice = SessionRatchet.establishP256(alicePrivate, bobPrivate.getPublicKeysetHandle());
+        SessionRatchet bob = SessionRatchet.establishP256(bobPrivate, alicePrivate.getPublicKeysetHandle());
+
+        byte[] first = alice.encrypt("first".getBytes(StandardCharsets.UTF_8));
+        byte[] second = alice.encrypt("second".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("second", new String(bob.decrypt(second), StandardCharsets.UTF_8));
+        assertEquals("first", new String(bob.decrypt(first), StandardCharsets.UTF_8));
+        try {
+            bob.decrypt(first);
+            fail("replayed message must be rejected");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void tamperedCiphertext_leavesTheChainAndSkippedKeysAlone() throws Exception {
+        SessionRatchet alice = SessionRatchet.establishP256(alicePrivate, bobPrivate.getPublicKeysetHandle());
+        SessionRatchet bob = SessionRatchet.establishP256(bobPrivate, alicePrivate.getPublicKeysetHandle());
+        byte[] first = alice.encrypt("first".getBytes(StandardCharsets.UTF_8));
+        byte[] second = alice.encrypt("second".getBytes(StandardCharsets.UTF_8));
+        byte[] third = alice.encrypt("third".getBytes(StandardCharsets.UTF_8));
+        assertEquals("second", new String(bob.decrypt(second), StandardCharsets.UTF_8));
+
+        // a header pushed 1000 messages ahead, and a copy of the skipped first message with a broken tag
+        byte[] forgedAhead = third.clone();
+        forgedAhead[4] = (byte) 0xe8;
+        forgedAhead[3] = (byte) 0x03;
+        byte[] corruptedFirst = first.clone();
+        corruptedFirst[corruptedFirst.length - 1] ^= 1;
+        for (byte[] forged : Arrays.asList(forgedAhead, corruptedFirst)) {
+            try {
+                bob.decrypt(forged);
+                fail("tampered message must be rejected");
+            } catch (GeneralSecurityException expected) {
+            }
+        }
+
+        assertEquals("third", new String(bob.decrypt(third), StandardCharsets.UTF_8));
+        assertEquals("first", new String(bob.decrypt(first), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void perMessageCost_eciesVersusRatchet() throws Exception {
+        HybridEncrypt eciesEncrypt = bobPrivate.getPublicKeysetHandle().getPrimitive(HybridEncrypt.class);
+        HybridDecrypt eciesDecrypt = bobPrivate.getPrimitive(HybridDecrypt.class);
+        SessionRatchet alice = SessionRatchet.establishP256(alicePrivate, bobPrivate.getPublicKeysetHandle());
+        SessionRatchet bob = SessionRatchet.establishP256(bobPrivate, alicePrivate.getPublicKeysetHandle());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+            eciesDecrypt.decrypt(eciesEncrypt.encrypt(CHAT_LINE, null), null);
+        }
+        long eciesNanos = (System.nanoTime() - start) / BENCHMARK_MESSAGES;
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+            bob.decrypt(alice.encrypt(CHAT_LINE));
+        }
+        long ratchetNanos = (System.nanoTime() - start) / BENCHMARK_MESSAGES;
+
+        System.out.printf("per message encrypt+decrypt: ECIES %d us, ratchet %d us%n",
+                eciesNanos / 1000, ratchetNanos / 1000);
+        assertTrue(ratchetNanos < eciesNanos);
+    }
+
+    @Test
+    public void keySetupCost_perCipherSuite() throws Exception {
+        KeyTemplate template = KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM");
+        for (int round = 0; round < 2; round++) {  // the first round warms up the JIT
+            // what the pool generates per key pair: the P-256 keyset alone, as before, and with the X25519 key
+            long start = System.nanoTime();
+            for (int i = 0; i < AGREEMENT_ROUNDS; i++) {
+                KeysetHandle.generateNew(template).getPublicKeysetHandle();
+            }
+            long p256GenerateNanos = (System.nanoTime() - start) / AGREEMENT_ROUNDS;
+
+            CryptoSession[] pooled = new CryptoSession[AGREEMENT_ROUNDS + 1];
+            start = System.nanoTime();
+            for (int i = 0; i < pooled.length; i++) {
+                pooled[i] = CryptoSession.fromPrivateKey(KeysetHandle.generateNew(template));
+            }
+            long pooledGenerateNanos = (System.nanoTime() - start) / pooled.length;
+
+            // what runs when the peer's key arrives, with both key pairs already pooled
+            start = System.nanoTime();
+            for (int i = 0; i < AGREEMENT_ROUNDS; i++) {
+                pooled[i].withPeer(pooled[i + 1].getSelfPublicKeyHandle(), CipherSuite.X25519_HKDF_SHA256_AES128_GCM,
+                        pooled[i + 1].getSelfX25519PublicKey(), false);
+            }
+            long x25519AgreeNanos = (System.nanoTime() - start) / AGREEMENT_ROUNDS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < AGREEMENT_ROUNDS; i++) {
+                pooled[i].withPeer(pooled[i + 1].getSelfPublicKeyHandle(), CipherSuite.P256_HKDF_SHA256_AES128_GCM,
+                        null, false);
+            }
+            long p256AgreeNanos = (System.nanoTime() - start) / AGREEMENT_ROUNDS;
+
+            System.out.printf("key pair generation (pool thread): p256 only %d us, p256 + x25519 %d us%n",
+                    p256GenerateNanos / 1000, pooledGenerateNanos / 1000);
+            System.out.printf("key agreement (handshake): x25519 %d us, p256 %d us%n",
+                    x25519AgreeNanos / 1000, p256AgreeNanos / 1000);
+            System.out.printf("total per session: x25519 %d us, p256 %d us%n",
+                    (pooledGenerateNanos + x25519AgreeNanos) / 1000, (p256GenerateNanos + p256AgreeNanos) / 1000);
+            if (round == 1) {
+                // the ordering only has to win where the user waits
+                assertTrue(x25519AgreeNanos < p256AgreeNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.privateco.clumber.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Cached reads and conditional revalidation of {@link ApiClient}.
+ */
+public class ApiClientTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private String url;
+    private volatile String body = "{\"hasNotice\":false}";
+    private volatile String etag = "\"v1\"";
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/notice", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(ifNoneMatch)) {
+                    requests.add("304");
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    requests.add("200");
+                    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(200, bytes.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(bytes);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/notice";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void nothingCached_returnsNullWithoutARequest() throws Exception {
+        ApiClient client = new ApiClient(folder.newFolder("http"));
+        assertNull(client.getCached(url));
+        assertTrue(requests.isEmpty());
+    }
+
+    @Test
+    public void unchangedResponse_isRevalidatedWithAnEmpty304() throws Exception {
+        ApiClient client = new ApiClient(folder.newFolder("http"));
+        assertEquals(body, client.get(url));
+        assertEquals(body, client.getCached(url));
+        assertEquals(body, client.get(url));
+        assertEquals(Arrays.asList("200", "304"), requests);
+    }
+
+    @Test
+    public void changedResponse_replacesTheCachedOne() throws Exception {
+        ApiClient client = new ApiClient(folder.newFolder("http"));
+        client.get(url);
+        body = "{\"hasNotice\":true}";
+        etag = "\"v2\"";
+
+        assertEquals("{\"hasNotice\":false}", client.getCached(url));
+        assertEquals(body, client.get(url));
+        assertEquals(body, client.getCached(url));
+        assertEquals(Arrays.asList("200", "200"), requests);
+    }
+
+    @Test
+    public void cachedResponse_survivesTheServerGoingAway() throws Exception {
+        ApiClient client = new ApiClient(folder.newFolder("http"));
+        client.get(url);
+        server.stop(0);
+
+        assertEquals(body, client.getCached(url));
+    }
+}
@@ -0,0 +1,44 @@
+package com.privateco.clumber.util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Initials and colors that {@link AvatarCache} draws for a nickname.
+ */
+public class AvatarCacheTest {
+
+    @Test
+    public void initials_comeFromTheFirstTwoWords() {
+        assertEquals("J", AvatarCache.getInitials("john"));
+        assertEquals("JD", AvatarCache.getInitials("  john  doe smith "));
+        assertEquals("张", AvatarCache.getInitials("张三"));
+        assertEquals("?", AvatarCache.getInitials("   "));
+        // a character outside the basic plane is kept whole
+        assertEquals("😀", AvatarCache.getInitials("😀 "));
+    }
+
+    @Test
+    public void color_isStablePerNickname() {
+        assertEquals(AvatarCache.getColor("alice"), AvatarCache.getColor(new String("alice")));
+        Set<Integer> colors = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            int color = AvatarCache.getColor("user" + i);
+            assertEquals(0xFF000000, color & 0xFF000000);
+            colors.add(color);
+        }
+        assertTrue(colors.size() > 5);
+    }
+
+    @Test
+    public void references_roundTrip() {
+        String reference = AvatarCache.getReference("alice");
+        assertTrue(AvatarCache.isReference(reference));
+        assertFalse(AvatarCache.isReference("http://example.com/a.png"));
+        assertFalse(AvatarCache.isReference(null));
+    }
+}
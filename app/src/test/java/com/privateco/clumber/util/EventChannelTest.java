@@ -0,0 +1,209 @@
+package com.privateco.clumber.util;
+
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
+import org.greenrobot.eventbus.ThreadMode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Delivery of {@link EventChannel} and {@link MainThreadDispatcher}, and 100k events against the EventBus path
+ * it replaces.
+ */
+public class EventChannelTest {
+    private static final int EVENTS = 100000;
+    private static final int WARM_UP_ROUNDS = 5;
+
+    /**
+     * Queues main thread tasks so the test can run them, counting the hops.
+     */
+    private static class QueueingExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            tasks.add(runnable);
+        }
+
+        int runAll() {
+            int count = tasks.size();
+            for (Runnable task : new ArrayList<>(tasks)) {
+                task.run();
+            }
+            tasks.clear();
+            return count;
+        }
+    }
+
+    private static class Counter implements EventChannel.Subscriber<String> {
+        long count;
+        long length;
+
+        @Override
+        public void onEvent(String event) {
+            count++;
+            length += event.length();
+        }
+    }
+
+    // the string-keyed event and subscriber the channels replace
+    public static class StringEvent {
+        final String event;
+        final Object attachment;
+
+        StringEvent(String event, Object attachment) {
+            this.event = event;
+            this.attachment = attachment;
+        }
+    }
+
+    public static class StringEventSubscriber {
+        long count;
+        long length;
+
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onMessageEvent(StringEvent event) {
+            switch (event.event) {
+                case "socket_user_exited":
+                    break;
+                case "socket_receive_message":
+                    count++;
+                    length += ((String) event.attachment).length();
+                    break;
+            }
+        }
+    }
+
+    @Test
+    public void post_reachesOnlyCurrentSubscribers() {
+        EventChannel<String> channel = new EventChannel<>("test");
+        Counter first = new Counter();
+        Counter second = new Counter();
+        channel.subscribe(first);
+        channel.subscribe(second);
+        channel.post("a");
+        channel.unsubscribe(first);
+        channel.post("bb");
+
+        assertEquals(1, first.count);
+        assertEquals(2, second.count);
+        assertEquals(3, second.length);
+    }
+
+    @Test
+    public void batchedHop_deliversABurstInOneTaskAndInOrder() {
+        QueueingExecutor mainThread = new QueueingExecutor();
+        MainThreadDispatcher dispatcher = new MainThreadDispatcher(mainThread);
+        EventChannel<String> channel = new EventChannel<>("test", dispatcher);
+        final List<String> received = new ArrayList<>();
+        channel.subscribeOnMainThread(new EventChannel.Subscriber<String>() {
+            @Override
+            public void onEvent(String event) {
+                received.add(event);
+            }
+        });
+
+        for (int i = 0; i < 100; i++) {
+            channel.post("event " + i);
+        }
+        assertTrue(received.isEmpty());
+        assertEquals(1, mainThread.runAll());
+        assertEquals(100, received.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("event " + i, received.get(i));
+        }
+
+        dispatcher.setBatched(false);
+        for (int i = 0; i < 100; i++) {
+            channel.post("event " + i);
+        }
+        assertEquals(100, mainThread.runAll());
+    }
+
+    @Test
+    public void unsubscribe_dropsEventsStillWaitingForTheMainThread() {
+        QueueingExecutor mainThread = new QueueingExecutor();
+        MainThreadDispatcher dispatcher = new MainThreadDispatcher(mainThread);
+        final EventChannel<String> channel = new EventChannel<>("test", dispatcher);
+        final Counter counter = new Counter();
+        // unsubscribes the counter while its copy of the same event is still queued behind this one
+        channel.subscribeOnMainThread(new EventChannel.Subscriber<String>() {
+            @Override
+            public void onEvent(String event) {
+                channel.unsubscribe(counter);
+            }
+        });
+        channel.subscribeOnMainThread(counter);
+
+        channel.post("in the same drain");
+        mainThread.runAll();
+        assertEquals(0, counter.count);
+
+        channel.post("after unsubscribing");
+        mainThread.runAll();
+        assertEquals(0, counter.count);
+
+        channel.subscribeOnMainThread(counter);
+        dispatcher.setBatched(false);
+        channel.post("unbatched");
+        channel.unsubscribe(counter);
+        mainThread.runAll();
+        assertEquals(0, counter.count);
+    }
+
+    @Test
+    public void throughput_channelVersusEventBus() {
+        EventBus eventBus = EventBus.builder().logNoSubscriberMessages(false).sendNoSubscriberEvent(false).build();
+        StringEventSubscriber busSubscriber = new StringEventSubscriber();
+        eventBus.register(busSubscriber);
+        EventChannel<String> channel = new EventChannel<>("socket_receive_message");
+        Counter channelSubscriber = new Counter();
+        channel.subscribe(channelSubscriber);
+
+        QueueingExecutor mainThread = new QueueingExecutor();
+        EventChannel<String> hopChannel = new EventChannel<>("socket_receive_message", new MainThreadDispatcher(mainThread));
+        Counter hopSubscriber = new Counter();
+        hopChannel.subscribeOnMainThread(hopSubscriber);
+
+        long busNanos = 0;
+        long channelNanos = 0;
+        long hopNanos = 0;
+        int hops = 0;
+        for (int round = 0; round <= WARM_UP_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < EVENTS; i++) {
+                eventBus.post(new StringEvent("socket_receive_message", "hello"));
+            }
+            busNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < EVENTS; i++) {
+                channel.post("hello");
+            }
+            channelNanos = System.nanoTime() - start;
+
+            // posting and draining in bursts of 100, as the socket thread and main looper would
+            start = System.nanoTime();
+            hops = 0;
+            for (int i = 0; i < EVENTS; i += 100) {
+                for (int j = 0; j < 100; j++) {
+                    hopChannel.post("hello");
+                }
+                hops += mainThread.runAll();
+            }
+            hopNanos = System.nanoTime() - start;
+        }
+
+        System.out.printf("%d events: EventBus %d us, EventChannel %d us, EventChannel with batched main thread hop %d us in %d hops%n",
+                EVENTS, busNanos / 1000, channelNanos / 1000, hopNanos / 1000, hops);
+        assertEquals(EVENTS * (WARM_UP_ROUNDS + 1), busSubscriber.count);
+        assertEquals(EVENTS * (WARM_UP_ROUNDS + 1), channelSubscriber.count);
+        assertEquals(EVENTS * (WARM_UP_ROUNDS + 1), hopSubscriber.count);
+        assertEquals(EVENTS / 100, hops);
+    }
+}
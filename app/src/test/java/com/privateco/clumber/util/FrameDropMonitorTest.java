@@ -0,0 +1,32 @@
+package com.privateco.clumber.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Dropped frame accounting of {@link FrameDropMonitor}.
+ */
+public class FrameDropMonitorTest {
+    private static final long PERIOD_NANOS = 1000000000L / 60;
+
+    @Test
+    public void onFrame_countsTheFramesBetweenLateCallbacks() {
+        FrameDropMonitor monitor = new FrameDropMonitor(60);
+        long time = 1000;
+        monitor.onFrame(time);
+        monitor.onFrame(time += PERIOD_NANOS);
+        // a little vsync jitter is not a drop
+        monitor.onFrame(time += PERIOD_NANOS + PERIOD_NANOS / 4);
+        assertEquals(0, monitor.getDroppedFrameCount());
+        // a 50 ms layout pass misses two frames
+        monitor.onFrame(time += 3 * PERIOD_NANOS);
+        assertEquals(2, monitor.getDroppedFrameCount());
+        assertEquals(4, monitor.getFrameCount());
+        assertEquals(3 * PERIOD_NANOS / 1000000L, monitor.getWorstFrameMillis());
+
+        monitor.reset();
+        assertEquals(0, monitor.getDroppedFrameCount());
+        assertEquals(0, monitor.getFrameCount());
+    }
+}
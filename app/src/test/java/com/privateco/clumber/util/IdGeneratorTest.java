@@ -0,0 +1,85 @@
+package com.privateco.clumber.util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Uniqueness, ordering and string form of {@link IdGenerator} ids.
+ */
+public class IdGeneratorTest {
+
+    @Test
+    public void ids_increaseAndSortAsStrings() {
+        IdGenerator generator = new IdGenerator(0x0123456789abcdefL);
+        String previous = generator.nextIdString();
+        assertEquals("0123456789abcdef0000000000000000", previous);
+        for (int i = 0; i < 10000; i++) {
+            String id = generator.nextIdString();
+            assertEquals(IdGenerator.ID_STRING_LENGTH, id.length());
+            assertTrue(id.compareTo(previous) > 0);
+            assertTrue(id.startsWith("0123456789abcdef"));
+            previous = id;
+        }
+        assertEquals(10000, Long.parseLong(previous.substring(16), 16));
+    }
+
+    @Test
+    public void prefix_usesAll64BitsAndTheCounterSortsUnsigned() {
+        assertEquals("ffffffffffffffff0000000000000001", IdGenerator.toString(-1L, 1));
+        assertTrue(IdGenerator.toString(0, Long.MAX_VALUE).compareTo(IdGenerator.toString(0, Long.MIN_VALUE)) < 0);
+    }
+
+    @Test
+    public void concurrentCallers_neverGetTheSameId() throws Exception {
+        final IdGenerator generator = new IdGenerator(42);
+        final Set<String> ids = ConcurrentHashMap.newKeySet();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 50000; i++) {
+                        ids.add(generator.nextIdString());
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * 50000, ids.size());
+    }
+
+    @Test
+    public void benchmark_againstRandomUuid() {
+        int count = 200000;
+        Set<String> sink = new HashSet<>();
+        for (int round = 0; round < 3; round++) {
+            sink.clear();
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                // what AppUtil.getRandomId() used to do
+                sink.add(Long.toString(UUID.randomUUID().getLeastSignificantBits()));
+            }
+            long uuidNanos = System.nanoTime() - start;
+
+            sink.clear();
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                sink.add(IdGenerator.getInstance().nextIdString());
+            }
+            long generatorNanos = System.nanoTime() - start;
+
+            System.out.printf("%d ids: UUID %d ns/id, IdGenerator %d ns/id%n",
+                    count, uuidNanos / count, generatorNanos / count);
+        }
+        assertEquals(count, sink.size());
+    }
+}
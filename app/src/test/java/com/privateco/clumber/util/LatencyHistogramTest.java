@@ -0,0 +1,53 @@
+package com.privateco.clumber.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Buckets, percentiles and summary of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_arePowersOfTwo() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(1, LatencyHistogram.bucketOf(1));
+        assertEquals(2, LatencyHistogram.bucketOf(2));
+        assertEquals(2, LatencyHistogram.bucketOf(3));
+        assertEquals(3, LatencyHistogram.bucketOf(4));
+        assertEquals(11, LatencyHistogram.bucketOf(1024));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles_areBucketUpperBoundsCappedByTheMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100);  // 64..127
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(3000);  // 2048..4095
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(127, histogram.getPercentileMillis(0.5));
+        assertEquals(127, histogram.getPercentileMillis(0.9));
+        assertEquals(3000, histogram.getPercentileMillis(0.99));
+        assertEquals(3000, histogram.getMaxMillis());
+        assertEquals(390, histogram.getMeanMillis());
+        assertEquals("n=100 p50<=127 p90<=127 max=3000 ms", histogram.toString());
+    }
+
+    @Test
+    public void emptyAndCleared_reportZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMillis(0.5));
+        histogram.record(-5);  // a clock that went backwards counts as 0
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMaxMillis());
+        histogram.clear();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanMillis());
+    }
+}
@@ -0,0 +1,122 @@
+package com.privateco.clumber.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.privateco.clumber.model.Message;
+import com.privateco.clumber.model.User;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tokenization, prefix queries and query speed of {@link MessageSearchIndex}.
+ */
+public class MessageSearchIndexTest {
+    private static final int MESSAGES = 100000;
+    private static final User PEER = new User("1", "peer");
+    private static final String[] WORDS = {"hello", "help", "meeting", "tomorrow", "dinner", "train", "station",
+            "photo", "birthday", "weekend", "movie", "coffee", "message", "secure", "code", "call"};
+    private static final String[] CHINESE = {"你好", "明天见", "我们一起去吃饭吧", "小猫很可爱", "火车站", "周末有空吗",
+            "生日快乐", "看电影", "喝咖啡", "安全码", "打电话", "照片发给你"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tokenize_splitsWordsAndCjkBigrams() {
+        List<String> tokens = new ArrayList<>();
+        MessageSearchIndex.tokenize("Hi 小猫咪, see 猫!", tokens, null);
+        assertEquals(Arrays.asList("hi", "小猫", "猫咪", "咪", "see", "猫"), tokens);
+    }
+
+    @Test
+    public void search_matchesPrefixesAndCjkCharacters() {
+        MessageSearchIndex index = new MessageSearchIndex();
+        index.add(0, message(0, "Let's meet at the train station"));
+        index.add(1, message(1, "我们在火车站见"));
+        index.add(2, message(2, "小猫很可爱"));
+        index.add(3, message(3, "Training starts tomorrow, 火车 at 8"));
+
+        assertArrayEquals(new int[]{3, 0}, index.search("trai", 10));
+        assertArrayEquals(new int[]{3, 1}, index.search("火车", 10));
+        assertArrayEquals(new int[]{1}, index.search("火车站", 10));
+        // one character matches anywhere in a run
+        assertArrayEquals(new int[]{2}, index.search("猫", 10));
+        assertArrayEquals(new int[]{2}, index.search("爱", 10));
+        assertArrayEquals(new int[]{3}, index.search("TRAIN 火车", 10));
+        assertArrayEquals(new int[]{3}, index.search("trai", 1));
+        assertEquals(0, index.search("bus", 10).length);
+        assertEquals(0, index.search("  ", 10).length);
+    }
+
+    @Test
+    public void deletedAndClearedMessages_areNotFound() {
+        MessageSearchIndex index = new MessageSearchIndex();
+        Message first = message(0, "coffee later?");
+        index.add(0, first);
+        index.add(1, message(1, "coffee now"));
+        index.delete(Collections.singletonList(first));
+        assertArrayEquals(new int[]{1}, index.search("coffee", 10));
+        index.clear();
+        assertEquals(0, index.search("coffee", 10).length);
+        assertEquals(0, index.getTermCount());
+    }
+
+    @Test
+    public void resolve_findsTheMessageInAPageWithGaps() throws Exception {
+        PagedMessageStore store = new PagedMessageStore(folder.newFile("pages"), 10, 1);
+        MessageSearchIndex index = new MessageSearchIndex();
+        for (int i = 0; i < 30; i++) {
+            Message message = message(i, "text " + i);
+            store.append(message);
+            index.add(i, message);
+        }
+        store.delete(Arrays.asList("10", "11"));
+        int[] docs = index.search("12", 10);
+        assertArrayEquals(new int[]{12}, docs);
+        assertEquals("text 12", index.resolve(docs[0], store).getText());
+        assertNull(index.resolve(11, store));
+        store.close();
+    }
+
+    @Test
+    public void prefixQueriesOverALongSession_takeMilliseconds() {
+        Random random = new Random(42);
+        MessageSearchIndex index = new MessageSearchIndex();
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            String text = WORDS[random.nextInt(WORDS.length)] + " " + CHINESE[random.nextInt(CHINESE.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " #" + i;
+            index.add(i, message(i, text));
+        }
+        long indexMillis = (System.nanoTime() - start) / 1000000;
+
+        String[] queries = {"he", "meet", "tom", "c", "火车", "猫", "生日", "coffee 咖啡", "station 你", "9999"};
+        long[] latencies = new long[queries.length * 20];
+        int n = 0;
+        for (int round = 0; round < 20; round++) {
+            for (String query : queries) {
+                long queryStart = System.nanoTime();
+                int[] result = index.search(query, 50);
+                latencies[n++] = System.nanoTime() - queryStart;
+                assertTrue(query, result.length > 0);
+            }
+        }
+        Arrays.sort(latencies);
+        System.out.printf("search index: %d messages indexed in %d ms, %d terms, query p50 %d us, max %d us%n",
+                MESSAGES, indexMillis, index.getTermCount(), latencies[latencies.length / 2] / 1000,
+                latencies[latencies.length - 1] / 1000);
+        assertTrue(latencies[latencies.length / 2] < 50000000L);
+    }
+
+    private static Message message(int i, String text) {
+        return new Message(Integer.toString(i), PEER, text);
+    }
+}
@@ -0,0 +1,174 @@
+package com.privateco.clumber.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.privateco.clumber.model.Message;
+import com.privateco.clumber.model.User;
+
+import static org.junit.Assert.*;
+
+/**
+ * Paging and the memory bound of {@link MessageWindow} over a long session.
+ */
+public class MessageWindowTest {
+    private static final int MESSAGES = 100000;
+    private static final int PAGE_SIZE = PagedMessageStore.DEFAULT_PAGE_SIZE;
+    private static final int MAX_SHOWN = MessageWindow.DEFAULT_MAX_SHOWN_PAGES * PAGE_SIZE;
+    private static final long HEAP_BUDGET_BYTES = 8 * 1024 * 1024;
+    private static final User PEER = new User("1", "peer");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Stands in for the adapter: newest message first, like the reversed message list.
+     */
+    private static class ListDisplay implements MessageWindow.Display {
+        final LinkedList<Message> shown = new LinkedList<>();
+        int maxShown = 0;
+
+        @Override
+        public void showNewer(List<Message> messages) {
+            for (Message message : messages) {
+                shown.addFirst(message);
+            }
+            maxShown = Math.max(maxShown, shown.size());
+        }
+
+        @Override
+        public void showOlder(List<Message> messages) {
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                shown.addLast(messages.get(i));
+            }
+            maxShown = Math.max(maxShown, shown.size());
+        }
+
+        @Override
+        public void hide(List<Message> messages) {
+            shown.removeAll(messages);
+        }
+
+        void assertContiguous() {
+            for (int i = 1; i < shown.size(); i++) {
+                assertEquals(index(shown.get(i)) + 1, index(shown.get(i - 1)));
+            }
+        }
+    }
+
+    @Test
+    public void scrollingThroughALongSession_staysWithinTheHeapBudget() throws Exception {
+        long baseline = usedHeap();
+        ListDisplay display = new ListDisplay();
+        PagedMessageStore store = new PagedMessageStore(folder.newFile("pages"), PAGE_SIZE,
+                PagedMessageStore.DEFAULT_MAX_CACHED_PAGES);
+        MessageWindow window = new MessageWindow(store, display, MessageWindow.DEFAULT_MAX_SHOWN_PAGES);
+        char[] filler = new char[200];
+        Arrays.fill(filler, 'x');
+        String text = new String(filler);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            window.add(new Message(Integer.toString(i), PEER, i + text));
+        }
+        long appendMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(MESSAGES - 1, index(display.shown.getFirst()));
+        display.assertContiguous();
+
+        // all the way up to the first message
+        start = System.nanoTime();
+        int pagesUp = 0;
+        while (window.loadOlder()) {
+            pagesUp++;
+            assertTrue(display.shown.size() <= MAX_SHOWN);
+        }
+        long scrollUpMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(0, index(display.shown.getLast()));
+        assertFalse(window.isFollowingNewest());
+        display.assertContiguous();
+
+        // messages arriving meanwhile are only stored
+        window.add(new Message(Integer.toString(MESSAGES), PEER, text));
+        assertEquals(0, index(display.shown.getLast()));
+
+        // and back down
+        while (window.loadNewer()) {
+            assertTrue(display.shown.size() <= MAX_SHOWN);
+        }
+        assertTrue(window.isFollowingNewest());
+        assertEquals(MESSAGES, index(display.shown.getFirst()));
+        display.assertContiguous();
+
+        assertTrue(display.maxShown <= MAX_SHOWN);
+        assertTrue(store.getCachedPageCount() <= PagedMessageStore.DEFAULT_MAX_CACHED_PAGES);
+        long heap = usedHeap() - baseline;
+        System.out.printf("message window: %d messages appended in %d ms, %d pages up in %d ms (%d read from disk), "
+                        + "%d shown, heap %d KB%n",
+                MESSAGES, appendMillis, pagesUp, scrollUpMillis, store.getPageReadCount(), display.shown.size(),
+                heap / 1024);
+        assertTrue("heap " + heap, heap < HEAP_BUDGET_BYTES);
+        store.close();
+    }
+
+    @Test
+    public void showNewest_jumpsBackFromOlderPages() throws Exception {
+        ListDisplay display = new ListDisplay();
+        PagedMessageStore store = new PagedMessageStore(folder.newFile("pages"), 10, 2);
+        MessageWindow window = new MessageWindow(store, display, 3);
+        for (int i = 0; i < 95; i++) {
+            window.add(new Message(Integer.toString(i), PEER, "text"));
+        }
+        while (window.loadOlder()) {
+        }
+        window.showNewest();
+        assertTrue(window.isFollowingNewest());
+        assertEquals(94, index(display.shown.getFirst()));
+        assertEquals(80, index(display.shown.getLast()));
+        window.add(new Message("95", PEER, "text"));
+        assertEquals(95, index(display.shown.getFirst()));
+        display.assertContiguous();
+    }
+
+    @Test
+    public void deletedMessages_doNotComeBackWithTheirPage() throws Exception {
+        ListDisplay display = new ListDisplay();
+        PagedMessageStore store = new PagedMessageStore(folder.newFile("pages"), 10, 1);
+        MessageWindow window = new MessageWindow(store, display, 2);
+        for (int i = 0; i < 40; i++) {
+            window.add(new Message(Integer.toString(i), PEER, "text"));
+        }
+        while (window.loadOlder()) {
+        }
+        List<Message> deleted = new ArrayList<>(display.shown.subList(0, 1));
+        display.hide(deleted);
+        window.delete(deleted);
+        while (window.loadNewer()) {
+        }
+        for (Message message : display.shown) {
+            assertNotEquals(deleted.get(0).getId(), message.getId());
+        }
+        while (window.loadOlder()) {
+        }
+        assertEquals(19, display.shown.size());
+        assertEquals(window.getShownMessageCount(), display.shown.size());
+    }
+
+    private static int index(Message message) {
+        return Integer.parseInt(message.getId());
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,87 @@
+package com.privateco.clumber.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.privateco.clumber.model.Message;
+import com.privateco.clumber.model.User;
+
+import static org.junit.Assert.*;
+
+/**
+ * Folding and rate limiting of notification updates by {@link NotificationAggregator}.
+ */
+public class NotificationAggregatorTest {
+    private static final User PEER = new User("1", "peer");
+    private static final long INTERVAL = 2000;
+
+    @Test
+    public void firstMessage_isPostedRightAway() {
+        NotificationAggregator aggregator = new NotificationAggregator(INTERVAL);
+        assertEquals(0, aggregator.add(messages(0, 1), 1000));
+
+        NotificationAggregator.Update update = aggregator.take(1000);
+        assertEquals(1, update.count);
+        assertEquals(Collections.singletonList("peer: text 0"), update.getLines());
+    }
+
+    @Test
+    public void burst_foldsIntoOneUpdatePerInterval() {
+        NotificationAggregator aggregator = new NotificationAggregator(INTERVAL);
+        assertEquals(0, aggregator.add(messages(0, 1), 1000));
+        aggregator.take(1000);
+
+        // 200 messages in small frames right after the first update
+        int scheduled = 0;
+        long delay = -1;
+        for (int i = 1; i <= 200; i += 4) {
+            long d = aggregator.add(messages(i, 4), 1100);
+            if (d >= 0) {
+                scheduled++;
+                delay = d;
+            }
+        }
+        assertEquals(1, scheduled);
+        assertEquals(1900, delay);
+
+        NotificationAggregator.Update update = aggregator.take(3000);
+        assertEquals(201, update.count);
+        assertEquals(NotificationAggregator.MAX_LINES, update.getLines().size());
+        assertEquals("peer: text 200", update.getLines().get(NotificationAggregator.MAX_LINES - 1));
+        assertNull(aggregator.take(3000));
+    }
+
+    @Test
+    public void quietPeriod_postsTheNextMessageRightAway() {
+        NotificationAggregator aggregator = new NotificationAggregator(INTERVAL);
+        aggregator.add(messages(0, 1), 1000);
+        aggregator.take(1000);
+        assertEquals(0, aggregator.add(messages(1, 1), 5000));
+        assertEquals(2, aggregator.take(5000).count);
+    }
+
+    @Test
+    public void clear_dropsThePendingUpdateAndTheCount() {
+        NotificationAggregator aggregator = new NotificationAggregator(INTERVAL);
+        aggregator.add(messages(0, 3), 1000);
+        aggregator.clear();
+        assertNull(aggregator.take(1000));
+
+        assertEquals(0, aggregator.add(Arrays.asList(new Message("m", PEER, null)), 1500));
+        NotificationAggregator.Update update = aggregator.take(1500);
+        assertEquals(1, update.count);
+        assertEquals("peer: [attachment]", update.getLines().get(0));
+    }
+
+    private static List<Message> messages(int from, int count) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            messages.add(new Message("m" + i, PEER, "text " + i));
+        }
+        return messages;
+    }
+}
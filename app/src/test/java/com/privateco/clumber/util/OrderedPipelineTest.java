@@ -0,0 +1,92 @@
+package com.privateco.clumber.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering and backpressure of {@link OrderedPipeline}.
+ */
+public class OrderedPipelineTest {
+    private static final int MESSAGES = 500;
+
+    @Test
+    public void deliversInSubmissionOrder_whenWorkersFinishOutOfOrder() throws Exception {
+        final Random random = new Random(42);
+        final List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        OrderedPipeline<Integer, Integer> pipeline = new OrderedPipeline<>("test", 4, 16,
+                new OrderedPipeline.Stage<Integer, Integer>() {
+                    @Override
+                    public Integer process(Integer input) throws Exception {
+                        Thread.sleep(random.nextInt(2));
+                        return input;
+                    }
+                },
+                new OrderedPipeline.Sink<Integer>() {
+                    @Override
+                    public void deliver(Integer output) {
+                        delivered.add(output);
+                    }
+                });
+
+        for (int i = 0; i < MESSAGES; i++) {
+            pipeline.submit(i);
+        }
+        pipeline.awaitIdle();
+
+        assertEquals(MESSAGES, delivered.size());
+        for (int i = 0; i < MESSAGES; i++) {
+            assertEquals(i, (int) delivered.get(i));
+        }
+        assertEquals(MESSAGES, pipeline.getDeliveredCount());
+        assertEquals(0, pipeline.getReorderBufferSize());
+        assertTrue(pipeline.getMaxQueueDepth() <= 16);
+        System.out.printf("ordered pipeline: max queue depth %d, avg queue wait %d us, process %d us, reorder wait %d us%n",
+                pipeline.getMaxQueueDepth(), pipeline.getAverageQueueWaitNanos() / 1000,
+                pipeline.getAverageProcessNanos() / 1000, pipeline.getAverageReorderWaitNanos() / 1000);
+    }
+
+    @Test
+    public void submitBlocks_whenQueueIsFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final OrderedPipeline<Integer, Integer> pipeline = new OrderedPipeline<>("test", 1, 2,
+                new OrderedPipeline.Stage<Integer, Integer>() {
+                    @Override
+                    public Integer process(Integer input) throws Exception {
+                        release.await();
+                        return input;
+                    }
+                },
+                new OrderedPipeline.Sink<Integer>() {
+                    @Override
+                    public void deliver(Integer output) {
+                    }
+                });
+
+        // one running on the worker and two queued fill the pipeline
+        for (int i = 0; i < 3; i++) {
+            pipeline.submit(i);
+        }
+        final CountDownLatch submitted = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pipeline.submit(3);
+                submitted.countDown();
+            }
+        }).start();
+
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        pipeline.awaitIdle();
+        assertEquals(4, pipeline.getDeliveredCount());
+    }
+}
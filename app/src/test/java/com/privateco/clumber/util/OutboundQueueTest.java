@@ -0,0 +1,260 @@
+package com.privateco.clumber.util;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lanes, coalescing and backpressure of {@link OutboundQueue}.
+ */
+public class OutboundQueueTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static final OutboundQueue.MessageEncryptor PLAIN_ENCRYPTOR = new OutboundQueue.MessageEncryptor() {
+        @Override
+        public byte[] encrypt(String text) {
+            return text.getBytes(StandardCharsets.UTF_8);
+        }
+    };
+
+    private static class RecordingTransport implements OutboundQueue.Transport {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final List<Object> payloads = Collections.synchronizedList(new ArrayList<Object>());
+        final List<RuntimeException> failures = Collections.synchronizedList(new ArrayList<RuntimeException>());
+        volatile boolean connected;
+
+        RecordingTransport(boolean connected) {
+            this.connected = connected;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void emit(String event, Object... args) {
+            events.add(event);
+            payloads.add(args.length > 0 ? args[0] : null);
+        }
+
+        @Override
+        public void emitWithAck(String event, Object payload, Runnable onAcknowledged) {
+            emit(event, payload);
+        }
+
+        @Override
+        public void onSendFailed(RuntimeException e) {
+            failures.add(e);
+        }
+
+        void awaitEventsBusily(int count) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (events.size() < count && System.nanoTime() < deadline) {
+                Thread.yield();
+            }
+        }
+
+        void awaitEvents(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (events.size() < count && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    @Test
+    public void burst_isCoalescedIntoOneFrame() throws Exception {
+        RecordingTransport transport = new RecordingTransport(true);
+        OutboundQueue queue = new OutboundQueue(transport, PLAIN_ENCRYPTOR, OutboundQueue.DEFAULT_CAPACITY);
+        queue.setBatchFramesSupported(true);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offerMessage("line " + i));
+        }
+        transport.awaitEvents(1);
+        Thread.sleep(OutboundQueue.BATCH_WINDOW_MS * 2);
+
+        assertEquals(Collections.singletonList("send messages"), transport.events);
+        JSONArray batch = (JSONArray) transport.payloads.get(0);
+        assertEquals(5, batch.length());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("line " + i, text(batch.getJSONObject(i)));
+        }
+        assertEquals(5, queue.getSentMessageCount());
+        assertEquals(1, queue.getSentFrameCount());
+    }
+
+    @Test
+    public void burst_withoutBatchSupport_goesOutOneMessageAtATime() throws Exception {
+        RecordingTransport transport = new RecordingTransport(true);
+        OutboundQueue queue = new OutboundQueue(transport, PLAIN_ENCRYPTOR, OutboundQueue.DEFAULT_CAPACITY);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offerMessage("line " + i));
+        }
+        transport.awaitEvents(5);
+
+        assertEquals(Collections.nCopies(5, "send message"), transport.events);
+        for (int i = 0; i < 5; i++) {
+            JSONObject obj = (JSONObject) transport.payloads.get(i);
+            assertEquals("line " + i, text(obj));
+            assertEquals(i, obj.getLong("seq"));
+        }
+        assertEquals(5, queue.getSentMessageCount());
+        assertEquals(5, queue.getSentFrameCount());
+    }
+
+    @Test
+    public void withoutBatchSupport_aMessageGoesOutWithoutWaitingForTheBatchWindow() throws Exception {
+        RecordingTransport transport = new RecordingTransport(true);
+        OutboundQueue queue = new OutboundQueue(transport, PLAIN_ENCRYPTOR, OutboundQueue.DEFAULT_CAPACITY);
+        queue.offerMessage("warm up");
+        transport.awaitEvents(1);
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            long start = System.nanoTime();
+            queue.offerMessage("hello " + i);
+            transport.awaitEventsBusily(i + 2);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        assertEquals(11, transport.events.size());
+        // the best of ten rounds, so one slow scheduling round cannot fail it
+        assertTrue("took " + best + " ns", best < TimeUnit.MILLISECONDS.toNanos(OutboundQueue.BATCH_WINDOW_MS));
+    }
+
+    @Test
+    public void failedFrame_isReportedAndTheSenderCarriesOn() throws Exception {
+        RecordingTransport transport = new RecordingTransport(true);
+        OutboundQueue queue = new OutboundQueue(transport, new OutboundQueue.MessageEncryptor() {
+            @Override
+            public byte[] encrypt(String text) throws Exception {
+                if (text.equals("poison")) {
+                    throw new GeneralSecurityException("test failure");
+                }
+                return PLAIN_ENCRYPTOR.encrypt(text);
+            }
+        }, OutboundQueue.DEFAULT_CAPACITY);
+
+        queue.offerMessage("poison");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (queue.getFailedFrameCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        queue.offerMessage("hello");
+        queue.sendControl("exit");
+        transport.awaitEvents(2);
+
+        assertEquals(1, queue.getFailedFrameCount());
+        assertEquals(1, transport.failures.size());
+        assertTrue(transport.events.contains("exit"));
+        int sent = transport.events.indexOf("send message");
+        assertEquals("hello", text((JSONObject) transport.payloads.get(sent)));
+    }
+
+    @Test
+    public void withoutAcknowledgements_nothingIsStoredOrReplayed() throws Exception {
+        RecordingTransport transport = new RecordingTransport(true);
+        OutboundQueue queue = new OutboundQueue(transport, PLAIN_ENCRYPTOR, OutboundQueue.DEFAULT_CAPACITY);
+        Outbox outbox = Outbox.open(folder.newFile());
+        queue.setOutbox(outbox);
+
+        queue.offerMessage("hello");
+        transport.awaitEvents(1);
+        queue.onConnected();
+        queue.sendControl("exit");
+        transport.awaitEvents(2);
+
+        assertEquals(Arrays.asList("send message", "exit"), transport.events);
+        assertEquals(0, outbox.getPendingCount());
+        assertEquals(0, queue.getReplayedMessageCount());
+        outbox.close();
+    }
+
+    @Test
+    public void afterAnAcknowledgement_unacknowledgedMessagesAreReplayed() throws Exception {
+        RecordingTransport transport = new RecordingTransport(true);
+        OutboundQueue queue = new OutboundQueue(transport, PLAIN_ENCRYPTOR, OutboundQueue.DEFAULT_CAPACITY);
+        Outbox outbox = Outbox.open(folder.newFile());
+        queue.setOutbox(outbox);
+
+        queue.onPeerAcknowledged(-1);  // a malformed ack proves nothing
+        assertFalse(queue.isAcknowledgementSeen());
+        queue.offerMessage("first");
+        transport.awaitEvents(1);
+        queue.onPeerAcknowledged(0);
+        queue.offerMessage("lost");
+        transport.awaitEvents(2);
+        assertEquals(1, outbox.getPendingCount());
+
+        queue.onConnected();
+        transport.awaitEvents(3);
+        assertEquals("lost", text((JSONObject) transport.payloads.get(2)));
+        assertEquals(1, queue.getReplayedMessageCount());
+        outbox.close();
+    }
+
+    @Test
+    public void singleMessage_usesSendMessage() throws Exception {
+        RecordingTransport transport = new RecordingTransport(true);
+        OutboundQueue queue = new OutboundQueue(transport, PLAIN_ENCRYPTOR, OutboundQueue.DEFAULT_CAPACITY);
+
+        queue.offerMessage("hello");
+        transport.awaitEvents(1);
+
+        assertEquals("send message", transport.events.get(0));
+        assertEquals("hello", text((JSONObject) transport.payloads.get(0)));
+    }
+
+    @Test
+    public void controlEvents_overtakeWaitingMessages() throws Exception {
+        RecordingTransport transport = new RecordingTransport(false);
+        OutboundQueue queue = new OutboundQueue(transport, PLAIN_ENCRYPTOR, OutboundQueue.DEFAULT_CAPACITY);
+
+        queue.offerMessage("hello");
+        queue.sendControl("send key", "key");
+        transport.awaitEvents(1);
+        transport.connected = true;
+        transport.awaitEvents(2);
+
+        assertEquals("send key", transport.events.get(0));
+        assertEquals("key", transport.payloads.get(0));
+        assertEquals("send message", transport.events.get(1));
+    }
+
+    @Test
+    public void fullChatLane_refusesMessagesUntilTheSocketDrainsIt() throws Exception {
+        RecordingTransport transport = new RecordingTransport(false);
+        OutboundQueue queue = new OutboundQueue(transport, PLAIN_ENCRYPTOR, 4);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offerMessage("line " + i));
+        }
+        assertFalse(queue.offerMessage("overflow"));
+        assertEquals(4, queue.getPendingMessageCount());
+
+        transport.connected = true;
+        transport.awaitEvents(1);
+        Thread.sleep(OutboundQueue.BATCH_WINDOW_MS * 2);
+        assertEquals(0, queue.getPendingMessageCount());
+        assertTrue(queue.offerMessage("again"));
+    }
+
+    private static String text(JSONObject obj) throws Exception {
+        return new String((byte[]) obj.get("text"), StandardCharsets.UTF_8);
+    }
+}
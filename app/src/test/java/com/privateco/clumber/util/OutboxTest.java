@@ -0,0 +1,171 @@
+package com.privateco.clumber.util;
+
+import org.json.JSONArray;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Persistence of {@link Outbox} and replay throughput through {@link OutboundQueue}.
+ */
+public class OutboxTest {
+    private static final int REPLAY_MESSAGES = 5000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pendingMessages_surviveReopen() throws Exception {
+        File file = folder.newFile();
+        Outbox outbox = Outbox.open(file);
+        for (int i = 0; i < 5; i++) {
+            outbox.append(i, bytes("line " + i), i);
+        }
+        outbox.acknowledge(1);
+        outbox.close();
+
+        Outbox reopened = Outbox.open(file);
+        List<Outbox.Entry> pending = reopened.getPending();
+        assertEquals(3, pending.size());
+        assertEquals("line 2", new String(pending.get(0).getCiphertext(), StandardCharsets.UTF_8));
+        assertEquals(2, pending.get(0).time);
+
+        assertEquals(5, reopened.append(5, bytes("line 5"), 5).id);
+        reopened.close();
+    }
+
+    @Test
+    public void acknowledgingEverything_truncatesTheFile() throws Exception {
+        File file = folder.newFile();
+        Outbox outbox = Outbox.open(file);
+        outbox.append(0, bytes("a"), 0);
+        Outbox.Entry last = outbox.append(1, bytes("b"), 0);
+        outbox.acknowledge(last.id);
+        outbox.close();
+
+        assertEquals(0, file.length());
+        assertEquals(0, Outbox.open(file).getPendingCount());
+    }
+
+    @Test
+    public void tornTail_isDropped() throws Exception {
+        File file = folder.newFile();
+        Outbox outbox = Outbox.open(file);
+        outbox.append(0, bytes("complete"), 0);
+        outbox.close();
+        long validLength = file.length();
+        FileOutputStream output = new FileOutputStream(file, true);
+        output.write(new byte[]{1, 0, 0, 0});
+        output.close();
+
+        Outbox reopened = Outbox.open(file);
+        assertEquals(1, reopened.getPendingCount());
+        assertEquals(validLength, file.length());
+        reopened.append(1, bytes("next"), 0);
+        reopened.close();
+        assertEquals(2, Outbox.open(file).getPendingCount());
+    }
+
+    @Test
+    public void fullOutbox_forgetsTheOldestMessage() throws Exception {
+        File file = folder.newFile();
+        Outbox outbox = Outbox.open(file, 3);
+        for (int i = 0; i < 5; i++) {
+            outbox.append(i, bytes("line " + i), i);
+        }
+        assertEquals(3, outbox.getPendingCount());
+        assertEquals(2, outbox.getEvictedCount());
+        outbox.close();
+
+        List<Outbox.Entry> pending = Outbox.open(file, 3).getPending();
+        assertEquals(3, pending.size());
+        assertEquals(2, pending.get(0).id);
+    }
+
+    @Test
+    public void replayThroughput_thousandsOfQueuedMessages() throws Exception {
+        File file = folder.newFile();
+        Outbox outbox = Outbox.open(file, REPLAY_MESSAGES + 1);
+        final AtomicInteger replayed = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        OutboundQueue queue = new OutboundQueue(new OutboundQueue.Transport() {
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void emit(String event, Object... args) {
+            }
+
+            @Override
+            public void emitWithAck(String event, Object payload, Runnable onAcknowledged) {
+                int count = payload instanceof JSONArray ? ((JSONArray) payload).length() : 1;
+                onAcknowledged.run();
+                // the first message only shows that this server acknowledges frames
+                if (replayed.addAndGet(count) == REPLAY_MESSAGES + 1) {
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void onSendFailed(RuntimeException e) {
+                throw e;
+            }
+        }, new OutboundQueue.MessageEncryptor() {
+            @Override
+            public byte[] encrypt(String text) {
+                return bytes(text);
+            }
+        }, OutboundQueue.DEFAULT_CAPACITY);
+        queue.setBatchFramesSupported(true);
+        queue.setOutbox(outbox);
+        queue.offerMessage("first");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!queue.isAcknowledgementSeen() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(queue.isAcknowledgementSeen());
+
+        // frames that went out just before the connection dropped, without an acknowledgement
+        byte[] ciphertext = new byte[120];
+        long start = System.nanoTime();
+        for (int i = 1; i <= REPLAY_MESSAGES; i++) {
+            outbox.append(i, ciphertext, i);
+        }
+        long appendNanos = System.nanoTime() - start;
+        outbox.close();
+
+        start = System.nanoTime();
+        outbox = Outbox.open(file, REPLAY_MESSAGES + 1);
+        long openNanos = System.nanoTime() - start;
+        assertEquals(REPLAY_MESSAGES, outbox.getPendingCount());
+        queue.setOutbox(outbox);
+
+        start = System.nanoTime();
+        queue.onConnected();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        long replayNanos = System.nanoTime() - start;
+
+        assertEquals(0, outbox.getPendingCount());
+        assertEquals(REPLAY_MESSAGES, queue.getReplayedMessageCount());
+        System.out.printf("outbox: %d messages appended in %d ms, reopened in %d ms, replayed and acknowledged in %d ms (%d messages/s)%n",
+                REPLAY_MESSAGES, appendNanos / 1000000, openNanos / 1000000, replayNanos / 1000000,
+                REPLAY_MESSAGES * 1000000000L / replayNanos);
+        outbox.close();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
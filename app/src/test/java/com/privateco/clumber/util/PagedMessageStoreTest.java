@@ -0,0 +1,83 @@
+package com.privateco.clumber.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.privateco.clumber.model.Message;
+import com.privateco.clumber.model.User;
+
+import static org.junit.Assert.*;
+
+/**
+ * Spilling, reading back and caching of {@link PagedMessageStore} pages.
+ */
+public class PagedMessageStoreTest {
+    private static final User PEER = new User("1", "peer");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void evictedPages_areReadBackFromDisk() throws Exception {
+        File file = folder.newFile("pages");
+        PagedMessageStore store = new PagedMessageStore(file, 10, 2);
+        for (int i = 0; i < 55; i++) {
+            store.append(new Message("m" + i, PEER, "text " + i, new Date(i)));
+        }
+        assertEquals(6, store.getPageCount());
+        assertEquals(2, store.getCachedPageCount());
+
+        List<Message> first = store.getPage(0);
+        assertEquals(1, store.getPageReadCount());
+        assertEquals(10, first.size());
+        assertEquals("m0", first.get(0).getId());
+        assertEquals("text 9", first.get(9).getText());
+        assertEquals(9, first.get(9).getCreatedAt().getTime());
+        assertEquals("peer", first.get(0).getUser().getName());
+        // users are shared between decoded messages
+        assertSame(first.get(0).getUser(), first.get(1).getUser());
+
+        store.getPage(0);
+        assertEquals(1, store.getPageReadCount());
+        assertEquals(1, store.getCacheHitCount());
+        assertEquals(5, store.getPage(5).size());
+
+        store.close();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void deletedMessages_areLeftOutOfTheirPage() throws Exception {
+        PagedMessageStore store = new PagedMessageStore(folder.newFile("pages"), 10, 1);
+        for (int i = 0; i < 25; i++) {
+            store.append(new Message("m" + i, PEER, "text " + i));
+        }
+        store.delete(Collections.singletonList("m3"));
+        store.delete(Collections.singletonList("m21"));
+        assertEquals(9, store.getPage(0).size());
+        assertEquals("m4", store.getPage(0).get(3).getId());
+        assertEquals(4, store.getPage(2).size());
+        assertEquals(25, store.getMessageCount());
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void tamperedPage_doesNotDecrypt() throws Exception {
+        File file = folder.newFile("pages");
+        PagedMessageStore store = new PagedMessageStore(file, 10, 1);
+        for (int i = 0; i < 20; i++) {
+            store.append(new Message("m" + i, PEER, "text " + i));
+        }
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(20);
+        raw.write(raw.read() ^ 1);
+        raw.close();
+        store.getPage(0);
+    }
+}
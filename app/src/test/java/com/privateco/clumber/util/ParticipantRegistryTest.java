@@ -0,0 +1,90 @@
+package com.privateco.clumber.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.privateco.clumber.model.Message;
+import com.privateco.clumber.model.User;
+
+import static org.junit.Assert.*;
+
+/**
+ * Interning of chat participants by {@link ParticipantRegistry}.
+ */
+public class ParticipantRegistryTest {
+    private static final int MESSAGES = 100000;
+
+    @Test
+    public void sameNickname_getsTheSameUser() {
+        ParticipantRegistry registry = new ParticipantRegistry();
+        User peer = registry.getPeer("peer");
+        assertSame(peer, registry.getPeer("peer"));
+        assertNotSame(peer, registry.getPeer("other"));
+        assertEquals(2, registry.getPeerCount());
+
+        User self = registry.getSelf("me");
+        assertSame(self, registry.getSelf("me"));
+        assertEquals(ParticipantRegistry.SELF_ID, self.getId());
+        assertFalse(ParticipantRegistry.SELF_ID.equals(peer.getId()));
+    }
+
+    @Test
+    public void clear_startsANewSession() {
+        ParticipantRegistry registry = new ParticipantRegistry();
+        User peer = registry.getPeer("peer");
+        registry.clear();
+        assertEquals(0, registry.getPeerCount());
+        User again = registry.getPeer("peer");
+        assertNotSame(peer, again);
+        assertFalse(peer.getId().equals(again.getId()));
+    }
+
+    @Test
+    public void heap_withAndWithoutInterning() throws Exception {
+        long baseline = usedHeap();
+        List<Message> perMessage = messages(null);
+        long perMessageHeap = usedHeap() - baseline;
+        assertEquals(MESSAGES, perMessage.size());  // keeps the list reachable while measuring
+        perMessage = null;
+
+        baseline = usedHeap();
+        List<Message> interned = messages(new ParticipantRegistry());
+        long internedHeap = usedHeap() - baseline;
+        assertEquals(MESSAGES, interned.size());
+
+        System.out.printf("%d messages: user per message %d KB, interned users %d KB%n",
+                MESSAGES, perMessageHeap / 1024, internedHeap / 1024);
+        assertTrue(internedHeap < perMessageHeap);
+    }
+
+    /**
+     * Half sent, half received, like a conversation.
+     *
+     * @param registry null to create a user per message, as the chat used to
+     */
+    private static List<Message> messages(ParticipantRegistry registry) {
+        List<Message> messages = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            User user;
+            if (registry == null) {
+                user = i % 2 == 0 ? new User(ParticipantRegistry.SELF_ID, "me") : new User("peer");
+            } else {
+                user = i % 2 == 0 ? registry.getSelf("me") : registry.getPeer("peer");
+            }
+            messages.add(new Message("m" + i, user, "hi", new Date(i)));
+        }
+        return messages;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
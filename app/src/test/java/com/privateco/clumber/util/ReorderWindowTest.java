@@ -0,0 +1,93 @@
+package com.privateco.clumber.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Dedupe and reordering of {@link ReorderWindow}.
+ */
+public class ReorderWindowTest {
+    @Test
+    public void inOrder_isDeliveredImmediately() {
+        ReorderWindow<Integer> window = new ReorderWindow<>(ReorderWindow.DEFAULT_SIZE);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(Collections.singletonList(i), window.offer(i, i, 0));
+        }
+        assertEquals(199, window.getCumulativeSequence());
+        assertEquals(0, window.getReorderedCount());
+    }
+
+    @Test
+    public void earlyMessage_waitsForTheGap() {
+        ReorderWindow<Integer> window = new ReorderWindow<>(ReorderWindow.DEFAULT_SIZE);
+        assertEquals(Collections.<Integer>emptyList(), window.offer(1, 1, 0));
+        assertEquals(Collections.<Integer>emptyList(), window.offer(2, 2, 0));
+        assertEquals(-1, window.getCumulativeSequence());
+        assertEquals(Arrays.asList(0, 1, 2), window.offer(0, 0, 0));
+        assertEquals(2, window.getCumulativeSequence());
+        assertEquals(2, window.getReorderedCount());
+    }
+
+    @Test
+    public void duplicates_areDropped_insideAndBelowTheWindow() {
+        ReorderWindow<Integer> window = new ReorderWindow<>(ReorderWindow.DEFAULT_SIZE);
+        window.offer(0, 0, 0);
+        window.offer(2, 2, 0);
+        assertTrue(window.offer(0, 0, 0).isEmpty());
+        assertTrue(window.offer(2, 2, 0).isEmpty());
+        assertEquals(2, window.getDuplicateCount());
+        assertEquals(Arrays.asList(1, 2), window.offer(1, 1, 0));
+    }
+
+    @Test
+    public void messageBeyondTheWindow_skipsTheOldestGaps() {
+        ReorderWindow<Integer> window = new ReorderWindow<>(64);
+        window.offer(1, 1, 0);
+        // 65 only fits once 0 and 1 left the window; 0 is given up on
+        assertEquals(Collections.singletonList(1), window.offer(65, 65, 0));
+        assertEquals(1, window.getSkippedCount());
+        assertTrue(window.offer(0, 0, 0).isEmpty());
+    }
+
+    @Test
+    public void timedOutGap_isSkipped() {
+        ReorderWindow<Integer> window = new ReorderWindow<>(ReorderWindow.DEFAULT_SIZE);
+        window.offer(3, 3, 1000);
+        window.offer(4, 4, 1500);
+        assertTrue(window.flushExpired(2000, 2000).isEmpty());
+        assertEquals(Arrays.asList(3, 4), window.flushExpired(3000, 2000));
+        assertEquals(3, window.getSkippedCount());
+        assertEquals(4, window.getCumulativeSequence());
+    }
+
+    @Test
+    public void shuffledWithCopies_deliversEachOnceInOrder() {
+        List<Integer> arrivals = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            arrivals.add(i);
+            if (i % 7 == 0) {
+                arrivals.add(i);
+            }
+        }
+        // swap neighbours in small blocks, well within the window
+        for (int i = 0; i + 3 < arrivals.size(); i += 4) {
+            Collections.reverse(arrivals.subList(i, i + 4));
+        }
+        ReorderWindow<Integer> window = new ReorderWindow<>(ReorderWindow.DEFAULT_SIZE);
+        List<Integer> delivered = new ArrayList<>();
+        for (int sequence : arrivals) {
+            delivered.addAll(window.offer(sequence, sequence, 0));
+        }
+        assertEquals(1000, delivered.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int) delivered.get(i));
+        }
+        assertEquals(143, window.getDuplicateCount());
+    }
+}
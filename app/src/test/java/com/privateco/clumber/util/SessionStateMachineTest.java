@@ -0,0 +1,111 @@
+package com.privateco.clumber.util;
+
+import org.junit.Test;
+
+import com.privateco.clumber.util.SessionStateMachine.State;
+
+import static org.junit.Assert.*;
+
+/**
+ * Transitions, key exchange and latency recording of {@link SessionStateMachine}.
+ */
+public class SessionStateMachineTest {
+
+    @Test
+    public void fullSession_recordsEveryPhaseAndTimeToFirstMessage() {
+        SessionStateMachine session = new SessionStateMachine();
+        assertEquals(State.EXITED, session.getState());
+
+        assertTrue(session.moveTo(State.CONNECTING, 1000));
+        assertTrue(session.moveTo(State.ENTERING, 1050));
+        assertTrue(session.moveTo(State.AWAITING, 1100));
+        session.setPeerNickname("peer");
+        assertTrue(session.moveTo(State.KEY_EXCHANGE, 5100));
+        assertFalse(session.onSelfKeyShared(5200));
+        assertTrue(session.onPeerKeyReceived(5400));
+        assertEquals(State.CHATTING, session.getState());
+        assertTrue(session.onMessage(9000));
+        assertFalse(session.onMessage(9500));  // only the first one counts
+        assertTrue(session.moveTo(State.EXITED, 20000));
+
+        assertEquals(1, session.getTimeToFirstMessageHistogram().getCount());
+        assertEquals(8000, session.getTimeToFirstMessageHistogram().getMaxMillis());
+        assertEquals(50, session.getPhaseHistogram(State.CONNECTING).getMaxMillis());
+        assertEquals(50, session.getPhaseHistogram(State.ENTERING).getMaxMillis());
+        assertEquals(4000, session.getPhaseHistogram(State.AWAITING).getMaxMillis());
+        assertEquals(300, session.getPhaseHistogram(State.KEY_EXCHANGE).getMaxMillis());
+        assertEquals(14600, session.getPhaseHistogram(State.CHATTING).getMaxMillis());
+        assertEquals(0, session.getPhaseHistogram(State.EXITED).getCount());
+        assertEquals("peer", session.getPeerNickname());
+        assertEquals(5400, session.getEnteredAt(State.CHATTING));
+        assertTrue(session.describe().startsWith("time to first message n=1 "));
+    }
+
+    @Test
+    public void peerKeyFirst_completesOnSelfKey() {
+        SessionStateMachine session = enteredSession();
+        // the peer's key can arrive while ours is still being encoded
+        assertFalse(session.onPeerKeyReceived(200));
+        assertTrue(session.onSelfKeyShared(300));
+        assertEquals(State.CHATTING, session.getState());
+    }
+
+    @Test
+    public void pipelinedEntry_completesOnThePairing() {
+        SessionStateMachine session = new SessionStateMachine();
+        session.moveTo(State.CONNECTING, 0);
+        session.onSelfKeySentWithEntry();
+        session.moveTo(State.ENTERING, 10);
+        session.moveTo(State.KEY_EXCHANGE, 500);
+        assertTrue(session.isSelfKeySentWithEntry());
+        // both keys came with "entry: success"
+        assertFalse(session.onPeerKeyReceived(500));
+        assertTrue(session.onSelfKeyShared(500));
+        assertEquals(0, session.getPhaseHistogram(State.KEY_EXCHANGE).getMaxMillis());
+
+        session.moveTo(State.CONNECTING, 1000);
+        assertFalse(session.isSelfKeySentWithEntry());
+    }
+
+    @Test
+    public void illegalTransitions_areCountedAndIgnored() {
+        SessionStateMachine session = new SessionStateMachine();
+        assertFalse(session.moveTo(State.ENTERING, 0));
+        assertFalse(session.moveTo(State.EXITED, 0));
+        assertFalse(session.onMessage(0));  // not chatting
+
+        session.moveTo(State.CONNECTING, 0);
+        assertFalse(session.moveTo(State.CHATTING, 10));
+        session.moveTo(State.ENTERING, 10);
+        assertFalse(session.moveTo(State.ENTERING, 20));  // a duplicate event
+        assertFalse(session.onSelfKeyShared(20));  // not in the key exchange yet
+
+        assertEquals(State.ENTERING, session.getState());
+        assertEquals(4, session.getIllegalTransitionCount());
+    }
+
+    @Test
+    public void newSession_forgetsTheOldOne() {
+        SessionStateMachine session = enteredSession();
+        session.onSelfKeyShared(200);
+        session.moveTo(State.EXITED, 300);  // cancelled before the peer's key came
+
+        session.moveTo(State.CONNECTING, 1000);
+        assertNull(session.getPeerNickname());
+        assertEquals(-1, session.getEnteredAt(State.KEY_EXCHANGE));
+        session.moveTo(State.ENTERING, 1100);
+        session.moveTo(State.KEY_EXCHANGE, 1200);
+        assertFalse(session.onPeerKeyReceived(1300));  // our key has not gone out in this session
+        assertTrue(session.onSelfKeyShared(1400));
+        assertEquals(2, session.getPhaseHistogram(State.KEY_EXCHANGE).getCount());
+    }
+
+    private static SessionStateMachine enteredSession() {
+        SessionStateMachine session = new SessionStateMachine();
+        session.moveTo(State.CONNECTING, 0);
+        session.moveTo(State.ENTERING, 50);
+        session.moveTo(State.KEY_EXCHANGE, 100);
+        session.setPeerNickname("peer");
+        return session;
+    }
+}
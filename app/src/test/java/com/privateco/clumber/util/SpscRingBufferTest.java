@@ -0,0 +1,167 @@
+package com.privateco.clumber.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Overflow policies of {@link SpscRingBuffer}, and throughput and tail latency against one task per item,
+ * which is what a Handler post per message amounts to.
+ */
+public class SpscRingBufferTest {
+    private static final int ITEMS = 200000;
+
+    private static final SpscRingBuffer.Coalescer<String> JOIN = new SpscRingBuffer.Coalescer<String>() {
+        @Override
+        public String coalesce(String older, String newer) {
+            return older + "+" + newer;
+        }
+    };
+
+    @Test
+    public void capacity_isRoundedUpToAPowerOfTwo() {
+        assertEquals(8, new SpscRingBuffer<String>(5, SpscRingBuffer.OverflowPolicy.BLOCK, null).capacity());
+        assertEquals(8, new SpscRingBuffer<String>(8, SpscRingBuffer.OverflowPolicy.BLOCK, null).capacity());
+    }
+
+    @Test
+    public void dropOldest_keepsTheNewestItems() {
+        SpscRingBuffer<String> buffer = new SpscRingBuffer<>(4, SpscRingBuffer.OverflowPolicy.DROP_OLDEST, null);
+        for (int i = 0; i < 6; i++) {
+            buffer.offer("m" + i);
+        }
+        List<String> drained = new ArrayList<>();
+        buffer.drainTo(drained);
+        assertEquals(Arrays.asList("m2", "m3", "m4", "m5"), drained);
+        assertEquals(2, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void coalesce_mergesOverflowAndDeliversItLast() {
+        SpscRingBuffer<String> buffer = new SpscRingBuffer<>(2, SpscRingBuffer.OverflowPolicy.COALESCE, JOIN);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer("m" + i);
+        }
+        assertEquals(3, buffer.size());
+        assertEquals("m0", buffer.poll());
+        // overflow pending: a new item joins it instead of overtaking it through the freed slot
+        buffer.offer("m5");
+        List<String> drained = new ArrayList<>();
+        buffer.drainTo(drained);
+        assertEquals(Arrays.asList("m1", "m2+m3+m4+m5"), drained);
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void block_losesNothingAcrossThreads() throws Exception {
+        final SpscRingBuffer<Integer> buffer = new SpscRingBuffer<>(64, SpscRingBuffer.OverflowPolicy.BLOCK, null);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITEMS; i++) {
+                    buffer.offer(i);
+                }
+            }
+        });
+        producer.start();
+        int expected = 0;
+        while (expected < ITEMS) {
+            Integer item = buffer.poll();
+            if (item != null) {
+                assertEquals(expected++, (int) item);
+            }
+        }
+        producer.join();
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void throughputAndTailLatency_ringBufferVersusTaskPerItem() throws Exception {
+        // warm up, then measure
+        runRingBuffer();
+        runTaskPerItem();
+        long[] ring = runRingBuffer();
+        long[] tasks = runTaskPerItem();
+        System.out.println("ring buffer:   " + describe(ring));
+        System.out.println("task per item: " + describe(tasks));
+    }
+
+    /**
+     * @return latencies in nanoseconds, then the total time as the last element
+     */
+    private static long[] runRingBuffer() throws Exception {
+        final SpscRingBuffer<long[]> buffer = new SpscRingBuffer<>(256, SpscRingBuffer.OverflowPolicy.BLOCK, null);
+        final long[] latencies = new long[ITEMS + 1];
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITEMS; i++) {
+                    buffer.offer(new long[]{i, System.nanoTime()});
+                }
+            }
+        });
+        long start = System.nanoTime();
+        producer.start();
+        List<long[]> batch = new ArrayList<>();
+        int received = 0;
+        while (received < ITEMS) {
+            if (buffer.drainTo(batch) == 0) {
+                // let the producer run on a single core
+                Thread.yield();
+                continue;
+            }
+            long now = System.nanoTime();
+            for (long[] item : batch) {
+                latencies[(int) item[0]] = now - item[1];
+            }
+            received += batch.size();
+            batch.clear();
+        }
+        latencies[ITEMS] = System.nanoTime() - start;
+        producer.join();
+        return latencies;
+    }
+
+    private static long[] runTaskPerItem() throws Exception {
+        final BlockingQueue<Runnable> looper = new LinkedBlockingQueue<>();
+        final long[] latencies = new long[ITEMS + 1];
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITEMS; i++) {
+                    final int index = i;
+                    final long sent = System.nanoTime();
+                    looper.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            latencies[index] = System.nanoTime() - sent;
+                        }
+                    });
+                }
+            }
+        });
+        long start = System.nanoTime();
+        producer.start();
+        for (int i = 0; i < ITEMS; i++) {
+            looper.take().run();
+        }
+        latencies[ITEMS] = System.nanoTime() - start;
+        producer.join();
+        return latencies;
+    }
+
+    private static String describe(long[] latenciesAndTotal) {
+        long total = latenciesAndTotal[ITEMS];
+        long[] latencies = Arrays.copyOf(latenciesAndTotal, ITEMS);
+        Arrays.sort(latencies);
+        return String.format("%d items/s, latency p50 %d us, p99 %d us, p99.9 %d us",
+                ITEMS * 1000000000L / total,
+                latencies[ITEMS / 2] / 1000, latencies[ITEMS * 99 / 100] / 1000, latencies[ITEMS * 999 / 1000] / 1000);
+    }
+}
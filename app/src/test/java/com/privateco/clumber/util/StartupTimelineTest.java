@@ -0,0 +1,56 @@
+package com.privateco.clumber.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recording of startup milestones by {@link StartupTimeline}.
+ */
+public class StartupTimelineTest {
+    private static final long MILLI = 1000000;
+
+    @Test
+    public void milestones_keepTheirFirstTimeAndOrder() {
+        StartupTimeline timeline = new StartupTimeline(1000 * MILLI);
+        assertTrue(timeline.mark("warm-up socket done", 1040 * MILLI));
+        assertTrue(timeline.mark("first draw", 1120 * MILLI));
+        // a second MainActivity draws again later
+        assertFalse(timeline.mark("first draw", 5000 * MILLI));
+
+        assertEquals(40, timeline.getMillis("warm-up socket done"));
+        assertEquals(120, timeline.getMillis("first draw"));
+        assertEquals(-1, timeline.getMillis("deferred start done"));
+
+        Map<String, Long> milestones = timeline.getMilestones();
+        assertEquals(Arrays.asList("warm-up socket done", "first draw"), new ArrayList<>(milestones.keySet()));
+        assertEquals(Long.valueOf(120), milestones.get("first draw"));
+    }
+
+    @Test
+    public void concurrentMarks_areAllRecorded() throws Exception {
+        final StartupTimeline timeline = new StartupTimeline();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        timeline.mark("thread " + id + " step " + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4000, timeline.getMilestones().size());
+        assertTrue(timeline.getMillis("thread 3 step 999") >= 0);
+    }
+}
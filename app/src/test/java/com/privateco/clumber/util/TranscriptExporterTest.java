@@ -0,0 +1,176 @@
+package com.privateco.clumber.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import com.privateco.clumber.model.Message;
+import com.privateco.clumber.model.User;
+
+import static org.junit.Assert.*;
+
+/**
+ * Line format, chunking, progress and cancellation of {@link TranscriptExporter}.
+ */
+public class TranscriptExporterTest {
+    private static final User PEER = new User("1", "peer");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void lines_matchThePerMessageFormat() {
+        TranscriptFormatter formatter = new TranscriptFormatter(Locale.US);
+        // the same minute twice, then the next minute
+        long[] times = {1600000000000L, 1600000000000L + 1000, 1600000000000L + 60 * 1000};
+        for (long time : times) {
+            Message message = new Message("m", PEER, "hi", new Date(time));
+            assertEquals(naiveFormat(message), formatter.format(message));
+        }
+        assertTrue(formatter.format(new Message("m", PEER, null, new Date(times[0])))
+                .startsWith("peer: [attachment] ("));
+    }
+
+    @Test
+    public void export_writesChunksAndReportsProgress() throws Exception {
+        List<Message> messages = messages(5000);
+        final List<Integer> progress = new ArrayList<>();
+        CountingWriter out = new CountingWriter();
+        int exported = new TranscriptExporter(new TranscriptFormatter(Locale.US)).export(messages, out,
+                new TranscriptExporter.ProgressListener() {
+                    @Override
+                    public void onProgress(int exported, int total) {
+                        assertEquals(5000, total);
+                        progress.add(exported);
+                    }
+                }, null);
+
+        assertEquals(5000, exported);
+        assertEquals(expected(messages), out.text.toString());
+        assertTrue(out.writes > 1);
+        assertEquals(out.writes, progress.size());  // one per chunk, the last at the end
+        assertEquals(5000, (int) progress.get(progress.size() - 1));
+    }
+
+    @Test
+    public void export_stopsAfterTheChunkWhenCancelled() throws Exception {
+        List<Message> messages = messages(5000);
+        CountingWriter out = new CountingWriter();
+        int exported = new TranscriptExporter(new TranscriptFormatter(Locale.US)).export(messages, out, null,
+                new TranscriptExporter.CancellationSignal() {
+                    @Override
+                    public boolean isCancelled() {
+                        return true;
+                    }
+                });
+
+        assertEquals(1, out.writes);
+        assertTrue(exported < 5000);
+        assertEquals(expected(messages.subList(0, exported)), out.text.toString());
+    }
+
+    @Test
+    public void storeExport_leavesOutDeletedMessages() throws Exception {
+        PagedMessageStore store = new PagedMessageStore(folder.newFile("pages"), 10, 2);
+        List<Message> messages = messages(95);
+        for (Message message : messages) {
+            store.append(message);
+        }
+        store.delete(Collections.singletonList("m42"));
+        StringWriter out = new StringWriter();
+
+        int exported = new TranscriptExporter(new TranscriptFormatter(Locale.US)).export(store, out, null, null);
+
+        List<Message> kept = new ArrayList<>(messages);
+        kept.remove(42);
+        assertEquals(94, exported);
+        assertEquals(expected(kept), out.toString());
+        store.close();
+    }
+
+    @Test
+    public void benchmark_againstAFormatPerMessage() throws Exception {
+        List<Message> messages = messages(50000);
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            Writer naive = new CountingWriter();
+            for (Message message : messages) {
+                naive.write(naiveFormat(message));
+                naive.write('\n');
+            }
+            long naiveNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            new TranscriptExporter(new TranscriptFormatter(Locale.US)).export(messages, new CountingWriter(), null, null);
+            long exporterNanos = System.nanoTime() - start;
+
+            System.out.printf("%d messages: format per message %d ms, exporter %d ms%n",
+                    messages.size(), naiveNanos / 1000000, exporterNanos / 1000000);
+        }
+    }
+
+    private static List<Message> messages(int count) {
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // a message every ten seconds
+            messages.add(new Message("m" + i, PEER, "message number " + i, new Date(1600000000000L + i * 10000L)));
+        }
+        return messages;
+    }
+
+    private static String expected(List<Message> messages) {
+        StringBuilder text = new StringBuilder();
+        for (Message message : messages) {
+            text.append(naiveFormat(message)).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * What the chat used to do for every copied message.
+     */
+    private static String naiveFormat(Message message) {
+        String createdAt = new SimpleDateFormat("MMM d, EEE 'at' h:mm a", Locale.US).format(message.getCreatedAt());
+        String text = message.getText();
+        if (text == null) text = "[attachment]";
+        return String.format(Locale.US, "%s: %s (%s)", message.getUser().getName(), text, createdAt);
+    }
+
+    private static class CountingWriter extends Writer {
+        final StringBuilder text = new StringBuilder();
+        int writes;
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            text.append(buffer, offset, length);
+            writes++;
+        }
+
+        @Override
+        public void write(String string) {
+            text.append(string);
+        }
+
+        @Override
+        public void write(int c) {
+            text.append((char) c);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.privateco.clumber.util;
+
+import com.google.crypto.tink.Aead;
+import com.google.crypto.tink.subtle.AesGcmJce;
+import com.google.crypto.tink.subtle.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.privateco.clumber.model.Message;
+import com.privateco.clumber.model.User;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reopening, recovery, compaction and read/append speed of {@link TranscriptLog}.
+ */
+public class TranscriptLogTest {
+    private static final int MESSAGES = 100000;
+    private static final int PAGE_SIZE = PagedMessageStore.DEFAULT_PAGE_SIZE;
+    private static final User PEER = new User("1", "peer");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Aead aead;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        aead = new AesGcmJce(Random.randBytes(16));
+        directory = folder.newFolder("transcript");
+    }
+
+    @Test
+    public void reopenedLog_hasEveryMessageAcrossSegments() throws Exception {
+        TranscriptLog log = TranscriptLog.open(directory, aead, 10, 4096);
+        for (int i = 0; i < 1000; i++) {
+            log.append(message(i));
+        }
+        log.close();
+
+        log = TranscriptLog.open(directory, aead, 10, 4096);
+        assertTrue(log.getSegmentCount() > 1);
+        assertEquals(1000, log.getMessageCount());
+        for (int page = 0; page < 100; page++) {
+            List<Message> messages = log.getPage(page);
+            assertEquals(10, messages.size());
+            assertEquals(Integer.toString(page * 10), messages.get(0).getId());
+            assertEquals("text " + (page * 10 + 9), messages.get(9).getText());
+        }
+        // the page new messages go to
+        assertTrue(log.getPage(100).isEmpty());
+        log.append(message(1000));
+        assertEquals("1000", log.getPage(100).get(0).getId());
+        log.close();
+    }
+
+    @Test
+    public void tornTail_isCutOffOnOpen() throws Exception {
+        TranscriptLog log = TranscriptLog.open(directory, aead, 10, TranscriptLog.DEFAULT_SEGMENT_BYTES);
+        for (int i = 0; i < 20; i++) {
+            log.append(message(i));
+        }
+        log.close();
+        File segment = new File(directory, "00000000000000000000.log");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        log = TranscriptLog.open(directory, aead, 10, TranscriptLog.DEFAULT_SEGMENT_BYTES);
+        assertEquals(19, log.getMessageCount());
+        log.append(message(19));
+        assertEquals("19", log.getPage(1).get(9).getId());
+        log.close();
+    }
+
+    @Test
+    public void compaction_removesDeletedMessagesFromDiskWithoutMovingPages() throws Exception {
+        TranscriptLog log = TranscriptLog.open(directory, aead, 10, 4096);
+        for (int i = 0; i < 200; i++) {
+            log.append(message(i));
+        }
+        log.delete(Arrays.asList("5", "150", "199"));
+        // filtered before compaction already
+        assertEquals(9, log.getPage(0).size());
+        assertEquals(3, log.compact());
+        assertEquals(0, log.compact());
+        log.append(message(200));
+        log.close();
+
+        log = TranscriptLog.open(directory, aead, 10, 4096);
+        assertEquals(201, log.getMessageCount());
+        assertEquals(9, log.getPage(0).size());
+        assertEquals("6", log.getPage(0).get(5).getId());
+        assertEquals(9, log.getPage(15).size());
+        assertEquals("198", log.getPage(19).get(8).getId());
+        assertEquals("200", log.getPage(20).get(0).getId());
+        log.clear();
+        assertEquals(0, log.getMessageCount());
+        assertEquals(1, log.getSegmentCount());
+        log.close();
+    }
+
+    @Test(timeout = 10000)
+    public void compaction_letsAppendsThroughAndKeepsThem() throws Exception {
+        final Thread compactor = Thread.currentThread();
+        final AtomicBoolean appended = new AtomicBoolean();
+        final TranscriptLog[] holder = new TranscriptLog[1];
+        Aead appendingWhileDecrypting = new Aead() {
+            @Override
+            public byte[] encrypt(byte[] plaintext, byte[] associatedData) throws GeneralSecurityException {
+                return aead.encrypt(plaintext, associatedData);
+            }
+
+            @Override
+            public byte[] decrypt(byte[] ciphertext, byte[] associatedData) throws GeneralSecurityException {
+                if (Thread.currentThread() == compactor && appended.compareAndSet(false, true)) {
+                    // deadlocks if compaction holds the log while decrypting
+                    Thread appender = new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (int i = 200; i < 210; i++) {
+                                    holder[0].append(message(i));
+                                }
+                                holder[0].getPage(0);
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    };
+                    appender.start();
+                    try {
+                        appender.join();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return aead.decrypt(ciphertext, associatedData);
+            }
+        };
+        TranscriptLog log = TranscriptLog.open(directory, appendingWhileDecrypting, 10, 4096);
+        holder[0] = log;
+        for (int i = 0; i < 200; i++) {
+            log.append(message(i));
+        }
+        log.delete(Arrays.asList("5", "199"));
+        assertEquals(2, log.compact());
+        assertTrue(appended.get());
+        log.close();
+
+        log = TranscriptLog.open(directory, aead, 10, 4096);
+        assertEquals(210, log.getMessageCount());
+        assertEquals(9, log.getPage(0).size());
+        assertEquals(9, log.getPage(19).size());
+        assertEquals("209", log.getPage(20).get(9).getId());
+        log.close();
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void otherKey_cannotReadTheLog() throws Exception {
+        TranscriptLog log = TranscriptLog.open(directory, aead, 10, TranscriptLog.DEFAULT_SEGMENT_BYTES);
+        log.append(message(0));
+        log.close();
+        TranscriptLog.open(directory, new AesGcmJce(Random.randBytes(16)), 10, TranscriptLog.DEFAULT_SEGMENT_BYTES)
+                .getPage(0);
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void segmentOfAnotherTranscript_cannotBeRead() throws Exception {
+        File other = folder.newFolder("other");
+        TranscriptLog log = TranscriptLog.open(other, aead, 10, TranscriptLog.DEFAULT_SEGMENT_BYTES);
+        log.append(message(0));
+        log.close();
+        log = TranscriptLog.open(directory, aead, 10, TranscriptLog.DEFAULT_SEGMENT_BYTES);
+        log.append(message(1));
+        log.close();
+        File segment = new File(directory, "00000000000000000000.log");
+        assertTrue(segment.delete());
+        assertTrue(new File(other, segment.getName()).renameTo(segment));
+
+        // same key, same record number, different transcript id
+        log = TranscriptLog.open(directory, aead, 10, TranscriptLog.DEFAULT_SEGMENT_BYTES);
+        assertEquals(1, log.getMessageCount());
+        log.getPage(0);
+    }
+
+    @Test
+    public void appendThroughputAndRandomReadLatency() throws Exception {
+        TranscriptLog log = TranscriptLog.open(directory, aead, PAGE_SIZE, TranscriptLog.DEFAULT_SEGMENT_BYTES);
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            log.append(message(i));
+        }
+        log.flush();
+        long appendNanos = System.nanoTime() - start;
+        log.close();
+
+        start = System.nanoTime();
+        log = TranscriptLog.open(directory, aead, PAGE_SIZE, TranscriptLog.DEFAULT_SEGMENT_BYTES);
+        long openNanos = System.nanoTime() - start;
+        assertEquals(MESSAGES, log.getMessageCount());
+
+        java.util.Random random = new java.util.Random(42);
+        int reads = 2000;
+        long[] latencies = new long[reads];
+        for (int i = 0; i < reads; i++) {
+            int page = random.nextInt(MESSAGES / PAGE_SIZE);
+            long readStart = System.nanoTime();
+            List<Message> messages = log.getPage(page);
+            latencies[i] = System.nanoTime() - readStart;
+            assertEquals(Integer.toString(page * PAGE_SIZE), messages.get(0).getId());
+        }
+        Arrays.sort(latencies);
+        System.out.printf("transcript log: %d appends/s, %d segments opened in %d ms, "
+                        + "random page read p50 %d us, p99 %d us%n",
+                MESSAGES * 1000000000L / appendNanos, log.getSegmentCount(), openNanos / 1000000,
+                latencies[reads / 2] / 1000, latencies[reads * 99 / 100] / 1000);
+        log.close();
+    }
+
+    private static Message message(int i) {
+        return new Message(Integer.toString(i), PEER, "text " + i, new java.util.Date(i));
+    }
+}